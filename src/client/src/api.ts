@@ -317,6 +317,10 @@ export interface FetchWxReflectivityOptions {
   baseUrl?: string;
   signal?: AbortSignal;
   radiusNm?: number;
+  // 2 or 4: max-level downsampled cells (needs ITWS_LOD on the consumer); full grid otherwise
+  lod?: 1 | 2 | 4;
+  // only the cells within radiusNm of the center
+  crop?: boolean;
 }
 
 function asObject(value: unknown): Record<string, unknown> | null {
@@ -764,6 +768,125 @@ export function decodeWxRleFrameLevels(rle: string, rows: number, cols: number):
   return out;
 }
 
+function nextWxRleRun(rle: string, start: number): { level: number; count: number; next: number } | null {
+  let i = start;
+  const len = rle.length;
+  while (i < len && rle.charCodeAt(i) <= 32) {
+    i += 1;
+  }
+  if (i >= len) {
+    return null;
+  }
+  let level = 0;
+  while (i < len && rle.charCodeAt(i) !== 44) {
+    level = level * 10 + (rle.charCodeAt(i) - 48);
+    i += 1;
+  }
+  i += 1;
+  let count = 0;
+  while (i < len && rle.charCodeAt(i) > 32) {
+    count = count * 10 + (rle.charCodeAt(i) - 48);
+    i += 1;
+  }
+  return { level, count, next: i };
+}
+
+// Rebuilds a history frame's cellsRle from its newer neighbour's cellsRle and its
+// cellsDelta ("=N" copies N cells of the newer frame, "lvl,cnt" sets cnt cells to lvl).
+export function applyWxCellsDelta(newerRle: string, delta: string): string {
+  const out: string[] = [];
+  let outLevel = -1;
+  let outCount = 0;
+  const emit = (level: number, count: number) => {
+    if (level !== outLevel) {
+      if (outCount > 0) {
+        out.push(`${outLevel},${outCount}`);
+      }
+      outLevel = level;
+      outCount = 0;
+    }
+    outCount += count;
+  };
+
+  let newerPos = 0;
+  let newerLevel = 0;
+  let newerLeft = 0;
+  const takeNewer = (count: number, copy: boolean) => {
+    let n = count;
+    while (n > 0) {
+      if (newerLeft === 0) {
+        const run = nextWxRleRun(newerRle, newerPos);
+        if (!run) {
+          throw new Error("cells delta overruns the newer frame");
+        }
+        newerPos = run.next;
+        newerLevel = run.level;
+        newerLeft = run.count;
+        continue;
+      }
+      const k = Math.min(n, newerLeft);
+      if (copy) {
+        emit(newerLevel, k);
+      }
+      newerLeft -= k;
+      n -= k;
+    }
+  };
+
+  for (const token of delta.split(" ")) {
+    if (token.length === 0) {
+      continue;
+    }
+    if (token.charCodeAt(0) === 61) {
+      const count = Number(token.slice(1));
+      if (!Number.isInteger(count) || count < 0) {
+        throw new Error(`invalid cells delta token ${token}`);
+      }
+      takeNewer(count, true);
+    } else {
+      const comma = token.indexOf(",");
+      const level = Number(token.slice(0, comma));
+      const count = Number(token.slice(comma + 1));
+      if (comma <= 0 || !Number.isInteger(level) || !Number.isInteger(count) || count < 0) {
+        throw new Error(`invalid cells delta token ${token}`);
+      }
+      emit(level, count);
+      takeNewer(count, false);
+    }
+  }
+  if (newerLeft > 0 || nextWxRleRun(newerRle, newerPos)) {
+    throw new Error("cells delta is shorter than the newer frame");
+  }
+  if (outCount > 0) {
+    out.push(`${outLevel},${outCount}`);
+  }
+  return out.join(" ");
+}
+
+// Full cellsRle per payload frame (newest first): delta frames are rebuilt from their newer
+// neighbour; undefined where a frame has no cells or its chain is broken.
+function resolveWxFramesCellsRle(framesRaw: unknown[]): Array<string | undefined> {
+  const out: Array<string | undefined> = [];
+  for (let i = 0; i < framesRaw.length; i += 1) {
+    const grid = asObject(asObject(framesRaw[i])?.grid);
+    const cellsRle = asString(grid?.cellsRle);
+    const cellsDelta = asString(grid?.cellsDelta);
+    const newer = i > 0 ? out[i - 1] : undefined;
+    if (cellsRle) {
+      out.push(cellsRle);
+    } else if (cellsDelta !== null && newer) {
+      try {
+        out.push(applyWxCellsDelta(newer, cellsDelta));
+      } catch {
+        out.push(undefined);
+      }
+    } else {
+      out.push(undefined);
+    }
+  }
+  return out;
+}
+
 export interface DecodedWxFrameLevels {
   rows: number;
   cols: number;
@@ -839,9 +962,10 @@ function normalizeWxPayload(
   const firstHistoryFrameGrid = asObject(firstHistoryFrame?.grid);
   if (historyFramesRaw && historyFramesRaw.length > 0 && firstHistoryFrameGrid) {
     const observedLevels = normalizeObservedLevels(root?.levels);
+    const framesCellsRle = resolveWxFramesCellsRle(historyFramesRaw);
 
     const frames = historyFramesRaw
-      .map((rawFrame) => {
+      .map((rawFrame, frameIndex) => {
         const frame = asObject(rawFrame);
         if (!frame) {
           return null;
@@ -851,7 +975,7 @@ function normalizeWxPayload(
         const frameTrp = asObject(frameGrid?.trp);
         const frameGeom = asObject(frameGrid?.geom);
         const data = asString(frame.data) ?? undefined;
-        const cellsRle = asString(frameGrid?.cellsRle) ?? undefined;
+        const cellsRle = framesCellsRle[frameIndex];
         if (!data && !cellsRle) {
           return null;
         }
@@ -924,7 +1048,7 @@ function normalizeWxPayload(
                         rotationDeg: asFiniteNumber(frameGeom?.rotationDeg) as number
                       }
                     : undefined,
-                cellsEncoding: asString(frameGrid.cellsEncoding) ?? undefined,
+                cellsEncoding: cellsRle ? "rle" : asString(frameGrid.cellsEncoding) ?? undefined,
                 cellsRle,
                 cellsTotal: asPositiveInt(frameGrid.cellsTotal) ?? undefined,
                 nonZeroCells: asNonNegativeInt(frameGrid.nonZeroCells) ?? undefined,
@@ -1443,6 +1567,12 @@ export async function fetchWxReflectivity(
   if (options.radiusNm !== undefined) {
     url.searchParams.set("radiusNm", String(options.radiusNm));
   }
+  if (options.lod !== undefined && options.lod > 1) {
+    url.searchParams.set("lod", String(options.lod));
+  }
+  if (options.crop) {
+    url.searchParams.set("crop", "1");
+  }
 
   const response = await fetch(url, {
     signal: options.signal,
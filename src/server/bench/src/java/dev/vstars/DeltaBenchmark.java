@@ -0,0 +1,120 @@
+package dev.vstars;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.stream.XMLInputFactory;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ITWS_DELTA against the full-RLE baseline, over a FrameCache of CACHE_N consecutive frames of
+ * moving storms: payload build on the server and rebuilding every frame's grid on the receiver.
+ * Payload sizes of both variants are printed once per trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeltaBenchmark {
+
+    @Param({"400", "1200"})
+    public int rows;
+
+    @Param({"0.05", "0.30"})
+    public double coverage;
+
+    private ItwsConsumer.FrameCache<ItwsConsumer.Frame> cache;
+    private String[] rle;    // newest first
+    private String[] delta;  // delta[i] = frame i against frame i-1; delta[0] unused
+    private byte[] grid;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        XMLInputFactory xif = ItwsConsumer.newXmlInputFactory();
+        cache = new ItwsConsumer.FrameCache<>(ItwsConsumer.CACHE_N);
+        for (int i = 0; i < ItwsConsumer.CACHE_N; i++) {
+            String xml = new Itws9850Generator().grid(rows, rows).coverage(coverage)
+                    .seed(9850).step(i).genTimeSec(1_700_000_000L + 60L * i).xml();
+            ItwsConsumer.Frame f = ItwsConsumer.parse9850(InMemoryMessages.text(xml), xif, Integer.MAX_VALUE, 0L);
+            ItwsConsumer.encodeFrame(f, false, ItwsContours.Mode.OFF, 0, false);
+            cache.push(f);
+        }
+
+        int n = cache.size();
+        rle = new String[n];
+        delta = new String[n];
+        for (int i = 0; i < n; i++) {
+            rle[i] = cache.get(i).cellsRle;
+            if (i > 0) delta[i] = ItwsDelta.encode(cache.get(i), cache.get(i - 1));
+        }
+        grid = new byte[rows * rows];
+
+        long full = ItwsConsumer.buildPayloadJson(cache, false).length;
+        long d = ItwsConsumer.buildPayloadJson(cache, true).length;
+        System.out.printf("%npayload bytes: rle=%d delta=%d (%.1f%%)%n", full, d, 100.0 * d / full);
+    }
+
+    @Benchmark
+    public ItwsConsumer.Payload buildPayloadRle() {
+        return ItwsConsumer.buildPayloadJson(cache, false);
+    }
+
+    /** Steady state: each frame's delta is encoded once and reused by later payloads. */
+    @Benchmark
+    public ItwsConsumer.Payload buildPayloadDelta() {
+        return ItwsConsumer.buildPayloadJson(cache, true);
+    }
+
+    /** The one-time cost per history frame. */
+    @Benchmark
+    public String encodeDelta() {
+        return ItwsDelta.encode(cache.get(1), cache.get(0));
+    }
+
+    @Benchmark
+    public int decodeRle() {
+        int sum = 0;
+        for (String s : rle) sum += toGrid(s, grid);
+        return sum;
+    }
+
+    @Benchmark
+    public int decodeDelta() {
+        String newer = rle[0];
+        int sum = toGrid(newer, grid);
+        for (int i = 1; i < delta.length; i++) {
+            newer = ItwsDelta.apply(newer, delta[i]);
+            sum += toGrid(newer, grid);
+        }
+        return sum;
+    }
+
+    /** "lvl,cnt ..." into a level grid, as a receiver does; returns the last level written. */
+    private static int toGrid(String s, byte[] out) {
+        int pos = 0, i = 0, len = s.length(), lvl = 0;
+        while (i < len) {
+            lvl = 0;
+            char c;
+            while ((c = s.charAt(i++)) != ',') lvl = lvl * 10 + (c - '0');
+            int n = 0;
+            while (i < len && (c = s.charAt(i)) != ' ') { n = n * 10 + (c - '0'); i++; }
+            i++;
+            Arrays.fill(out, pos, pos + n, (byte) lvl);
+            pos += n;
+        }
+        return lvl;
+    }
+}
@@ -0,0 +1,89 @@
+package dev.vstars;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.stream.XMLInputFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode side: per-frame encoding (done once after parse) and the per-update payload build
+ * over a full FrameCache of CACHE_N frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+
+    @Param({"400", "1200"})
+    public int rows;
+
+    @Param({"0.05", "0.30"})
+    public double coverage;
+
+    private ItwsConsumer.Frame frame;
+    private ItwsConsumer.FrameCache<ItwsConsumer.Frame> jsonCache;
+    private ItwsConsumer.FrameCache<ItwsConsumer.Frame> binCache;
+    private String escInput;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        XMLInputFactory xif = ItwsConsumer.newXmlInputFactory();
+        jsonCache = new ItwsConsumer.FrameCache<>(ItwsConsumer.CACHE_N);
+        binCache = new ItwsConsumer.FrameCache<>(ItwsConsumer.CACHE_N);
+
+        for (int i = 0; i < ItwsConsumer.CACHE_N; i++) {
+            String xml = new Itws9850Generator().grid(rows, rows).coverage(coverage)
+                    .seed(9850 + i).genTimeSec(1_700_000_000L + 60L * i).xml();
+
+            ItwsConsumer.Frame j = ItwsConsumer.parse9850(InMemoryMessages.text(xml), xif, Integer.MAX_VALUE, 0L);
+            ItwsConsumer.encodeFrame(j, false, ItwsContours.Mode.OFF, 0, false);
+            jsonCache.push(j);
+
+            ItwsConsumer.Frame b = ItwsConsumer.parse9850(InMemoryMessages.text(xml), xif, Integer.MAX_VALUE, 0L);
+            ItwsConsumer.encodeFrame(b, true, ItwsContours.Mode.OFF, 0, false);
+            binCache.push(b);
+
+            frame = j;
+        }
+        escInput = "N90 \"JFK\" LGA\\EWR\tPrecipitation TRACON";
+    }
+
+    @Benchmark
+    public byte[] encodeFrameJson() {
+        return ItwsConsumer.encodeFrameJson(frame, true, null);
+    }
+
+    @Benchmark
+    public byte[] encodeFrameBinary() {
+        return ItwsBinaryCodec.encodeFrame(frame);
+    }
+
+    @Benchmark
+    public ItwsConsumer.Payload buildPayloadJson() {
+        return ItwsConsumer.buildPayload(jsonCache, false, false);
+    }
+
+    @Benchmark
+    public ItwsConsumer.Payload buildPayloadBinary() {
+        return ItwsConsumer.buildPayload(binCache, true, false);
+    }
+
+    @Benchmark
+    public String esc() {
+        return ItwsConsumer.esc(escInput);
+    }
+}
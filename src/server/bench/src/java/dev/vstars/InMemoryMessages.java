@@ -0,0 +1,66 @@
+package dev.vstars;
+
+import javax.jms.BytesMessage;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal in-memory JMS messages for the benchmarks: just what parse9850 calls
+ * (getText / getBodyLength / readBytes / reset / propertyExists). Everything else throws.
+ *
+ * Dynamic proxies cost a reflective call per readBytes; with 64 KB reads that is a handful of
+ * calls per message and does not show up next to the parse itself.
+ */
+final class InMemoryMessages {
+
+    private InMemoryMessages() {}
+
+    static TextMessage text(String xml) {
+        return (TextMessage) proxy(TextMessage.class, xml, null);
+    }
+
+    /** A fresh read position per call: parse9850 consumes the body. Call {@code reset()} to re-read. */
+    static BytesMessage bytes(byte[] body) {
+        return (BytesMessage) proxy(BytesMessage.class, null, body);
+    }
+
+    static BytesMessage bytes(String xml) {
+        return bytes(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Message proxy(Class<? extends Message> type, String text, byte[] body) {
+        int[] pos = {0};
+        return (Message) Proxy.newProxyInstance(InMemoryMessages.class.getClassLoader(), new Class<?>[]{type}, (p, m, a) -> {
+            switch (m.getName()) {
+                case "getText":
+                    return text;
+                case "getBodyLength":
+                    return (long) body.length;
+                case "reset":
+                    pos[0] = 0;
+                    return null;
+                case "readBytes": {
+                    byte[] dst = (byte[]) a[0];
+                    int len = (a.length > 1) ? (Integer) a[1] : dst.length;
+                    int n = Math.min(len, body.length - pos[0]);
+                    if (n <= 0) return -1;
+                    System.arraycopy(body, pos[0], dst, 0, n);
+                    pos[0] += n;
+                    return n;
+                }
+                case "propertyExists":
+                    return false;
+                case "hashCode":
+                    return System.identityHashCode(p);
+                case "equals":
+                    return p == a[0];
+                case "toString":
+                    return type.getSimpleName() + "(in-memory)";
+                default:
+                    throw new UnsupportedOperationException(m.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,171 @@
+package dev.vstars;
+
+import java.util.Random;
+
+/**
+ * Deterministic synthetic ITWS Precipitation TRACON (9850) messages.
+ *
+ * The raster looks like the real product rather than noise: a circular radar coverage area
+ * (outside = no-coverage code), storm blobs whose level falls off from a 3..6 core until the
+ * requested precip coverage is reached, attenuated cells behind strong cores, and sparse AP /
+ * bad-value clusters. The grid is run-length encoded row-major as "val,cnt" pairs, wrapped every
+ * {@code runsPerLine} runs so StAX delivers it as several CHARACTERS events. Successive
+ * {@code step}s of one seed move the storms a little, like consecutive frames of a real feed.
+ */
+final class Itws9850Generator {
+
+    static final int ATTENUATED = 7, AP = 8, BAD = 9, NO_COVERAGE = 15;
+
+    private int rows = 400, cols = 400;
+    private double coverage = 0.15;     // fraction of covered cells with level >= 1
+    private double specialRate = 0.002; // fraction of covered cells set to AP/bad clusters
+    private int runsPerLine = 64;
+    private long seed = 9850;
+    private long genTimeSec = 1_700_000_000L;
+    private int step = 0;               // storm motion: each blob moves by its velocity per step
+
+    Itws9850Generator grid(int rows, int cols) { this.rows = rows; this.cols = cols; return this; }
+    Itws9850Generator coverage(double coverage) { this.coverage = coverage; return this; }
+    Itws9850Generator specialRate(double specialRate) { this.specialRate = specialRate; return this; }
+    Itws9850Generator runsPerLine(int runsPerLine) { this.runsPerLine = Math.max(1, runsPerLine); return this; }
+    Itws9850Generator seed(long seed) { this.seed = seed; return this; }
+    Itws9850Generator genTimeSec(long genTimeSec) { this.genTimeSec = genTimeSec; return this; }
+    Itws9850Generator step(int step) { this.step = step; return this; }
+
+    // ---------------- Raster ----------------
+
+    /** ITWS values (0..6 levels or special codes), row-major. */
+    byte[] raster() {
+        Random rnd = new Random(seed);
+        byte[] v = new byte[rows * cols];
+
+        double cr = (rows - 1) / 2.0, cc = (cols - 1) / 2.0;
+        double radius = Math.min(rows, cols) / 2.0;
+        long covered = 0;
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                double dr = r - cr, dc = c - cc;
+                if (dr * dr + dc * dc > radius * radius) v[r * cols + c] = NO_COVERAGE;
+                else covered++;
+            }
+        }
+
+        long target = (long) (covered * Math.max(0, Math.min(1, coverage)));
+        long wet = 0;
+        int maxBlobR = Math.max(4, Math.min(rows, cols) / 10);
+        for (int guard = 0; wet < target && guard < 100_000; guard++) {
+            // same seed, later step: the same storms, each moved along its own -1..1 cells/step
+            int br = rnd.nextInt(rows) + step * (guard * 7 % 3 - 1);
+            int bc = rnd.nextInt(cols) + step * (guard * 5 % 3 - 1);
+            double rr = 3 + rnd.nextDouble() * maxBlobR;
+            double rc = rr * (0.5 + rnd.nextDouble());
+            int peak = 3 + rnd.nextInt(4);
+
+            for (int r = Math.max(0, (int) (br - rr)); r <= Math.min(rows - 1, (int) (br + rr)); r++) {
+                for (int c = Math.max(0, (int) (bc - rc)); c <= Math.min(cols - 1, (int) (bc + rc)); c++) {
+                    int i = r * cols + c;
+                    if (v[i] == NO_COVERAGE) continue;
+                    double dr = (r - br) / rr, dc = (c - bc) / rc;
+                    double d = Math.sqrt(dr * dr + dc * dc);
+                    if (d >= 1) continue;
+                    int lvl = Math.max(1, (int) Math.ceil(peak * (1 - d)));
+                    if (v[i] == 0) wet++;
+                    if (v[i] < lvl || v[i] > 6) v[i] = (byte) lvl;
+                }
+            }
+
+            // attenuation shadow behind strong cores (radially outward)
+            if (peak >= 5 && rnd.nextInt(3) == 0) {
+                double ar = br - cr, ac = bc - cc;
+                double len = Math.max(1, Math.sqrt(ar * ar + ac * ac));
+                for (double s = rr; s < rr + maxBlobR; s += 1) {
+                    int r = (int) Math.round(br + ar / len * s), c = (int) Math.round(bc + ac / len * s);
+                    if (r < 0 || c < 0 || r >= rows || c >= cols) break;
+                    int i = r * cols + c;
+                    if (v[i] == 0) v[i] = ATTENUATED;
+                }
+            }
+        }
+
+        long specials = (long) (covered * specialRate);
+        while (specials > 0) {
+            int r = rnd.nextInt(rows), c = rnd.nextInt(cols);
+            byte code = (byte) (rnd.nextBoolean() ? AP : BAD);
+            int n = 1 + rnd.nextInt(12);
+            for (int k = 0; k < n && c + k < cols; k++, specials--) {
+                int i = r * cols + c + k;
+                if (v[i] != NO_COVERAGE) v[i] = code;
+            }
+        }
+        return v;
+    }
+
+    // ---------------- Encodings ----------------
+
+    /** The prcp_grid_compressed text: "val,cnt val,cnt ..." (runs may wrap rows). */
+    String gridText() {
+        byte[] v = raster();
+        StringBuilder sb = new StringBuilder(v.length / 2);
+        int runs = 0;
+        int i = 0;
+        while (i < v.length) {
+            int j = i + 1;
+            while (j < v.length && v[j] == v[i]) j++;
+            if (runs > 0) sb.append((runs % runsPerLine == 0) ? '\n' : ' ');
+            sb.append(v[i]).append(',').append(j - i);
+            runs++;
+            i = j;
+        }
+        return sb.toString();
+    }
+
+    String xml() {
+        StringBuilder sb = new StringBuilder(rows * cols / 2 + 4096);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<itws_precip_tracon>\n");
+        sb.append("  <product_header>\n");
+        el(sb, "product_msg_id", "9850");
+        el(sb, "product_msg_name", "Precipitation TRACON");
+        el(sb, "product_header_itws_sites", "N90");
+        el(sb, "product_header_airports", "JFK LGA EWR");
+        el(sb, "product_header_generation_time_seconds", Long.toString(genTimeSec));
+        el(sb, "product_header_generation_time_milliseconds", "0");
+        el(sb, "product_header_expiration_time_seconds", Long.toString(genTimeSec + 360));
+        el(sb, "product_header_expiration_time_milliseconds", "0");
+        sb.append("  </product_header>\n");
+        sb.append("  <prcp_grid>\n");
+        el(sb, "prcp_TRP_latitude", "40641311");
+        el(sb, "prcp_TRP_longitude", "-73778139");
+        el(sb, "prcp_xoffset", Integer.toString(-cols / 2 * 1000));
+        el(sb, "prcp_yoffset", Integer.toString(-rows / 2 * 1000));
+        el(sb, "prcp_dx", "1000");
+        el(sb, "prcp_dy", "1000");
+        el(sb, "prcp_rotation", "0");
+        el(sb, "prcp_nrows", Integer.toString(rows));
+        el(sb, "prcp_ncols", Integer.toString(cols));
+        el(sb, "prcp_grid_max_x", Integer.toString(cols));
+        el(sb, "prcp_grid_max_y", Integer.toString(rows));
+        el(sb, "prcp_attenuated", Integer.toString(ATTENUATED));
+        el(sb, "prcp_ap_detected", Integer.toString(AP));
+        el(sb, "prcp_bad_value", Integer.toString(BAD));
+        el(sb, "prcp_no_coverage", Integer.toString(NO_COVERAGE));
+        el(sb, "prcp_grid_compression_encoding_scheme", "run-length");
+        el(sb, "prcp_grid_max_precip_level", "6");
+        sb.append("    <prcp_grid_compressed>").append(gridText()).append("</prcp_grid_compressed>\n");
+        sb.append("  </prcp_grid>\n");
+        sb.append("</itws_precip_tracon>\n");
+        return sb.toString();
+    }
+
+    /** Splits text into fixed-size chunks, as a parser would hand them to MappedRleBuilder.feed. */
+    static String[] chunks(String s, int size) {
+        int n = (s.length() + size - 1) / size;
+        String[] out = new String[n];
+        for (int i = 0; i < n; i++) out[i] = s.substring(i * size, Math.min(s.length(), (i + 1) * size));
+        return out;
+    }
+
+    private static void el(StringBuilder sb, String name, String value) {
+        sb.append("    <").append(name).append('>').append(value).append("</").append(name).append(">\n");
+    }
+}
@@ -0,0 +1,27 @@
+package dev.vstars;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of itws-benchmarks.jar: the usual JMH command line, with the GC profiler
+ * always on so allocation rate (gc.alloc.rate.norm) is reported next to the timings.
+ *
+ *   java -jar itws-benchmarks.jar                      all benchmarks
+ *   java -jar itws-benchmarks.jar Parse -p rows=1200    one class, one grid size
+ */
+public final class ItwsBench {
+
+    private ItwsBench() {}
+
+    public static void main(String[] args) throws Exception {
+        Options opts = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opts).run();
+    }
+}
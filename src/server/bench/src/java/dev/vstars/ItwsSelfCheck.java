@@ -0,0 +1,492 @@
+package dev.vstars;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Correctness checks behind the benchmarks, run by CI after the bench build:
+ *
+ *   java -cp itws-benchmarks.jar dev.vstars.ItwsSelfCheck
+ *
+ * Each check prints one line; the first failure exits with status 1.
+ */
+public final class ItwsSelfCheck {
+
+    private ItwsSelfCheck() {}
+
+    public static void main(String[] args) throws Exception {
+        packedRunsMatchText();
+        binaryPayloadMatchesJson();
+        pooledParseAllocation();
+        gridLookupsMatchRaster();
+        System.out.println("ItwsSelfCheck: all checks passed");
+    }
+
+    // ---------------- Packed runs (ItwsBinaryCodec) ----------------
+
+    /**
+     * The packed runs decode to exactly the text RLE of the same message: random runs with counts
+     * in every varint size (inline nibble, 1, 2, 3 and 4 bytes), specials and merges, then
+     * generated frames through the real parser.
+     */
+    private static void packedRunsMatchText() throws Exception {
+        Random rnd = new Random(9850);
+        int[] maxCount = {15, 127, 16_383, 2_097_151, 100_000_000};
+        ItwsConsumer.MappedRleBuilder rle = new ItwsConsumer.MappedRleBuilder();
+        for (int t = 0; t < 500; t++) {
+            rle.reset();
+            StringBuilder in = new StringBuilder();
+            int runs = 1 + rnd.nextInt(400);
+            for (int i = 0; i < runs; i++) {
+                int v = rnd.nextInt(10) < 8 ? rnd.nextInt(7) : new int[] {7, 8, 9, 15}[rnd.nextInt(4)];
+                int c = 1 + rnd.nextInt(maxCount[rnd.nextInt(maxCount.length)]);
+                in.append(v).append(',').append(c).append(i % 7 == 6 ? '\n' : ' ');
+            }
+            rle.feed(in.toString());
+            rle.finish();
+            String packed = runsToRle(rle.runs(), rle.runsLen());
+            check(packed.equals(rle.outString()), "packed runs differ from cellsRle for input #" + t);
+        }
+
+        var xif = ItwsConsumer.newXmlInputFactory();
+        for (int t = 0; t < 20; t++) {
+            String xml = new Itws9850Generator().grid(100 + 50 * t, 100 + 40 * t)
+                    .coverage(0.05 * (t % 8)).seed(t).xml();
+            ItwsConsumer.Frame f = ItwsConsumer.parse9850(InMemoryMessages.text(xml), xif, Integer.MAX_VALUE, 0L);
+            check(f != null, "generated frame #" + t + " did not parse");
+            check(runsToRle(f.runs, f.runsLen).equals(f.cellsRle),
+                    "packed runs differ from cellsRle for generated frame #" + t);
+        }
+        pass("packed runs == text RLE (500 random inputs, 20 generated frames)");
+    }
+
+    // ---------------- Binary payload == JSON payload (ItwsBinaryCodec) ----------------
+
+    /**
+     * A binary payload carries exactly what the JSON payload of the same cache does: both are
+     * decoded to the same tree (the binary one the way the Node server reads it, runs back to
+     * cellsRle) and compared field by field, for the whole loop and for cut heads. Covers frames
+     * with and without geo, non-ASCII and escaped strings. The bbox is the one inexact field:
+     * micro-degrees in binary, five decimals in JSON.
+     */
+    private static void binaryPayloadMatchesJson() throws Exception {
+        var xif = ItwsConsumer.newXmlInputFactory();
+        ItwsConsumer.FrameCache<ItwsConsumer.Frame> cache = new ItwsConsumer.FrameCache<>(6);
+        for (int t = 0; t < 6; t++) { // oldest first
+            String xml = new Itws9850Generator().grid(150 + 10 * t, 120 + 20 * t).coverage(0.05 + 0.05 * t)
+                    .genTimeSec(1_700_000_000L + 300 * t).step(t).xml();
+            ItwsConsumer.Frame f = ItwsConsumer.parse9850(InMemoryMessages.text(xml), xif, Integer.MAX_VALUE, 0L);
+            check(f != null, "generated frame #" + t + " did not parse");
+            f.receiverMs = 1_700_000_000_000L + 300_000L * t + 1234;
+            if (t == 1) f.projection = null;
+            if (t == 4) f.airport = "Zürich \"ZRH\" \\ \u00e9\t";
+            ItwsConsumer.encodeFrame(f, false, ItwsContours.Mode.OFF, 0, false);
+            f.bin = ItwsBinaryCodec.encodeFrame(f);
+            cache.push(f);
+        }
+
+        ItwsConsumer.Payload bin = ItwsConsumer.buildPayload(cache, true, false);
+        ItwsConsumer.Payload json = ItwsConsumer.buildPayload(cache, false, false);
+        for (int k : new int[] {cache.size(), 3, 1, 0}) {
+            Map<String, Object> b = decodeBinary(gather(bin.head(k)));
+            Map<String, Object> j = asMap(new Json(new String(gather(json.head(k)), StandardCharsets.UTF_8)).document());
+            check(((List<?>) b.get("frames")).size() == k, "binary head(" + k + ") has "
+                    + ((List<?>) b.get("frames")).size() + " frames");
+            // stamped by each build: only required to be close
+            long bt = (Long) b.remove("updatedAtMs");
+            double jt = (Double) j.remove("updatedAtMs");
+            check(Math.abs(bt - jt) < 60_000, "updatedAtMs differs by " + (bt - jt) + " ms");
+            same(j, b, "head(" + k + ")");
+        }
+        pass("binary payload == JSON payload (" + cache.size() + " frames, head 3/1/0)");
+    }
+
+    /** Decodes a binary payload to the tree its JSON form parses to (numbers as Double, except updatedAtMs). */
+    private static Map<String, Object> decodeBinary(byte[] body) {
+        ByteBuffer in = ByteBuffer.wrap(body);
+        byte[] magic = new byte[4];
+        in.get(magic);
+        check(Arrays.equals(magic, ItwsBinaryCodec.MAGIC), "bad magic");
+        check(in.get() == ItwsBinaryCodec.VERSION, "bad version");
+        int n = in.get() & 0xFF;
+        int mask = in.getShort() & 0xFFFF;
+
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("updatedAtMs", in.getLong());
+        root.put("source", str(in));
+        List<Object> levels = new ArrayList<>();
+        for (int lvl = 1; lvl <= 6; lvl++) if ((mask & (1 << lvl)) != 0) levels.add((double) lvl);
+        root.put("levels", levels);
+
+        List<Object> frames = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            check(in.remaining() >= 4, "binary payload ends after " + i + " of its " + n + " frames");
+            int len = in.getInt();
+            int end = in.position() + len;
+            check(len >= 0 && end <= body.length, "frame #" + i + ": frameLen " + len + " runs past the payload");
+            Map<String, Object> f = new LinkedHashMap<>();
+            f.put("receiverMs", (double) in.getLong());
+            f.put("itwsGenTimeMs", (double) in.getLong());
+            f.put("itwsExpTimeMs", (double) in.getLong());
+            f.put("productId", (double) in.getInt());
+            f.put("productName", str(in));
+            f.put("site", str(in));
+            f.put("airport", str(in));
+            f.put("receivedAt", str(in));
+
+            Map<String, Object> g = new LinkedHashMap<>();
+            g.put("rows", (double) in.getInt());
+            g.put("cols", (double) in.getInt());
+            g.put("dimsSource", str(in));
+            Map<String, Object> raw = new LinkedHashMap<>();
+            for (String k : new String[] {"nrows", "ncols", "gridMaxY", "gridMaxX"}) raw.put(k, (double) in.getInt());
+            g.put("rawDims", raw);
+            g.put("layout", "row-major");
+            Map<String, Object> trp = new LinkedHashMap<>();
+            trp.put("latDeg", in.getInt() / 1_000_000.0);
+            trp.put("lonDeg", in.getInt() / 1_000_000.0);
+            g.put("trp", trp);
+            Map<String, Object> geom = new LinkedHashMap<>();
+            for (String k : new String[] {"xOffsetM", "yOffsetM", "dxM", "dyM"}) geom.put(k, (double) in.getInt());
+            geom.put("rotationDeg", in.getInt() / 1000.0);
+            g.put("geom", geom);
+            g.put("cellsTotal", (double) in.getLong());
+            g.put("maxLevel", (double) (in.get() & 0xFF));
+            g.put("nonZeroCells", (double) in.getLong());
+            g.put("itwsMaxPrecipLevel", (double) in.getInt());
+            Map<String, Object> special = new LinkedHashMap<>();
+            for (String k : new String[] {"noCoverageCells", "badCells", "apCells", "attenCells"}) {
+                special.put(k, (double) in.getLong());
+            }
+            g.put("special", special);
+
+            int runCount = in.getInt();
+            byte[] runs = new byte[in.getInt()];
+            in.get(runs);
+            String rle = runsToRle(runs, runs.length);
+            check(rle.isEmpty() ? runCount == 0 : rle.split(" ").length == runCount,
+                    "frame #" + i + ": runCount " + runCount + " does not match its runs");
+            g.put("cellsEncoding", "rle");
+            g.put("cellsRle", rle);
+
+            if (in.get() != 0) {
+                Map<String, Object> geo = new LinkedHashMap<>();
+                String h = Long.toHexString(in.getLong());
+                geo.put("fingerprint", "0".repeat(16 - h.length()) + h);
+                Map<String, Object> bbox = new LinkedHashMap<>();
+                for (String k : new String[] {"south", "west", "north", "east"}) bbox.put(k, in.getInt() / 1_000_000.0);
+                geo.put("bbox", bbox);
+                g.put("geo", geo);
+            }
+            check(in.position() == end, "frame #" + i + ": fields end at " + in.position() + ", frameLen says " + end);
+            f.put("grid", g);
+            frames.add(f);
+        }
+        check(!in.hasRemaining(), "binary payload has " + in.remaining() + " bytes past its " + n + " frames");
+        root.put("frames", frames);
+        return root;
+    }
+
+    private static String str(ByteBuffer in) {
+        byte[] b = new byte[in.getShort() & 0xFFFF];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /** Deep equality of two decoded trees: same keys, same values, bbox degrees within rounding. */
+    private static void same(Object want, Object got, String path) {
+        if (want instanceof Map<?, ?> w && got instanceof Map<?, ?> g) {
+            check(w.keySet().equals(g.keySet()), path + ": keys " + g.keySet() + ", JSON has " + w.keySet());
+            for (Object k : w.keySet()) same(w.get(k), g.get(k), path + "." + k);
+        } else if (want instanceof List<?> w && got instanceof List<?> g) {
+            check(w.size() == g.size(), path + ": " + g.size() + " entries, JSON has " + w.size());
+            for (int i = 0; i < w.size(); i++) same(w.get(i), g.get(i), path + "[" + i + "]");
+        } else if (want instanceof Double w && got instanceof Double g && path.contains(".bbox.")) {
+            check(Math.abs(w - g) <= 6e-6, path + ": " + g + ", JSON has " + w);
+        } else {
+            check(want != null && want.equals(got), path + ": " + got + ", JSON has " + want);
+        }
+    }
+
+    private static byte[] gather(ItwsConsumer.Payload p) throws Exception {
+        ByteArrayOutputStream bo = new ByteArrayOutputStream((int) p.length);
+        p.writeTo(bo);
+        return bo.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object o) {
+        check(o instanceof Map, "JSON payload is not an object");
+        return (Map<String, Object>) o;
+    }
+
+    /** Just enough JSON for the payloads: objects, arrays, strings, numbers (as Double), literals. */
+    private static final class Json {
+        private final String s;
+        private int i;
+
+        Json(String s) { this.s = s; }
+
+        Object document() {
+            Object v = value();
+            ws();
+            check(i == s.length(), "JSON: trailing text at " + i);
+            return v;
+        }
+
+        private Object value() {
+            ws();
+            char c = s.charAt(i);
+            if (c == '{') {
+                Map<String, Object> m = new LinkedHashMap<>();
+                i++;
+                ws();
+                if (s.charAt(i) == '}') { i++; return m; }
+                do {
+                    ws();
+                    String k = string();
+                    ws();
+                    expect(':');
+                    check(m.put(k, value()) == null, "JSON: duplicate key " + k);
+                    ws();
+                } while (s.charAt(i++) == ',');
+                check(s.charAt(i - 1) == '}', "JSON: expected } at " + (i - 1));
+                return m;
+            }
+            if (c == '[') {
+                List<Object> l = new ArrayList<>();
+                i++;
+                ws();
+                if (s.charAt(i) == ']') { i++; return l; }
+                do {
+                    l.add(value());
+                    ws();
+                } while (s.charAt(i++) == ',');
+                check(s.charAt(i - 1) == ']', "JSON: expected ] at " + (i - 1));
+                return l;
+            }
+            if (c == '"') return string();
+            for (String lit : new String[] {"true", "false", "null"}) {
+                if (s.startsWith(lit, i)) {
+                    i += lit.length();
+                    return lit.equals("null") ? null : Boolean.valueOf(lit);
+                }
+            }
+            int from = i;
+            while (i < s.length() && "+-0123456789.eE".indexOf(s.charAt(i)) >= 0) i++;
+            check(i > from, "JSON: unexpected '" + c + "' at " + from);
+            return Double.parseDouble(s.substring(from, i));
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            for (char c; (c = s.charAt(i++)) != '"'; ) {
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char e = s.charAt(i++);
+                switch (e) {
+                    case 'n' -> sb.append('\n');
+                    case 'r' -> sb.append('\r');
+                    case 't' -> sb.append('\t');
+                    case 'b' -> sb.append('\b');
+                    case 'f' -> sb.append('\f');
+                    case 'u' -> {
+                        sb.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+                        i += 4;
+                    }
+                    default -> sb.append(e); // quote, backslash, slash
+                }
+            }
+            return sb.toString();
+        }
+
+        private void expect(char c) {
+            check(s.charAt(i) == c, "JSON: expected " + c + " at " + i);
+            i++;
+        }
+
+        private void ws() {
+            while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        }
+    }
+
+    // ---------------- Steady-state allocation (ParseBenchmark *Pooled) ----------------
+
+    /**
+     * A pooled parse allocates little beyond the frame's cellsRle String, the one thing it cannot
+     * reuse: measured with the thread's allocation counter over N parses after a JIT warm-up. The
+     * StAX path also pays for a fresh XMLStreamReader and its buffers per document, hence its
+     * larger fixed slack.
+     */
+    private static void pooledParseAllocation() throws Exception {
+        var mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        check(mx.isThreadAllocatedMemorySupported(), "thread allocation counter not supported by this JVM");
+        mx.setThreadAllocatedMemoryEnabled(true);
+        long tid = Thread.currentThread().getId();
+
+        var xif = ItwsConsumer.newXmlInputFactory();
+        for (int rows : new int[] {400, 1200}) {
+            for (double coverage : new double[] {0.05, 0.30}) {
+                String xml = new Itws9850Generator().grid(rows, rows).coverage(coverage).xml();
+                String what = rows + "x" + rows + " at " + coverage;
+                var bytes = InMemoryMessages.bytes(xml);
+                var text = InMemoryMessages.text(xml);
+                var pool = new ItwsConsumer.FramePool(1);
+
+                int rleBytes = 0;
+                for (int i = 0; i < ALLOC_WARMUP; i++) {
+                    bytes.reset();
+                    rleBytes = releaseAndSize(ItwsConsumer.parse9850(bytes, xif, Integer.MAX_VALUE, 0L, pool), pool);
+                    releaseAndSize(ItwsConsumer.parse9850(text, xif, Integer.MAX_VALUE, 0L, pool), pool);
+                }
+
+                long b0 = mx.getThreadAllocatedBytes(tid);
+                for (int i = 0; i < ALLOC_PARSES; i++) {
+                    bytes.reset();
+                    releaseAndSize(ItwsConsumer.parse9850(bytes, xif, Integer.MAX_VALUE, 0L, pool), pool);
+                }
+                long perBytes = (mx.getThreadAllocatedBytes(tid) - b0) / ALLOC_PARSES;
+                check(perBytes <= rleBytes + BYTES_SLACK, "pooled BytesMessage parse of " + what + " allocates "
+                        + perBytes + " B per frame, budget " + (rleBytes + BYTES_SLACK) + " (cellsRle " + rleBytes + ")");
+
+                long t0 = mx.getThreadAllocatedBytes(tid);
+                for (int i = 0; i < ALLOC_PARSES; i++) {
+                    releaseAndSize(ItwsConsumer.parse9850(text, xif, Integer.MAX_VALUE, 0L, pool), pool);
+                }
+                long perText = (mx.getThreadAllocatedBytes(tid) - t0) / ALLOC_PARSES;
+                check(perText <= rleBytes + TEXT_SLACK, "pooled TextMessage parse of " + what + " allocates "
+                        + perText + " B per frame, budget " + (rleBytes + TEXT_SLACK) + " (cellsRle " + rleBytes + ")");
+            }
+        }
+        pass("pooled parse allocates <= cellsRle + " + BYTES_SLACK + " B (bytes) / + " + TEXT_SLACK + " B (StAX)");
+    }
+
+    private static final int ALLOC_WARMUP = 2_000;
+    private static final int ALLOC_PARSES = 200;
+    private static final int BYTES_SLACK = 1024;
+    private static final int TEXT_SLACK = 32 * 1024;
+
+    /** Releases {@code f} to the pool and returns the heap size of its cellsRle (Latin-1, one byte a char). */
+    private static int releaseAndSize(ItwsConsumer.Frame f, ItwsConsumer.FramePool pool) {
+        check(f != null, "generated frame did not parse");
+        int n = f.cellsRle.length();
+        pool.release(f);
+        return n;
+    }
+
+    // ---------------- Random access (ItwsRleGrid) ----------------
+
+    /**
+     * level(row, col), level(cell) and forEachRun agree with toRaster cell for cell: random grids
+     * (some with fewer cells than rows x cols, which read as 0) and generated frames, one of them
+     * above PARALLEL_CELLS so the raster is filled in bands.
+     */
+    private static void gridLookupsMatchRaster() throws Exception {
+        Random rnd = new Random(9851);
+        for (int t = 0; t < 200; t++) {
+            int rows = 1 + rnd.nextInt(60), cols = 1 + rnd.nextInt(60);
+            int cells = (t % 4 == 3) ? rnd.nextInt(rows * cols) : rows * cols;
+            ItwsRleGrid g = new ItwsRleGrid();
+            int prev = -1;
+            for (int done = 0; done < cells; ) {
+                int level = rnd.nextInt(7);
+                if (level == prev) level = (level + 1) % 7;
+                int n = Math.min(cells - done, 1 + rnd.nextInt(rnd.nextBoolean() ? 4 : 3 * cols));
+                g.add(level, n);
+                done += n;
+                prev = level;
+            }
+            g.index(rows, cols);
+            checkLookups(g, rnd, "random grid #" + t);
+        }
+
+        var xif = ItwsConsumer.newXmlInputFactory();
+        int[][] dims = {{120, 90}, {400, 400}, {640, 600}};
+        for (int t = 0; t < dims.length; t++) {
+            String xml = new Itws9850Generator().grid(dims[t][0], dims[t][1]).coverage(0.1 + 0.1 * t).seed(t).xml();
+            ItwsConsumer.Frame f = ItwsConsumer.parse9850(InMemoryMessages.text(xml), xif, Integer.MAX_VALUE, 0L);
+            check(f != null && f.grid != null, "generated frame #" + t + " did not parse");
+            checkLookups(f.grid, rnd, "generated frame #" + t);
+        }
+        check((long) dims[2][0] * dims[2][1] >= ItwsRleGrid.PARALLEL_CELLS, "no generated frame is rastered in parallel");
+        pass("grid lookups == toRaster (200 random grids, " + dims.length + " generated frames)");
+    }
+
+    private static void checkLookups(ItwsRleGrid g, Random rnd, String what) {
+        int rows = g.rows(), cols = g.cols();
+        byte[] raster = g.toRaster();
+        check(raster.length == rows * cols, what + ": raster has " + raster.length + " cells, want " + rows * cols);
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                int want = raster[r * cols + c];
+                if (g.level(r, c) != want || g.level(r * cols + c) != want) {
+                    check(false, what + ": level at (" + r + "," + c + ") is " + g.level(r, c) + "/"
+                            + g.level(r * cols + c) + ", raster " + want);
+                }
+            }
+            int from = rnd.nextInt(cols + 1) - 1, to = from + rnd.nextInt(cols + 2);
+            int row = r;
+            byte[] seen = new byte[cols];
+            int[] next = {Math.max(0, from)};
+            g.forEachRun(row, from, to, (col, len, level) -> {
+                check(col == next[0] && len > 0, what + ": run at column " + col + " in row " + row + ", want " + next[0]);
+                Arrays.fill(seen, col, col + len, (byte) level);
+                next[0] = col + len;
+            });
+            int end = Math.min(cols, to);
+            for (int c = Math.max(0, from); c < end; c++) {
+                // visited columns must match; columns past the last run are never visited and read as 0
+                if (c < next[0]) check(seen[c] == raster[r * cols + c], what + ": forEachRun level at (" + row + "," + c + ")");
+                else check(raster[r * cols + c] == 0, what + ": forEachRun stopped early in row " + row);
+            }
+        }
+        check(g.level(-1, 0) == 0 && g.level(rows, 0) == 0 && g.level(0, cols) == 0 && g.level(-1) == 0
+                && g.level(rows * cols) == 0, what + ": lookup outside the grid is not 0");
+    }
+
+    // ---------------- Helpers ----------------
+
+    /** Packed runs (see {@link ItwsBinaryCodec}) back to the text form, "lvl,cnt lvl,cnt ...". */
+    private static String runsToRle(byte[] runs, int len) {
+        StringBuilder sb = new StringBuilder(len * 4);
+        int i = 0;
+        while (i < len) {
+            int b = runs[i++] & 0xFF;
+            int level = b & 0x0F;
+            int count = b >>> 4;
+            if (count == 0) {
+                int shift = 0;
+                int v;
+                do {
+                    v = runs[i++] & 0xFF;
+                    count |= (v & 0x7F) << shift;
+                    shift += 7;
+                } while ((v & 0x80) != 0);
+            }
+            if (!sb.isEmpty()) sb.append(' ');
+            sb.append(level).append(',').append(count);
+        }
+        return sb.toString();
+    }
+
+    private static void check(boolean ok, String what) {
+        if (ok) return;
+        System.err.println("FAIL: " + what);
+        System.exit(1);
+    }
+
+    private static void pass(String what) {
+        System.out.println("ok  " + what);
+    }
+}
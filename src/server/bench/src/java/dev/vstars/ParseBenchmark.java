@@ -0,0 +1,122 @@
+package dev.vstars;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.jms.BytesMessage;
+import javax.jms.TextMessage;
+import javax.xml.stream.XMLInputFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse side: the grid RLE builder on its own, and the whole parse9850 (StAX over a
+ * TextMessage, byte scanner over a BytesMessage) on the same synthetic message.
+ *
+ * readHeader is the receive-thread gate on the same BytesMessage: its cost should not grow with
+ * the grid.
+ *
+ * The *Pooled variants hand every frame back to a FramePool, as ITWS_FRAME_POOL does on cache
+ * eviction; their gc.alloc.rate.norm is what a steady-state parse still allocates. ItwsSelfCheck
+ * holds that to a budget (cellsRle plus a small slack) in CI.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+    @Param({"400", "1200"})
+    public int rows;
+
+    @Param({"0.05", "0.30"})
+    public double coverage;
+
+    /** Size of the CHARACTERS chunks the StAX parser would hand to feed(String). */
+    @Param({"8192"})
+    public int chunk;
+
+    private String[] gridChunks;
+    private byte[] gridBytes;
+
+    private TextMessage text;
+    private BytesMessage bytes;
+    private XMLInputFactory xif;
+    private final ItwsConsumer.FramePool pool = new ItwsConsumer.FramePool(1);
+    private final ItwsHeader header = new ItwsHeader();
+    private final byte[] scratch = new byte[8 * 1024];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Itws9850Generator gen = new Itws9850Generator().grid(rows, rows).coverage(coverage);
+        String grid = gen.gridText();
+        gridChunks = Itws9850Generator.chunks(grid, chunk);
+        gridBytes = grid.getBytes(StandardCharsets.US_ASCII);
+
+        String xml = gen.xml();
+        text = InMemoryMessages.text(xml);
+        bytes = InMemoryMessages.bytes(xml);
+        xif = ItwsConsumer.newXmlInputFactory();
+    }
+
+    @Benchmark
+    public ItwsConsumer.MappedRleBuilder rleFeedChars() {
+        ItwsConsumer.MappedRleBuilder b = new ItwsConsumer.MappedRleBuilder();
+        for (String c : gridChunks) b.feed(c);
+        b.finish();
+        return b;
+    }
+
+    @Benchmark
+    public ItwsConsumer.MappedRleBuilder rleFeedBytes() {
+        ItwsConsumer.MappedRleBuilder b = new ItwsConsumer.MappedRleBuilder();
+        b.feed(gridBytes, 0, gridBytes.length);
+        b.finish();
+        return b;
+    }
+
+    @Benchmark
+    public ItwsConsumer.Frame parseTextMessage() throws Exception {
+        return ItwsConsumer.parse9850(text, xif, Integer.MAX_VALUE, 0L);
+    }
+
+    @Benchmark
+    public ItwsConsumer.Frame parseBytesMessage() throws Exception {
+        bytes.reset();
+        return ItwsConsumer.parse9850(bytes, xif, Integer.MAX_VALUE, 0L);
+    }
+
+    @Benchmark
+    public long parseTextMessagePooled() throws Exception {
+        ItwsConsumer.Frame f = ItwsConsumer.parse9850(text, xif, Integer.MAX_VALUE, 0L, pool);
+        long cells = f.cellsTotal;
+        pool.release(f);
+        return cells;
+    }
+
+    @Benchmark
+    public long parseBytesMessagePooled() throws Exception {
+        bytes.reset();
+        ItwsConsumer.Frame f = ItwsConsumer.parse9850(bytes, xif, Integer.MAX_VALUE, 0L, pool);
+        long cells = f.cellsTotal;
+        pool.release(f);
+        return cells;
+    }
+
+    @Benchmark
+    public int readHeader() throws Exception {
+        return ItwsDecoders.readHeader(bytes, header, scratch, true).productId();
+    }
+}
@@ -0,0 +1,164 @@
+package dev.vstars;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact binary radar payload (opt-in: ITWS_PAYLOAD_FORMAT=binary), POSTed to the same
+ * /api/wx/radar endpoint with Content-Type {@value #CONTENT_TYPE}. Same content as the JSON
+ * payload; all integers big-endian.
+ *
+ * Payload:
+ *   "WXRB"            magic
+ *   u8  version       (= 1)
+ *   u8  frameCount
+ *   u16 levelsMask    bit i => level i active in newest frame
+ *   i64 updatedAtMs
+ *   str source
+ *   frameCount x { u32 frameLen, frame }
+ *
+ * Frame:
+ *   i64 receiverMs, itwsGenTimeMs, itwsExpTimeMs
+ *   i32 productId
+ *   str productName, site, airport, receivedAt
+ *   i32 rows, cols (plot dims)   str dimsSource
+ *   i32 nrows, ncols, gridMaxY, gridMaxX
+ *   i32 trpLatMicroDeg, trpLonMicroDeg, xOffsetM, yOffsetM, dxM, dyM, rotationMilliDeg
+ *   i64 cellsTotal   u8 maxLevel   i64 nonZeroCells   i32 itwsMaxPrecipLevel
+ *   i64 noCoverageCells, badCells, apCells, attenCells
+ *   u32 runCount, u32 runBytes, runs
+ *   u8  hasGeo   [u64 geometry fingerprint, i32 south, west, north, east (micro-degrees)]
+ *
+ * Readers skip to the end of each frame by frameLen, so fields appended after the runs (hasGeo,
+ * see {@link ItwsProjection}) do not break older ones.
+ *
+ * Run: one byte, low nibble = level; high nibble = count when 1..15, otherwise 0 and the
+ * count follows as an unsigned LEB128 varint. Runs are the same merged runs as cellsRle.
+ *
+ * str = u16 byte length + UTF-8.
+ */
+final class ItwsBinaryCodec {
+
+    static final String CONTENT_TYPE = "application/vnd.vstars.wx-radar";
+    static final byte[] MAGIC = {'W', 'X', 'R', 'B'};
+    static final int VERSION = 1;
+    private static final int FRAME_COUNT_OFFSET = 5; // after magic and version
+
+    private ItwsBinaryCodec() {}
+
+    // ---------------- Payload ----------------
+
+    static ItwsConsumer.Payload buildPayload(ItwsConsumer.FrameCache<ItwsConsumer.Frame> cache) {
+        int n = cache.size();
+        int activeMask = (n > 0) ? cache.get(0).activeMask : 0;
+
+        ByteArrayOutputStream bo = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bo)) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(n);
+            out.writeShort(activeMask & 0x7E);
+            out.writeLong(System.currentTimeMillis());
+            writeStr(out, "SWIM_ITWS");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        byte[][] parts = new byte[1 + n][];
+        parts[0] = bo.toByteArray();
+        long[] gen = new long[n];
+        for (int i = 0; i < n; i++) {
+            parts[1 + i] = cache.get(i).bin;
+            gen[i] = cache.get(i).itwsGenTimeMs;
+        }
+        return new ItwsConsumer.Payload(parts, parts.length, CONTENT_TYPE, -1, gen, m -> {
+            byte[][] p = Arrays.copyOf(parts, 1 + m);
+            p[0] = parts[0].clone();
+            p[0][FRAME_COUNT_OFFSET] = (byte) m;
+            return new ItwsConsumer.Payload(p, p.length, CONTENT_TYPE);
+        });
+    }
+
+    /** Encodes a frame once, right after parsing (length-prefixed, ready to be gathered). */
+    static byte[] encodeFrame(ItwsConsumer.Frame f) {
+        ByteArrayOutputStream bo = new ByteArrayOutputStream(f.runsLen + 256);
+        try (DataOutputStream out = new DataOutputStream(bo)) {
+            out.writeInt(0); // frameLen, patched below
+
+            out.writeLong(f.receiverMs);
+            out.writeLong(f.itwsGenTimeMs);
+            out.writeLong(f.itwsExpTimeMs);
+
+            out.writeInt(f.productId);
+            writeStr(out, f.productName);
+            writeStr(out, f.site);
+            writeStr(out, f.airport);
+            writeStr(out, f.receivedAt);
+
+            out.writeInt(f.plotRows);
+            out.writeInt(f.plotCols);
+            writeStr(out, f.dimsSource);
+            out.writeInt(f.rows);
+            out.writeInt(f.cols);
+            out.writeInt(f.gridMaxY);
+            out.writeInt(f.gridMaxX);
+
+            out.writeInt(f.trpLatMicroDeg);
+            out.writeInt(f.trpLonMicroDeg);
+            out.writeInt(f.xOffsetM);
+            out.writeInt(f.yOffsetM);
+            out.writeInt(f.dxM);
+            out.writeInt(f.dyM);
+            out.writeInt(f.rotationMilliDeg);
+
+            out.writeLong(f.cellsTotal);
+            out.writeByte(f.maxLevel);
+            out.writeLong(f.nonZeroCells);
+            out.writeInt(f.maxPrecipLevel);
+
+            out.writeLong(f.noCoverageCells);
+            out.writeLong(f.badCells);
+            out.writeLong(f.apCells);
+            out.writeLong(f.attenCells);
+
+            out.writeInt(f.runCount);
+            out.writeInt(f.runsLen);
+            out.write(f.runs, 0, f.runsLen);
+
+            ItwsProjection p = f.projection;
+            out.writeByte(p == null ? 0 : 1);
+            if (p != null) {
+                out.writeLong(p.fingerprint);
+                out.writeInt(microDeg(p.south));
+                out.writeInt(microDeg(p.west));
+                out.writeInt(microDeg(p.north));
+                out.writeInt(microDeg(p.east));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        byte[] b = bo.toByteArray();
+        int len = b.length - 4;
+        b[0] = (byte) (len >>> 24);
+        b[1] = (byte) (len >>> 16);
+        b[2] = (byte) (len >>> 8);
+        b[3] = (byte) len;
+        return b;
+    }
+
+    private static int microDeg(double deg) {
+        return (int) Math.round(deg * 1_000_000);
+    }
+
+    private static void writeStr(DataOutputStream out, String s) throws IOException {
+        byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        int n = Math.min(b.length, 0xFFFF);
+        out.writeShort(n);
+        out.write(b, 0, n);
+    }
+}
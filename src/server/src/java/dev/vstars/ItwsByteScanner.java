@@ -0,0 +1,298 @@
+package dev.vstars;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte-level fast path for 9850 BytesMessage bodies.
+ *
+ * Walks the UTF-8 bytes, read chunk by chunk into a reused buffer, with the same element logic
+ * as the StAX loop in {@link ItwsConsumer#parse9850}: element names are matched as bytes
+ * ({@link ItwsFields#id(byte[], int)}), small header fields are collected into a reusable byte
+ * buffer, and the prcp_grid_compressed text is fed to {@link ItwsConsumer.MappedRleBuilder}
+ * straight from the input bytes (no String/char[] per CHARACTERS event). One scanner per parse
+ * thread serves every message.
+ *
+ * Only a plain subset of XML is understood. {@link #scan} returns false (caller re-parses with
+ * StAX) on anything else: comments, CDATA, DOCTYPE, entity/char references, a non-UTF-8
+ * encoding, or a truncated document.
+ */
+final class ItwsByteScanner {
+
+    private static final int GRID_ID = ItwsFields.GRID;
+    private static final int NONE = -2;
+    private static final int OTHER = ItwsFields.OTHER;
+
+    private InputStream in;
+    private final byte[] buf; // reusable chunk buffer, refilled from `in`
+    private int pos, lim;
+
+    private final byte[] name = new byte[64];
+    private int nameLen;
+    private int term; // byte that ended the last name
+
+    private final byte[] text = new byte[1024];
+    private int textLen;
+
+    private static final byte[] ENCODING = ascii("encoding");
+    private static final byte[] UTF_8 = ascii("utf-8"), UTF8 = ascii("utf8"), US_ASCII = ascii("us-ascii");
+    private final byte[] pi = new byte[256]; // lower-cased processing instruction
+
+    private ItwsConsumer.MappedRleBuilder rle;
+    private boolean rejected;
+
+    ItwsByteScanner(byte[] buf) {
+        this.buf = buf;
+    }
+
+    /** The grid builder, or null if the document had no prcp_grid_compressed element. */
+    ItwsConsumer.MappedRleBuilder rle() { return rle; }
+
+    /** True if the last scan stopped early on a non-9850 header (see {@link ItwsConsumer#unwanted}). */
+    boolean rejected() { return rejected; }
+
+    /** Reads {@code in} into {@code f} and the grid builder; false means "not understood, use StAX". */
+    boolean scan(InputStream in, ItwsConsumer.Frame f) throws IOException {
+        this.in = in;
+        pos = lim = 0;
+        nameLen = textLen = 0;
+        rle = null;
+        rejected = false;
+        ItwsFields.Text value = ItwsConsumer.TEXT.get();
+
+        if (!prolog()) return false;
+
+        int current = NONE;
+        boolean small = false;
+        int depth = 0;          // open elements
+        boolean root = false;   // an element was seen
+
+        while (true) {
+            // character data up to the next '<'
+            if (current == GRID_ID) {
+                if (!feedGrid()) return false;
+            } else if (!readText(small)) {
+                return false;
+            }
+
+            int c = next();
+            // end of document: complete only once the root is closed (a cut grid would lose its last run)
+            if (c < 0) return root && depth == 0;
+            c = next();
+
+            if (c == '?') {
+                if (!skipPi()) return false;
+                continue;
+            }
+            if (c == '!' || c < 0) return false; // comment, CDATA, DOCTYPE
+
+            if (c == '/') {
+                int end = readName(next());
+                while (term != '>') {
+                    if (term < 0) return false;
+                    term = next();
+                }
+                if (--depth < 0) return false;
+
+                if (end == GRID_ID) {
+                    if (rle != null) rle.finish();
+                    current = NONE;
+                    small = false;
+                    continue;
+                }
+
+                if (small && current >= 0 && current == end) {
+                    value.setUtf8(text, 0, textLen);
+                    ItwsFields.apply(f, end, value);
+                    if (ItwsConsumer.unwanted(f, end)) return reject();
+                    if (rle != null) rle.setSpecials(f.badValue, f.noCoverage, f.attenuated, f.apDetected);
+                }
+
+                current = NONE;
+                small = false;
+                continue;
+            }
+
+            int id = readName(c);
+            if (nameLen == 0 && id == OTHER) return false;
+            int empty = skipAttributes();
+            if (empty < 0) return false;
+            if (empty == 0) depth++;
+            root = true;
+
+            current = id;
+            if (id == GRID_ID) {
+                if (ItwsConsumer.unwanted(f, id)) return reject();
+                small = false;
+                if (rle == null) rle = ItwsConsumer.RLE.get().reset();
+                rle.setSpecials(f.badValue, f.noCoverage, f.attenuated, f.apDetected);
+            } else {
+                small = true;
+                textLen = 0;
+            }
+
+            if (empty == 1) {
+                // <x/> is START + END with no text
+                if (id == GRID_ID) {
+                    rle.finish();
+                } else if (id >= 0) {
+                    value.clear();
+                    ItwsFields.apply(f, id, value);
+                    if (ItwsConsumer.unwanted(f, id)) return reject();
+                    if (rle != null) rle.setSpecials(f.badValue, f.noCoverage, f.attenuated, f.apDetected);
+                }
+                current = NONE;
+                small = false;
+            }
+        }
+    }
+
+    private boolean reject() {
+        rejected = true;
+        rle = null;
+        return true;
+    }
+
+    // ---------------- Character data ----------------
+
+    /** Feeds grid bytes to the builder chunk by chunk; stops before '<'. */
+    private boolean feedGrid() throws IOException {
+        while (true) {
+            if (pos == lim && !fill()) return true;
+            int start = pos;
+            final byte[] b = buf;
+            final int n = lim;
+            int i = start;
+            while (i < n) {
+                byte x = b[i];
+                if (x == '<') break;
+                if (x == '&') return false;
+                i++;
+            }
+            if (i > start) rle.feed(b, start, i - start);
+            pos = i;
+            if (i < n) return true;
+        }
+    }
+
+    /** Skips (or collects, for header fields) text up to '<'. */
+    private boolean readText(boolean collect) throws IOException {
+        while (true) {
+            if (pos == lim && !fill()) return true;
+            byte x = buf[pos];
+            if (x == '<') return true;
+            if (x == '&') return false;
+            if (collect && textLen < text.length) text[textLen++] = x;
+            pos++;
+        }
+    }
+
+    // ---------------- Markup ----------------
+
+    /** Reads a tag name starting with {@code c}; returns its id (OTHER if unknown). Local part only. */
+    private int readName(int c) throws IOException {
+        nameLen = 0;
+        boolean overflow = false;
+        while (c >= 0 && c != '>' && c != '/' && !isWs(c)) {
+            if (c == ':') {
+                nameLen = 0;
+                overflow = false;
+            } else if (nameLen < name.length) {
+                name[nameLen++] = (byte) c;
+            } else {
+                overflow = true;
+            }
+            c = next();
+        }
+        term = c;
+        return overflow ? OTHER : ItwsFields.id(name, nameLen);
+    }
+
+    /** Skips attributes after a start-tag name: 0 = '>', 1 = '/>', -1 = malformed/unsupported. */
+    private int skipAttributes() throws IOException {
+        int c = term;
+        while (true) {
+            if (c < 0) return -1;
+            if (c == '>') return 0;
+            if (c == '/') return (next() == '>') ? 1 : -1;
+            if (c == '"' || c == '\'') {
+                int q = c;
+                do {
+                    c = next();
+                    if (c < 0) return -1;
+                    if (c == '&') return -1;
+                } while (c != q);
+            }
+            c = next();
+        }
+    }
+
+    /** Skips a processing instruction; rejects XML declarations naming a non-UTF-8 encoding. */
+    private boolean skipPi() throws IOException {
+        int n = 0, prev = 0;
+        while (true) {
+            int c = next();
+            if (c < 0) return false;
+            if (c == '>' && prev == '?') break;
+            if (n < pi.length) pi[n++] = (byte) Character.toLowerCase(c);
+            prev = c;
+        }
+        int e = indexOf(pi, n, ENCODING, 0);
+        if (e < 0) return true;
+        int q = e + ENCODING.length;
+        while (q < n && pi[q] != '"' && pi[q] != '\'') q++;
+        if (q >= n) return false;
+        int qs = q + 1, qe = qs;
+        while (qe < n && pi[qe] != pi[q]) qe++;
+        if (qe >= n) return false;
+        while (qs < qe && pi[qs] <= ' ') qs++;
+        while (qe > qs && pi[qe - 1] <= ' ') qe--;
+        return equals(pi, qs, qe, UTF_8) || equals(pi, qs, qe, UTF8) || equals(pi, qs, qe, US_ASCII);
+    }
+
+    private static byte[] ascii(String s) { return s.getBytes(StandardCharsets.US_ASCII); }
+
+    private static int indexOf(byte[] b, int len, byte[] k, int from) {
+        outer:
+        for (int i = from; i + k.length <= len; i++) {
+            for (int j = 0; j < k.length; j++) {
+                if (b[i + j] != k[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean equals(byte[] b, int s, int e, byte[] k) {
+        return e - s == k.length && indexOf(b, e, k, s) == s;
+    }
+
+    /** Skips a UTF-8 BOM; rejects UTF-16/32 input. */
+    private boolean prolog() throws IOException {
+        if (pos == lim && !fill()) return true;
+        if (lim - pos >= 3 && buf[pos] == (byte) 0xEF && buf[pos + 1] == (byte) 0xBB && buf[pos + 2] == (byte) 0xBF) {
+            pos += 3;
+            return true;
+        }
+        byte b0 = buf[pos];
+        return b0 != 0 && b0 != (byte) 0xFE && b0 != (byte) 0xFF;
+    }
+
+    // ---------------- Input ----------------
+
+    private int next() throws IOException {
+        if (pos == lim && !fill()) return -1;
+        return buf[pos++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) return false;
+        pos = 0;
+        lim = n;
+        return true;
+    }
+
+    private static boolean isWs(int c) { return c == ' ' || c == '\n' || c == '\r' || c == '\t'; }
+}
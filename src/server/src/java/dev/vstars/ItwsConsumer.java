@@ -2,19 +2,35 @@ package dev.vstars;
 
 import com.solacesystems.jms.SolConnectionFactory;
 import com.solacesystems.jms.SolJmsUtility;
+import com.solacesystems.jms.SupportedProperty;
 
 import javax.jms.*;
 import javax.jms.Queue;
 import javax.xml.stream.*;
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
 
 /**
  * ITWS Precipitation TRACON (productID=9850) -> POST http://localhost:8080/api/wx/radar
@@ -24,29 +40,60 @@ import java.util.Locale;
  *   "updatedAtMs": ...,
  *   "source": "SWIM_ITWS",
  *   "levels": [1,3,4],                 // active levels in newest frame only
- *   "frames": [
+ *   "frames": [                        // newest first
  *     { "receiverMs":..., "itwsGenTimeMs":..., "grid":{...}, "cellsRle":"lvl,cnt ...", ... },
- *     { ... }, { ... }, { ... }
+ *     ...
  *   ]
  * }
  *
- * Frames cache: last 4 frames (newest first + 3 history).
+ * Cells are mapped RLE (levels 0..6, special/no-data => 0), with the geometry needed for
+ * plotting per frame. Each frame is encoded once, when parsed, and a payload only joins the
+ * cached fragments behind a new header. ITWS_PAYLOAD_FORMAT=binary carries the same content in
+ * the format of {@link ItwsBinaryCodec}; JSON frames can add level outlines next to or instead
+ * of the cells (ITWS_CONTOURS=with|only, {@link ItwsContours}), 2x/4x downsampled grids for the
+ * server's views (ITWS_LOD=true, {@link ItwsPyramid}), and with ITWS_DELTA=true history frames
+ * are sent as changes against their newer neighbour ({@link ItwsDelta}).
  *
- * Cells are mapped RLE (levels 0..6). Special/no-data => 0.
- * Geometry needed for plotting is included per frame.
+ * Frames: each site keeps its newest frames in a ring (CACHE_N = 4 by default). With
+ * ITWS_HISTORY_WINDOW_MS it keeps a loop of the frames still valid within that window instead,
+ * up to ITWS_HISTORY_FRAMES (default 240) and ITWS_HISTORY_MAX_MB (default 64) per site.
+ * A POST carries the newest frames that fit ITWS_POST_MAX_BYTES (default 32000000, under the
+ * Node server's 40 MB WX_POST_MAX_BYTES). ITWS_FRAME_POOL=true recycles evicted frames into the
+ * next parse (not with ITWS_SNAPSHOT_DIR, which keeps older histories).
  *
- * Reliability: ACK only after POST returns 2xx.
+ * Processing is staged (see {@link ItwsPipeline}): receive -> parse pool -> encode -> post, with
+ * ACKs released in receive order once the POSTs have returned 2xx. WX_POST_URLS=primary=...,
+ * standby=... posts to several servers, each with its own latest-wins queue and backoff, and
+ * ITWS_ACK_POLICY=all|any|quorum says how many must accept before an ACK (default all).
+ * Redelivered or duplicate frames are ACKed without being posted again, as are unchanged ones
+ * with ITWS_SKIP_UNCHANGED=true; every payload carries an Idempotency-Key. With
+ * ITWS_OUTBOX_DIR payloads are ACKed once spooled to disk instead ({@link ItwsOutbox}), and
+ * ITWS_SNAPSHOT_DIR restores and posts the history at startup ({@link ItwsSnapshot}).
+ *
+ * Sources: SCDS_QUEUE_ITWS=q1,q2,... are consumed over one connection, each on its own session
+ * and receive thread, and a failing one is restarted alone. Frames are cached and posted per
+ * site (?site= on the POST URL); ITWS_SITES=N90,PHL,... drops the others after a header-only
+ * read. ITWS_PRODUCTS=9850,... share the connection and parse pool, each with its own decoder
+ * ({@link ItwsDecoders}) and POST target (WX_POST_URL_&lt;productID&gt;); a message without a
+ * productID property is routed by its body's header ({@link ItwsHeader}). ITWS_JOURNAL records
+ * the raw messages and ITWS_REPLAY plays them back instead of the broker, optionally into
+ * ITWS_STUB_SINK.
+ *
+ * ITWS_SERVE_PORT answers GET /api/wx/radar from the same payloads with the whole loop, ETags,
+ * long polls and ?since= ({@link ItwsRadarServer}); ITWS_METRICS_PORT serves Prometheus text
+ * ({@link ItwsMetrics}). Both are off unless set.
  */
 public final class ItwsConsumer {
 
-    private static final int TARGET_PRODUCT_ID = 9850;
-    private static final int CACHE_N = 4;
+    static final int TARGET_PRODUCT_ID = 9850;
+    static final int CACHE_N = 4;
 
     public static void main(String[] args) throws Exception {
         Config cfg = Config.fromEnv();
 
         HttpClient http = HttpClient.newBuilder()
                 .connectTimeout(Duration.ofMillis(cfg.httpConnectTimeoutMs))
+                .version(cfg.httpVersion)
                 .build();
 
         SolConnectionFactory cf = SolJmsUtility.createConnectionFactory();
@@ -57,148 +104,284 @@ public final class ItwsConsumer {
         cf.setConnectRetries(5);
         cf.setConnectRetriesPerHost(3);
 
-        FrameCache cache = new FrameCache(CACHE_N);
+        if (cfg.metricsPort > 0) {
+            ItwsMetrics.serve(cfg.metricsPort);
+            System.out.println("Metrics: http://0.0.0.0:" + cfg.metricsPort + "/metrics");
+        }
+
+        if (cfg.replayPath != null) {
+            replay(cfg, http);
+            return;
+        }
+
+        ItwsJournal.Writer journal = (cfg.journalPath != null) ? new ItwsJournal.Writer(cfg.journalPath) : null;
+        ItwsStubSink sink = cfg.stubSink ? new ItwsStubSink(cfg.stubSinkPort, cfg.stubSinkDelayMs) : null;
 
         Connection conn = null;
-        Session session = null;
-        MessageConsumer consumer = null;
         try {
-            conn = cf.createConnection();
-            session = conn.createSession(false, Session.CLIENT_ACKNOWLEDGE);
-
-            Queue queue = session.createQueue(cfg.queueName);
-            consumer = session.createConsumer(queue);
+            // warm start: restored history is posted while the broker connection comes up
+            ItwsPipeline pipeline = new ItwsPipeline(cfg, http, journal);
+            pipeline.start();
 
+            // one connection for every site; each site gets its own session on it
+            conn = cf.createConnection();
             conn.start();
-            System.out.println("Connected. Consuming queue: " + cfg.queueName);
-            System.out.println("Posting to: " + cfg.postUrl);
-
-            XMLInputFactory xif = XMLInputFactory.newFactory();
-            trySet(xif, XMLInputFactory.SUPPORT_DTD, false);
-            trySet(xif, "javax.xml.stream.isSupportingExternalEntities", false);
-
-            long empty = 0;
-            long lastBeat = System.currentTimeMillis();
-
-            while (true) {
-                Message msg = consumer.receive(cfg.receiveTimeoutMs);
-                if (msg == null) {
-                    empty++;
-                    long now = System.currentTimeMillis();
-                    if (now - lastBeat >= cfg.heartbeatMs) {
-                        System.out.println("Waiting… (" + empty + " empty polls)");
-                        lastBeat = now;
-                    }
-                    continue;
-                }
-
-                boolean acked = false;
-                try {
-                    // Cheap gate: skip non-9850 quickly
-                    if (msg.propertyExists("productID")) {
-                        int pid = toInt(msg.getObjectProperty("productID"), -1);
-                        if (pid != TARGET_PRODUCT_ID) {
-                            msg.acknowledge();
-                            acked = true;
-                            continue;
-                        }
-                    }
-
-                    // Receiver timestamp for this frame
-                    long receiverMs = System.currentTimeMillis();
-
-                    Frame f = parse9850(msg, xif, cfg.maxXmlBytes, receiverMs);
-                    if (f == null || f.productId != TARGET_PRODUCT_ID || f.cellsRle == null) {
-                        msg.acknowledge();
-                        acked = true;
-                        continue;
-                    }
-
-                    // Add to cache (newest first)
-                    cache.push(f);
-
-                    // Build payload using cached frames
-                    byte[] json = buildPayloadJsonBytes(cache);
-
-                    if (cfg.printJson) {
-                        System.out.write(json);
-                        System.out.write('\n');
-                        System.out.flush();
-                    }
-
-                    postWithRetry(http, cfg.postUrl, cfg.ingestToken, json,
-                            cfg.httpRequestTimeoutMs, cfg.retrySleepMs);
-
-                    System.out.println("POST OK " + Instant.now()
-                            + " frames=" + cache.size()
-                            + " newestNonZero=" + f.nonZeroCells
-                            + " newestMaxLvl=" + f.maxLevel
-                            + " newestCells=" + f.cellsTotal
-                            + " newestPlot=" + f.plotCols + "x" + f.plotRows
-                            + " dimsSrc=" + f.dimsSource
-                    );
-
-                    msg.acknowledge();
-                    acked = true;
-
-                } catch (Exception e) {
-                    System.err.println("Error: " + e.getMessage());
-                    // No ACK on exception => redelivery (reliability)
-                } finally {
-                    if (!acked && cfg.ackOnException) {
-                        try { msg.acknowledge(); } catch (Exception ignored) {}
-                    }
-                }
+            System.out.println("Connected. Consuming queues: " + String.join(", ", cfg.queueNames));
+            System.out.println("Posting" + (cfg.binaryPayload ? " (binary)" : "")
+                    + " version=" + cfg.httpVersion
+                    + " encoding=" + (cfg.postEncoding == null ? "identity" : cfg.postEncoding)
+                    + " maxInFlight=" + cfg.httpMaxInFlight);
+            System.out.println(pipeline.describeLanes());
+            System.out.println("Pipeline: parseThreads=" + cfg.parseThreads
+                    + " parseQueue=" + cfg.parseQueueCapacity
+                    + " postQueue=" + cfg.postQueueCapacity
+                    + " coalesce=" + cfg.coalesce
+                    + " ackPolicy=" + cfg.ackPolicy.name().toLowerCase(Locale.ROOT));
+
+            if (journal != null) System.out.println("Journaling to: " + cfg.journalPath);
+
+            Connection c = conn;
+            Thread[] sites = new Thread[cfg.queueNames.length];
+            for (int i = 0; i < sites.length; i++) {
+                String q = cfg.queueNames[i];
+                sites[i] = ItwsPipeline.startVirtual("itws-site-" + q, () -> consumeSite(cfg, c, q, pipeline));
             }
+            for (Thread t : sites) t.join();
         } finally {
-            if (consumer != null) {
-                try { consumer.close(); } catch (JMSException ignored) {}
-            }
-            if (session != null) {
-                try { session.close(); } catch (JMSException ignored) {}
-            }
             if (conn != null) {
                 try { conn.close(); } catch (JMSException ignored) {}
             }
+            if (journal != null) journal.close();
+            if (sink != null) sink.close();
         }
     }
 
-    // ---------------- Cache (newest first) ----------------
+    /**
+     * Receive loop of one site (queue) on its own session. A failure closes only this site's
+     * session; it is reopened after ITWS_SITE_RESTART_MS while the other sites keep running.
+     * Messages it had not ACKed yet are redelivered by the broker.
+     */
+    private static void consumeSite(Config cfg, Connection conn, String queueName, ItwsPipeline pipeline) {
+        while (true) {
+            Session session = null;
+            MessageConsumer consumer = null;
+            try {
+                // Individual ACKs: the pipeline still holds later messages when it ACKs an earlier one,
+                // and plain CLIENT_ACKNOWLEDGE would ACK everything the session has delivered so far.
+                session = conn.createSession(false, SupportedProperty.SOL_CLIENT_ACKNOWLEDGE);
+                Queue queue = session.createQueue(queueName);
+                consumer = session.createConsumer(queue);
+
+                pipeline.run(consumer, queueName, () -> false);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                ItwsMetrics.SITE_RESTARTS.inc();
+                System.err.println("Site " + queueName + " failed: " + e
+                        + " (restarting in " + cfg.siteRestartMs + " ms)");
+            } finally {
+                if (consumer != null) {
+                    try { consumer.close(); } catch (JMSException ignored) {}
+                }
+                if (session != null) {
+                    try { session.close(); } catch (JMSException ignored) {}
+                }
+            }
 
-    private static final class FrameCache {
-        private final Frame[] buf;
-        private int size = 0;    // <= buf.length
+            try {
+                Thread.sleep(cfg.siteRestartMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
 
-        FrameCache(int n) { this.buf = new Frame[n]; }
+    /** Offline run: the journal replaces the broker; prints throughput/latency totals at the end. */
+    private static void replay(Config cfg, HttpClient http) throws Exception {
+        ItwsStubSink sink = cfg.stubSink ? new ItwsStubSink(cfg.stubSinkPort, cfg.stubSinkDelayMs) : null;
+        ItwsJournal.Replay replay = new ItwsJournal.Replay(cfg.replayPath, cfg.replaySpeed, cfg.replayLoops);
+        try {
+            System.out.println("Replaying: " + cfg.replayPath
+                    + " speed=" + (cfg.replaySpeed > 0 ? cfg.replaySpeed + "x" : "max")
+                    + " loops=" + cfg.replayLoops);
+            ItwsPipeline pipeline = new ItwsPipeline(cfg, http, null);
+            System.out.println("Posting" + (cfg.binaryPayload ? " (binary)" : "")
+                    + (sink != null ? " (stub sink)" : "") + ":");
+            System.out.println(pipeline.describeLanes());
+            long t0 = System.currentTimeMillis();
+            pipeline.run(replay, "replay", replay::exhausted);
+            // messages are ACKed once spooled: wait for the sinks too, but not on one that is down
+            if (cfg.outboxDir != null && !pipeline.awaitOutbox(60_000)) {
+                System.out.println("Outbox not drained: " + pipeline.outboxBacklog() + " bytes left for the next run");
+            }
+            long elapsed = System.currentTimeMillis() - t0;
+
+            System.out.println("Replay done: " + pipeline.summary(elapsed)
+                    + (sink != null ? " sink{requests=" + sink.requests() + " bytes=" + sink.bytes() + "}" : ""));
+        } finally {
+            replay.close();
+            if (sink != null) sink.close();
+        }
+    }
+
+    // ---------------- Cache (newest first) ----------------
+
+    /**
+     * A site's frame history as a ring buffer, newest at index 0; push and eviction are O(1).
+     * Bounded by count, and optionally by a time window (a frame stays while its validity,
+     * itwsExpTimeMs, reaches back into the window before the newest frame's generation time) and by
+     * the bytes its frames hold. The newest frame is never evicted.
+     */
+    static final class FrameCache<F> {
+        private final Object[] buf;
+        private final long[] bytes; // retained size of each slot, counted at push
+        private int head = -1;      // slot of the newest frame
+        private int size = 0;       // <= buf.length
+        private long retained = 0;
+
+        private final long windowMs, maxBytes; // 0 => unbounded
+        private final ToLongFunction<? super F> genMs, expMs, sizeOf; // null with count-only caches
+
+        FrameCache(int n) { this(n, 0, 0, null, null, null); }
+
+        FrameCache(int n, long windowMs, long maxBytes, ToLongFunction<? super F> genMs,
+                   ToLongFunction<? super F> expMs, ToLongFunction<? super F> sizeOf) {
+            this.buf = new Object[Math.max(1, n)];
+            this.bytes = new long[buf.length];
+            this.windowMs = (genMs == null) ? 0 : windowMs;
+            this.maxBytes = (sizeOf == null) ? 0 : maxBytes;
+            this.genMs = genMs;
+            this.expMs = expMs;
+            this.sizeOf = sizeOf;
+        }
 
-        void push(Frame f) {
-            // shift right by 1 (n is tiny = 4)
-            for (int i = Math.min(size, buf.length - 1); i >= 1; i--) {
-                buf[i] = buf[i - 1];
+        void push(F f) { push(f, null); }
+
+        /** Adds {@code f} as the newest frame, handing every frame that falls out to {@code evicted} (may be null). */
+        void push(F f, Consumer<? super F> evicted) {
+            if (size == buf.length) evictOldest(evicted);
+            head = (head + 1 == buf.length) ? 0 : head + 1;
+            buf[head] = f;
+            bytes[head] = (sizeOf == null) ? 0 : sizeOf.applyAsLong(f);
+            retained += bytes[head];
+            size++;
+            while (size > 1 && ((maxBytes > 0 && retained > maxBytes) || beforeWindow(get(size - 1)))) {
+                evictOldest(evicted);
             }
-            buf[0] = f;
-            if (size < buf.length) size++;
+        }
+
+        /** True if {@code f} was no longer valid when the window before the newest frame began; unknown times never are. */
+        private boolean beforeWindow(F f) {
+            if (windowMs <= 0) return false;
+            long newest = genMs.applyAsLong(get(0));
+            long end = expMs.applyAsLong(f);
+            if (end <= 0) end = genMs.applyAsLong(f);
+            return newest > 0 && end > 0 && end < newest - windowMs;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void evictOldest(Consumer<? super F> evicted) {
+            int slot = slot(size - 1);
+            F f = (F) buf[slot];
+            buf[slot] = null;
+            retained -= bytes[slot];
+            size--;
+            if (evicted != null) evicted.accept(f);
+        }
+
+        private int slot(int idx) {
+            int s = head - idx;
+            return (s < 0) ? s + buf.length : s;
         }
 
         int size() { return size; }
 
-        Frame get(int idx) { return buf[idx]; }
+        long retainedBytes() { return retained; }
+
+        @SuppressWarnings("unchecked")
+        F get(int idx) { return (F) buf[slot(idx)]; }
+    }
+
+    /**
+     * Free Frames for reuse (ITWS_FRAME_POOL): a frame comes back when it falls out of its site's
+     * FrameCache or turns out not to be a 9850 frame. Bounded; beyond that frames are left to GC.
+     */
+    static final class FramePool {
+        private final ArrayBlockingQueue<Frame> free;
+
+        FramePool(int capacity) { this.free = new ArrayBlockingQueue<>(Math.max(1, capacity)); }
+
+        Frame acquire() {
+            Frame f = free.poll();
+            return (f != null) ? f : new Frame();
+        }
+
+        void release(Frame f) {
+            f.reset();
+            free.offer(f);
+        }
+
+        int size() { return free.size(); }
     }
 
     // ---------------- Parse 9850 (streaming) ----------------
 
-    private static Frame parse9850(Message msg, XMLInputFactory xif, int maxBytes, long receiverMs) throws Exception {
-        InputStream in = extractXmlStream(msg, maxBytes);
-        if (in == null) return null;
+    static Frame parse9850(Message msg, XMLInputFactory xif, int maxBytes, long receiverMs) throws Exception {
+        return parse9850(msg, xif, maxBytes, receiverMs, null);
+    }
+
+    /** As above, taking the Frame from {@code pool} (null => a new one) and returning it there if unused. */
+    static Frame parse9850(Message msg, XMLInputFactory xif, int maxBytes, long receiverMs, FramePool pool) throws Exception {
+        if (msg instanceof BytesMessage bm) {
+            long len = bm.getBodyLength();
+            ItwsMetrics.MESSAGE_BYTES.record(len);
+            if (len > maxBytes) {
+                ItwsMetrics.OVERSIZED.inc();
+                System.err.println("WARN: rejecting BytesMessage of " + len + " bytes (ITWS_MAX_XML_BYTES=" + maxBytes + ")");
+                return null;
+            }
+
+            // fast path: scan the UTF-8 bytes chunk by chunk; StAX only if the scanner bails out
+            Frame f = newFrame(receiverMs, pool);
+            ItwsByteScanner scanner = SCANNER.get();
+            if (scanner.scan(BM_IN.get().reset(bm, maxBytes), f)) {
+                return scanner.rejected() ? reject(f, pool) : completeFrame(f, scanner.rle(), pool);
+            }
 
-        XMLStreamReader r = xif.createXMLStreamReader(in);
+            bm.reset();
+            f.reset();
+            f.receiverMs = receiverMs;
+            return parse9850(xif.createXMLStreamReader(BM_IN.get().reset(bm, maxBytes)), f, pool);
+        }
 
-        Frame f = new Frame();
-        f.receiverMs = receiverMs;
-        f.receivedAt = Instant.ofEpochMilli(receiverMs).toString();
+        if (msg instanceof TextMessage tm) {
+            String s = tm.getText();
+            if (s == null || s.isBlank()) return null;
+            // the limit is in bytes: measure the body as UTF-8, as it would arrive in a BytesMessage
+            long len = utf8Length(s);
+            ItwsMetrics.MESSAGE_BYTES.record(len);
+            if (len > maxBytes) {
+                ItwsMetrics.OVERSIZED.inc();
+                System.err.println("WARN: rejecting TextMessage of " + len + " UTF-8 bytes (ITWS_MAX_XML_BYTES=" + maxBytes + ")");
+                return null;
+            }
+            // StAX reads the chars in place: no byte[] re-encoding of the body
+            return parse9850(xif.createXMLStreamReader(new StringReader(s)), newFrame(receiverMs, pool), pool);
+        }
 
-        String current = null;
-        StringBuilder small = null;
+        return null;
+    }
+
+    private static Frame newFrame(long receiverMs, FramePool pool) {
+        Frame f = (pool != null) ? pool.acquire() : new Frame();
+        f.receiverMs = receiverMs; // receivedAt is formatted when the frame is encoded
+        return f;
+    }
+
+    private static Frame parse9850(XMLStreamReader r, Frame f, FramePool pool) throws Exception {
+        ItwsFields.Text small = TEXT.get();
+        int current = ItwsFields.OTHER;
+        boolean collect = false;
 
         MappedRleBuilder rle = null;
 
@@ -206,46 +389,100 @@ public final class ItwsConsumer {
             int ev = r.next();
 
             if (ev == XMLStreamConstants.START_ELEMENT) {
-                current = r.getLocalName();
-                if ("prcp_grid_compressed".equals(current)) {
-                    small = null;
-                    if (rle == null) rle = new MappedRleBuilder();
+                current = ItwsFields.id(r.getLocalName());
+                collect = current != ItwsFields.GRID;
+                small.clear();
+                if (!collect) {
+                    if (unwanted(f, current)) return reject(f, pool);
+                    if (rle == null) rle = RLE.get().reset();
                     rle.setSpecials(f.badValue, f.noCoverage, f.attenuated, f.apDetected);
-                } else {
-                    small = new StringBuilder(64);
                 }
 
             } else if (ev == XMLStreamConstants.CHARACTERS || ev == XMLStreamConstants.CDATA) {
-                if ("prcp_grid_compressed".equals(current)) {
-                    if (rle != null) rle.feed(r.getText());
-                } else if (small != null) {
-                    if (small.length() < 1024) small.append(r.getText());
+                // the parser's own char range: no String per event
+                if (current == ItwsFields.GRID) {
+                    if (rle != null) rle.feed(r.getTextCharacters(), r.getTextStart(), r.getTextLength());
+                } else if (collect) {
+                    small.append(r.getTextCharacters(), r.getTextStart(), r.getTextLength());
                 }
 
             } else if (ev == XMLStreamConstants.END_ELEMENT) {
-                String end = r.getLocalName();
+                int end = ItwsFields.id(r.getLocalName());
 
-                if ("prcp_grid_compressed".equals(end)) {
+                if (end == ItwsFields.GRID) {
                     if (rle != null) rle.finish();
-                    current = null;
-                    small = null;
+                    current = ItwsFields.OTHER;
+                    collect = false;
                     continue;
                 }
 
-                if (small != null && current != null && current.equals(end)) {
-                    String v = small.toString().trim();
-                    applyField(f, end, v);
+                if (collect && current >= 0 && current == end) {
+                    ItwsFields.apply(f, end, small);
+                    if (unwanted(f, end)) return reject(f, pool);
                     if (rle != null) rle.setSpecials(f.badValue, f.noCoverage, f.attenuated, f.apDetected);
                 }
 
-                current = null;
-                small = null;
+                current = ItwsFields.OTHER;
+                collect = false;
             }
         }
 
+        return completeFrame(f, rle, pool);
+    }
+
+    /**
+     * True once {@code f} is known not to be a 9850 frame: after product_msg_id, and at the start
+     * of the grid if product_msg_id has not been seen by then. Parsing stops there instead of
+     * reading the grid.
+     */
+    static boolean unwanted(Frame f, int id) {
+        return (id == ItwsFields.PRODUCT_ID || id == ItwsFields.GRID) && f.productId != TARGET_PRODUCT_ID;
+    }
+
+    /** UTF-8 length of {@code s} without encoding it; an unpaired surrogate counts as '?'. */
+    static long utf8Length(String s) {
+        final int n = s.length();
+        long len = n;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) continue;
+            if (c < 0x800) {
+                len += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                len += 2; // 4 bytes for the pair's 2 chars
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // encoded as a single '?' replacement byte
+            } else {
+                len += 2;
+            }
+        }
+        return len;
+    }
+
+    private static Frame reject(Frame f, FramePool pool) {
+        ItwsMetrics.FILTERED.inc();
+        if (pool != null) pool.release(f);
+        return null;
+    }
+
+    private static Frame completeFrame(Frame f, MappedRleBuilder rle, FramePool pool) {
+        Frame done = completeFrame(f, rle);
+        if (done == null && pool != null) pool.release(f);
+        return done;
+    }
+
+    private static Frame completeFrame(Frame f, MappedRleBuilder rle) {
         if (rle == null) return null;
 
         f.cellsRle = rle.outString();
+        // the builder is reused by this thread's next message: the frame keeps its own copy
+        int n = rle.runsLen();
+        if (f.runs == null || f.runs.length < n) f.runs = new byte[n];
+        System.arraycopy(rle.runs(), 0, f.runs, 0, n);
+        f.runsLen = n;
+        f.runCount = rle.runCount();
+        f.grid = ItwsRleGrid.copyOf(rle.grid(), f.grid);
         f.cellsTotal = rle.totalCells();
         f.maxLevel = rle.maxLevel();
         f.nonZeroCells = rle.nonZeroCells();
@@ -257,20 +494,27 @@ public final class ItwsConsumer {
         f.attenCells = rle.attenCells();
 
         // must be our product
-        if (f.productId != TARGET_PRODUCT_ID) return null;
+        if (f.productId != TARGET_PRODUCT_ID) {
+            ItwsMetrics.FILTERED.inc();
+            return null;
+        }
 
         // choose plotting dims robustly
         finalizePlotDims(f);
 
         if (f.plotRows <= 0 || f.plotCols <= 0) {
+            ItwsMetrics.DIMS_UNKNOWN.inc();
             System.err.println("WARN: cannot determine plot dims (cellsTotal=" + f.cellsTotal
                     + " nrows=" + f.rows + " ncols=" + f.cols
                     + " gridMaxY=" + f.gridMaxY + " gridMaxX=" + f.gridMaxX + ")");
             return null;
         }
+        f.grid.index(f.plotRows, f.plotCols);
+        f.projection = ItwsProjection.of(f);
 
         long expected = (long) f.plotRows * (long) f.plotCols;
         if (f.cellsTotal > 0 && expected > 0 && f.cellsTotal != expected) {
+            ItwsMetrics.DIMS_MISMATCH.inc();
             System.err.println("WARN: cellsTotal=" + f.cellsTotal
                     + " but plotRows*plotCols=" + expected
                     + " (dimsSource=" + f.dimsSource
@@ -279,9 +523,41 @@ public final class ItwsConsumer {
                     + ")");
         }
 
+        f.contentHash = contentHash(f);
         return f;
     }
 
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * 64-bit hash of what a frame shows: its packed runs, plot dims and geometry (not its times),
+     * eight run bytes per step. Never 0.
+     */
+    static long contentHash(Frame f) {
+        byte[] b = f.runs;
+        int n = (b == null) ? 0 : f.runsLen;
+        long h = 0x9E3779B97F4A7C15L ^ n;
+        int i = 0;
+        for (; i + 8 <= n; i += 8) h = mix(h ^ (long) LONGS.get(b, i));
+        long tail = 0;
+        for (; i < n; i++) tail = (tail << 8) | (b[i] & 0xFF);
+        h = mix(h ^ tail);
+
+        h = mix(h ^ ((long) f.plotRows << 32 | (f.plotCols & 0xFFFFFFFFL)));
+        h = mix(h ^ ((long) f.trpLatMicroDeg << 32 | (f.trpLonMicroDeg & 0xFFFFFFFFL)));
+        h = mix(h ^ ((long) f.xOffsetM << 32 | (f.yOffsetM & 0xFFFFFFFFL)));
+        h = mix(h ^ ((long) f.dxM << 32 | (f.dyM & 0xFFFFFFFFL)));
+        h = mix(h ^ f.rotationMilliDeg);
+        return (h == 0) ? 1 : h;
+    }
+
+    /** splitmix64 finalizer. */
+    static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
     /**
      * Decide the authoritative dimensions to reshape row-major cells.
      * Priority:
@@ -342,61 +618,18 @@ public final class ItwsConsumer {
         }
     }
 
-    private static void applyField(Frame f, String tag, String v) {
-        switch (tag) {
-            // identity
-            case "product_msg_id" -> f.productId = parseInt(v, -1);
-            case "product_msg_name" -> f.productName = v;
-            case "product_header_itws_sites" -> f.site = v;
-            case "product_header_airports" -> f.airport = v;
-
-            // ITWS times (recommended)
-            case "product_header_generation_time_seconds" -> f.genSec = parseLong(v, 0);
-            case "product_header_generation_time_milliseconds" -> f.genMs = parseInt(v, 0);
-            case "product_header_expiration_time_seconds" -> f.expSec = parseLong(v, 0);
-            case "product_header_expiration_time_milliseconds" -> f.expMs = parseInt(v, 0);
-
-            // geometry/grid
-            case "prcp_TRP_latitude" -> f.trpLatMicroDeg = parseInt(v, 0);
-            case "prcp_TRP_longitude" -> f.trpLonMicroDeg = parseInt(v, 0);
-
-            case "prcp_xoffset" -> f.xOffsetM = parseInt(v, 0);
-            case "prcp_yoffset" -> f.yOffsetM = parseInt(v, 0);
-
-            case "prcp_dx" -> f.dxM = parseInt(v, 0);
-            case "prcp_dy" -> f.dyM = parseInt(v, 0);
-
-            case "prcp_rotation" -> f.rotationMilliDeg = parseInt(v, 0);
-
-            case "prcp_nrows" -> f.rows = parseInt(v, -1);
-            case "prcp_ncols" -> f.cols = parseInt(v, -1);
-
-            // IMPORTANT: authoritative grid bounds (often match the compressed cells)
-            case "prcp_grid_max_x" -> f.gridMaxX = parseInt(v, -1);
-            case "prcp_grid_max_y" -> f.gridMaxY = parseInt(v, -1);
-
-            // special codes
-            case "prcp_attenuated" -> f.attenuated = parseInt(v, 7);
-            case "prcp_ap_detected" -> f.apDetected = parseInt(v, 8);
-            case "prcp_bad_value" -> f.badValue = parseInt(v, 9);
-            case "prcp_no_coverage" -> f.noCoverage = parseInt(v, 15);
-
-            // misc
-            case "prcp_grid_compression_encoding_scheme" -> f.compression = v;
-            case "prcp_grid_max_precip_level" -> f.maxPrecipLevel = parseInt(v, -1);
-
-            default -> { /* ignore */ }
-        }
-
-        if (f.genSec > 0) f.itwsGenTimeMs = f.genSec * 1000L + Math.max(0, f.genMs);
-        if (f.expSec > 0) f.itwsExpTimeMs = f.expSec * 1000L + Math.max(0, f.expMs);
-    }
-
     // ---------------- RLE: ITWS "val,cnt" -> mapped "lvl,cnt" ----------------
 
-    private static final class MappedRleBuilder {
+    static final class MappedRleBuilder {
         private final StringBuilder out = new StringBuilder(1 << 16);
 
+        // packed twin of `out` (see ItwsBinaryCodec): level nibble + inline/varint count
+        private byte[] runs = new byte[1 << 12];
+        private int runsLen = 0;
+        private int runCount = 0;
+        // the same merged runs with prefix-sum offsets, for random access (copied into the frame)
+        private final ItwsRleGrid grid = new ItwsRleGrid();
+
         private int bad = 9, noCov = 15, atten = 7, ap = 8;
 
         private long totalCells = 0;
@@ -420,6 +653,25 @@ public final class ItwsConsumer {
         private int lastLevel = -1;
         private int lastCount = 0;
 
+        /** Clears all state, keeping the buffers, for the next message on this thread. */
+        MappedRleBuilder reset() {
+            out.setLength(0);
+            runsLen = 0;
+            runCount = 0;
+            grid.clear();
+            bad = 9; noCov = 15; atten = 7; ap = 8;
+            totalCells = 0;
+            maxLevel = 0;
+            nonZero = 0;
+            noCovCells = 0; badCells = 0; apCells = 0; attenCells = 0;
+            activeMask = 0;
+            curVal = 0; curCnt = 0;
+            neg = false; inVal = false; inCnt = false; sawDigit = false;
+            lastLevel = -1;
+            lastCount = 0;
+            return this;
+        }
+
         void setSpecials(int bad, int noCov, int atten, int ap) {
             this.bad = bad;
             this.noCov = noCov;
@@ -430,53 +682,62 @@ public final class ItwsConsumer {
         void feed(String chunk) {
             if (chunk == null || chunk.isEmpty()) return;
             final int n = chunk.length();
+            for (int i = 0; i < n; i++) step(chunk.charAt(i));
+        }
 
-            for (int i = 0; i < n; i++) {
-                char c = chunk.charAt(i);
+        /** Same as {@link #feed(String)} over a char range (StAX getTextCharacters). */
+        void feed(char[] c, int off, int len) {
+            final int end = off + len;
+            for (int i = off; i < end; i++) step(c[i]);
+        }
 
-                if (!inVal && !inCnt) {
-                    if (isWs(c)) continue;
-                    inVal = true;
-                    neg = false;
-                    curVal = 0;
-                    curCnt = 0;
-                    sawDigit = false;
-                    if (c == '-') { neg = true; continue; }
-                    if (isDigit(c)) { sawDigit = true; curVal = c - '0'; continue; }
-                    inVal = false;
-                    continue;
-                }
+        /** Same as {@link #feed(String)} over ASCII/UTF-8 bytes (the grid text is digits, ',', '-' and whitespace). */
+        void feed(byte[] b, int off, int len) {
+            final int end = off + len;
+            for (int i = off; i < end; i++) step((char) (b[i] & 0xFF));
+        }
 
-                if (inVal) {
-                    if (isDigit(c)) {
-                        sawDigit = true;
-                        curVal = curVal * 10 + (c - '0');
-                        continue;
-                    }
-                    if (c == ',' && sawDigit) {
-                        if (neg) curVal = -curVal;
-                        inVal = false;
-                        inCnt = true;
-                        curCnt = 0;
-                        sawDigit = false;
-                        continue;
-                    }
+        private void step(char c) {
+            if (!inVal && !inCnt) {
+                if (isWs(c)) return;
+                inVal = true;
+                neg = false;
+                curVal = 0;
+                curCnt = 0;
+                sawDigit = false;
+                if (c == '-') { neg = true; return; }
+                if (isDigit(c)) { sawDigit = true; curVal = c - '0'; return; }
+                inVal = false;
+                return;
+            }
+
+            if (inVal) {
+                if (isDigit(c)) {
+                    sawDigit = true;
+                    curVal = curVal * 10 + (c - '0');
+                    return;
+                }
+                if (c == ',' && sawDigit) {
+                    if (neg) curVal = -curVal;
                     inVal = false;
-                    continue;
+                    inCnt = true;
+                    curCnt = 0;
+                    sawDigit = false;
+                    return;
                 }
+                inVal = false;
+                return;
+            }
 
-                if (inCnt) {
-                    if (isDigit(c)) {
-                        sawDigit = true;
-                        curCnt = curCnt * 10 + (c - '0');
-                        continue;
-                    }
-                    if (isWs(c) && sawDigit) {
-                        emitRun(curVal, curCnt);
-                        inCnt = false;
-                        continue;
-                    }
-                }
+            // inCnt
+            if (isDigit(c)) {
+                sawDigit = true;
+                curCnt = curCnt * 10 + (c - '0');
+                return;
+            }
+            if (isWs(c) && sawDigit) {
+                emitRun(curVal, curCnt);
+                inCnt = false;
             }
         }
 
@@ -525,6 +786,24 @@ public final class ItwsConsumer {
             if (lastLevel < 0 || lastCount <= 0) return;
             if (!out.isEmpty()) out.append(' ');
             out.append(lastLevel).append(',').append(lastCount);
+            packLast();
+        }
+
+        private void packLast() {
+            if (runs.length - runsLen < 6) runs = Arrays.copyOf(runs, runs.length * 2);
+            if (lastCount <= 15) {
+                runs[runsLen++] = (byte) ((lastCount << 4) | lastLevel);
+            } else {
+                runs[runsLen++] = (byte) lastLevel;
+                int c = lastCount;
+                while ((c & ~0x7F) != 0) {
+                    runs[runsLen++] = (byte) ((c & 0x7F) | 0x80);
+                    c >>>= 7;
+                }
+                runs[runsLen++] = (byte) c;
+            }
+            runCount++;
+            grid.add(lastLevel, lastCount);
         }
 
         private int mapLevel(int v) {
@@ -534,6 +813,10 @@ public final class ItwsConsumer {
         }
 
         String outString() { return out.toString(); }
+        byte[] runs() { return runs; }
+        int runsLen() { return runsLen; }
+        int runCount() { return runCount; }
+        ItwsRleGrid grid() { return grid; }
         long totalCells() { return totalCells; }
         int maxLevel() { return maxLevel; }
         long nonZeroCells() { return nonZero; }
@@ -550,11 +833,19 @@ public final class ItwsConsumer {
 
     // ---------------- JSON build: {levels:[..], frames:[..]} ----------------
 
-    private static byte[] buildPayloadJsonBytes(FrameCache cache) {
+    private static final byte[] FRAMES_SEP = {','};
+    private static final byte[] PAYLOAD_TAIL = {']', '}'};
+
+    /**
+     * Joins the cached per-frame fragments (see {@link #encodeFrameJson}) behind a small header.
+     * Only the header is serialized per update; the frames are shared, never copied. With
+     * {@code delta} history frames carry {@link ItwsDelta} cells instead of their RLE.
+     */
+    static Payload buildPayloadJson(FrameCache<Frame> cache, boolean delta) {
         // active levels in newest frame (cache[0])
         int activeMask = (cache.size() > 0) ? cache.get(0).activeMask : 0;
 
-        StringBuilder sb = new StringBuilder(1 << 18);
+        StringBuilder sb = new StringBuilder(128);
         sb.append('{');
 
         kvNum(sb, "updatedAtMs", System.currentTimeMillis()); sb.append(',');
@@ -573,17 +864,169 @@ public final class ItwsConsumer {
         sb.append("],");
 
         sb.append("\"frames\":[");
-        for (int i = 0; i < cache.size(); i++) {
-            if (i > 0) sb.append(',');
-            appendFrameJson(sb, cache.get(i));
+
+        int n = cache.size();
+        byte[][] parts = new byte[Math.max(2, 2 * n + 1)][];
+        int k = 0;
+        parts[k++] = sb.toString().getBytes(StandardCharsets.UTF_8);
+        long baseline = delta ? parts[0].length + PAYLOAD_TAIL.length + Math.max(0, n - 1) : -1;
+        for (int i = 0; i < n; i++) {
+            if (i > 0) parts[k++] = FRAMES_SEP;
+            parts[k++] = delta ? frameJson(cache, i) : cache.get(i).json;
+            if (delta) baseline += cache.get(i).json.length;
         }
-        sb.append("]");
+        parts[k++] = PAYLOAD_TAIL;
+
+        long[] gen = new long[n];
+        for (int i = 0; i < n; i++) gen[i] = cache.get(i).itwsGenTimeMs;
+        return new Payload(parts, k, "application/json", baseline, gen, m -> {
+            // header, the first m frames with their separators, tail
+            int used = (m == 0) ? 1 : 2 * m;
+            byte[][] p = Arrays.copyOf(parts, used + 1);
+            p[used] = PAYLOAD_TAIL;
+            return new Payload(p, used + 1, "application/json");
+        });
+    }
 
-        sb.append('}');
+    /** The JSON payload above, or its {@link ItwsBinaryCodec} form ({@code delta} is JSON only). */
+    static Payload buildPayload(FrameCache<Frame> cache, boolean binary, boolean delta) {
+        return binary ? ItwsBinaryCodec.buildPayload(cache) : buildPayloadJson(cache, delta);
+    }
+
+    /**
+     * Fragment of cache[i] in a delta payload: the keyframe's own fragment for i == 0, else the
+     * frame against cache[i-1] if that is shorter, decided on first use (the neighbour of a
+     * cached frame is fixed).
+     */
+    private static byte[] frameJson(FrameCache<Frame> cache, int i) {
+        Frame f = cache.get(i);
+        if (i == 0) return f.json;
+        Frame newer = cache.get(i - 1);
+        if (f.deltaBase != newer) {
+            String d = ItwsDelta.encode(f, newer);
+            byte[] enc = (d == null) ? null : encodeFrameJson(f, true, d);
+            // moving edges on every row can make the delta longer than the frame's own runs
+            f.deltaJson = (enc != null && enc.length < f.json.length) ? enc : null;
+            f.deltaBase = newer;
+        }
+        return (f.deltaJson != null) ? f.deltaJson : f.json;
+    }
+
+    /**
+     * Encodes a frame once, right after parsing; the bytes are immutable from then on. JSON frames
+     * also carry level outlines (see {@link ItwsContours}) unless mode is OFF, and with
+     * {@code lod} their {@link ItwsPyramid}.
+     */
+    static void encodeFrame(Frame f, boolean binary, ItwsContours.Mode contours, double tolerance, boolean lod) {
+        if (f.receivedAt.isEmpty()) f.receivedAt = Instant.ofEpochMilli(f.receiverMs).toString();
+        if (binary) {
+            f.bin = ItwsBinaryCodec.encodeFrame(f);
+            return;
+        }
+        boolean cells = true;
+        if (contours != ItwsContours.Mode.OFF) {
+            f.contours = ItwsContours.toJson(f, tolerance);
+            // without usable outlines the cells are still sent
+            cells = contours != ItwsContours.Mode.ONLY || f.contours == null;
+        }
+        if (lod) f.lod = ItwsPyramid.toJson(f);
+        f.json = encodeFrameJson(f, cells, null);
+    }
+
+    /** One frame's JSON fragment; {@code delta} (see {@link ItwsDelta}) replaces cellsRle when not null. */
+    static byte[] encodeFrameJson(Frame f, boolean cells, String delta) {
+        int rle = !cells ? 0 : (delta != null) ? delta.length() : (f.cellsRle == null) ? 0 : f.cellsRle.length();
+        int outlines = (f.contours == null) ? 0 : f.contours.length();
+        int pyramid = (f.lod == null) ? 0 : f.lod.length();
+        StringBuilder sb = new StringBuilder(rle + outlines + pyramid + 1024);
+        appendFrameJson(sb, f, cells, delta);
         return sb.toString().getBytes(StandardCharsets.UTF_8);
     }
 
-    private static void appendFrameJson(StringBuilder sb, Frame f) {
+    /** A request body held as a list of shared byte fragments (gathered on send). */
+    static final class Payload {
+        private final byte[][] parts;
+        private final int count;
+        final long length;
+        final String contentType;
+        // size of the same payload with every frame as full cellsRle; -1 when this is that payload
+        final long baselineLength;
+        // generation time of each frame, newest first, and the payload of the first k of them;
+        // null => cannot be cut (see since)
+        private final long[] frameGenMs;
+        private final IntFunction<Payload> cut;
+
+        Payload(byte[][] parts, int count, String contentType) {
+            this(parts, count, contentType, -1);
+        }
+
+        Payload(byte[][] parts, int count, String contentType, long baselineLength) {
+            this(parts, count, contentType, baselineLength, null, null);
+        }
+
+        Payload(byte[][] parts, int count, String contentType, long baselineLength,
+                long[] frameGenMs, IntFunction<Payload> cut) {
+            long len = 0;
+            for (int i = 0; i < count; i++) len += parts[i].length;
+            this.parts = parts;
+            this.count = count;
+            this.length = len;
+            this.contentType = contentType;
+            this.baselineLength = baselineLength;
+            this.frameGenMs = frameGenMs;
+            this.cut = cut;
+        }
+
+        /**
+         * The leading frames generated after {@code sinceMs}, as a payload of their own (this one
+         * when that is all of them). A prefix, so a delta frame keeps the newer frame it refers to.
+         */
+        Payload since(long sinceMs) {
+            if (frameGenMs == null) return this;
+            int k = 0;
+            while (k < frameGenMs.length && frameGenMs[k] > sinceMs) k++;
+            return head(k);
+        }
+
+        /** The payload of the newest {@code k} frames (this one when that is all of them). */
+        Payload head(int k) {
+            return (frameGenMs == null || k >= frameGenMs.length) ? this : cut.apply(Math.max(0, k));
+        }
+
+        /** Frames in this payload; -1 when it cannot be cut. */
+        int frameCount() { return (frameGenMs == null) ? -1 : frameGenMs.length; }
+
+        /**
+         * How many of the newest frames fit in {@code maxBytes}: all of them when the payload does
+         * (or cannot be cut, or maxBytes is 0), else the longest prefix that does, at least one.
+         */
+        int framesWithin(long maxBytes) {
+            int n = frameCount();
+            if (n < 0 || maxBytes <= 0 || length <= maxBytes) return n;
+            int lo = 1, hi = n - 1; // head(lo) is kept even if it does not fit
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (cut.apply(mid).length <= maxBytes) lo = mid; else hi = mid - 1;
+            }
+            return lo;
+        }
+
+        HttpRequest.BodyPublisher publisher() {
+            HttpRequest.BodyPublisher[] pubs = new HttpRequest.BodyPublisher[count];
+            for (int i = 0; i < count; i++) pubs[i] = HttpRequest.BodyPublishers.ofByteArray(parts[i]);
+            return HttpRequest.BodyPublishers.concat(pubs);
+        }
+
+        int partCount() { return count; }
+
+        byte[] part(int i) { return parts[i]; }
+
+        void writeTo(OutputStream out) throws IOException {
+            for (int i = 0; i < count; i++) out.write(parts[i]);
+        }
+    }
+
+    private static void appendFrameJson(StringBuilder sb, Frame f, boolean cells, String delta) {
         double trpLatDeg = f.trpLatMicroDeg / 1_000_000.0;
         double trpLonDeg = f.trpLonMicroDeg / 1_000_000.0;
         double rotDeg = f.rotationMilliDeg / 1000.0;
@@ -631,8 +1074,31 @@ public final class ItwsConsumer {
         kvNumD(sb, "rotationDeg", rotDeg);
         sb.append("},");
 
-        kvStr(sb, "cellsEncoding", "rle"); sb.append(',');
-        kvStr(sb, "cellsRle", f.cellsRle == null ? "" : f.cellsRle); sb.append(',');
+        if (f.projection != null) {
+            sb.append("\"geo\":");
+            f.projection.appendJson(sb);
+            sb.append(',');
+        }
+
+        // numbers only: appended without an esc() pass
+        if (f.contours != null) {
+            sb.append("\"contours\":").append(f.contours).append(',');
+        }
+        if (f.lod != null) {
+            sb.append("\"lod\":").append(f.lod).append(',');
+        }
+
+        if (cells && delta != null) {
+            kvStr(sb, "cellsEncoding", "delta"); sb.append(',');
+            // digits, '=', commas and spaces only
+            sb.append("\"cellsDelta\":\"").append(delta).append('"'); sb.append(',');
+        } else if (cells) {
+            kvStr(sb, "cellsEncoding", "rle"); sb.append(',');
+            // digits, commas and spaces only: appended without an esc() pass
+            sb.append("\"cellsRle\":\"").append(f.cellsRle == null ? "" : f.cellsRle).append('"'); sb.append(',');
+        } else {
+            kvStr(sb, "cellsEncoding", "contours"); sb.append(',');
+        }
 
         kvNum(sb, "cellsTotal", f.cellsTotal); sb.append(',');
         kvNum(sb, "maxLevel", f.maxLevel); sb.append(',');
@@ -667,7 +1133,7 @@ public final class ItwsConsumer {
         sb.append('"').append(esc(k)).append('"').append(':').append(Double.toString(v));
     }
 
-    private static String esc(String s) {
+    static String esc(String s) {
         if (s == null) return "";
         StringBuilder out = new StringBuilder(s.length() + 8);
         for (int i = 0; i < s.length(); i++) {
@@ -686,80 +1152,74 @@ public final class ItwsConsumer {
 
     private static String nz(String s) { return (s == null) ? "" : s; }
 
-    // ---------------- POST with retry ----------------
+    // ---------------- JMS/XML helpers ----------------
 
-    private static void postWithRetry(
-            HttpClient http,
-            URI url,
-            String token,
-            byte[] json,
-            int requestTimeoutMs,
-            int retrySleepMs
-    ) throws InterruptedException {
-        while (true) {
+    // per parse thread; the scanner reads each BytesMessage through this one buffer
+    private static final ThreadLocal<byte[]> SCAN_BUF = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+    private static final ThreadLocal<byte[]> CHUNK_BUF = ThreadLocal.withInitial(() -> new byte[16 * 1024]);
+    // parse state reused message after message by each parse thread
+    private static final ThreadLocal<ItwsByteScanner> SCANNER = ThreadLocal.withInitial(() -> new ItwsByteScanner(SCAN_BUF.get()));
+    private static final ThreadLocal<BytesMessageInputStream> BM_IN = ThreadLocal.withInitial(BytesMessageInputStream::new);
+    static final ThreadLocal<MappedRleBuilder> RLE = ThreadLocal.withInitial(MappedRleBuilder::new);
+    static final ThreadLocal<ItwsFields.Text> TEXT = ThreadLocal.withInitial(ItwsFields.Text::new);
+
+    /**
+     * Streams a BytesMessage body via readBytes in fixed chunks (no full-body copy).
+     * Reading past maxBytes fails instead of truncating the XML.
+     */
+    static final class BytesMessageInputStream extends InputStream {
+        private BytesMessage bm;
+        private long maxBytes;
+        private final byte[] chunk = CHUNK_BUF.get(); // for reads that don't start at offset 0
+        private long total = 0;
+
+        /** Points the stream at the start of {@code bm}'s body. */
+        BytesMessageInputStream reset(BytesMessage bm, long maxBytes) {
+            this.bm = bm;
+            this.maxBytes = maxBytes;
+            this.total = 0;
+            return this;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
             try {
-                HttpRequest req = HttpRequest.newBuilder(url)
-                        .timeout(Duration.ofMillis(requestTimeoutMs))
-                        .header("Content-Type", "application/json")
-                        .header("X-WX-Token", token)   // <- ITWS_INGEST_TOKEN
-                        .POST(HttpRequest.BodyPublishers.ofByteArray(json))
-                        .build();
-
-                HttpResponse<String> resp = http.send(req, HttpResponse.BodyHandlers.ofString());
-                int code = resp.statusCode();
-                if (code >= 200 && code < 300) return;
-
-                System.err.println("WX POST failed: HTTP " + code);
-                System.err.println("Response: " + resp.body());
-            } catch (Exception e) {
-                System.err.println("WX POST error: " + e.getMessage());
+                int n;
+                if (off == 0) {
+                    n = bm.readBytes(b, len);
+                } else {
+                    n = bm.readBytes(chunk, Math.min(len, chunk.length));
+                    if (n > 0) System.arraycopy(chunk, 0, b, off, n);
+                }
+                if (n <= 0) return -1;
+                total += n;
+                if (total > maxBytes) throw new IOException("message body exceeds " + maxBytes + " bytes");
+                return n;
+            } catch (JMSException e) {
+                throw new IOException(e.getMessage(), e);
             }
-            Thread.sleep(Math.max(50, retrySleepMs));
         }
-    }
 
-    // ---------------- JMS/XML helpers ----------------
-
-    private static InputStream extractXmlStream(Message msg, int maxBytes) throws JMSException {
-        if (msg instanceof TextMessage tm) {
-            String s = tm.getText();
-            if (s == null || s.isBlank()) return null;
-            if (s.length() > maxBytes) s = s.substring(0, maxBytes);
-            return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+        @Override
+        public int read() throws IOException {
+            int n = read(chunk, 0, 1);
+            return (n <= 0) ? -1 : (chunk[0] & 0xFF);
         }
-        if (msg instanceof BytesMessage bm) {
-            long len = bm.getBodyLength();
-            int take = (int) Math.min(len, (long) maxBytes);
-            byte[] out = new byte[take];
-            bm.readBytes(out);
-            return new ByteArrayInputStream(out);
-        }
-        return null;
     }
 
-    private static void trySet(XMLInputFactory f, String prop, Object value) {
-        try { f.setProperty(prop, value); } catch (Exception ignored) {}
+    static XMLInputFactory newXmlInputFactory() {
+        XMLInputFactory xif = XMLInputFactory.newFactory();
+        trySet(xif, XMLInputFactory.SUPPORT_DTD, false);
+        trySet(xif, "javax.xml.stream.isSupportingExternalEntities", false);
+        return xif;
     }
 
-    private static int parseInt(String s, int def) {
-        if (s == null || s.isBlank()) return def;
-        try {
-            int dot = s.indexOf('.');
-            String t = (dot >= 0) ? s.substring(0, dot) : s;
-            return Integer.parseInt(t.trim());
-        } catch (Exception e) { return def; }
-    }
-
-    private static long parseLong(String s, long def) {
-        if (s == null || s.isBlank()) return def;
-        try {
-            int dot = s.indexOf('.');
-            String t = (dot >= 0) ? s.substring(0, dot) : s;
-            return Long.parseLong(t.trim());
-        } catch (Exception e) { return def; }
+    private static void trySet(XMLInputFactory f, String prop, Object value) {
+        try { f.setProperty(prop, value); } catch (Exception ignored) {}
     }
 
-    private static int toInt(Object o, int def) {
+    static int toInt(Object o, int def) {
         if (o == null) return def;
         if (o instanceof Number n) return n.intValue();
         try { return Integer.parseInt(String.valueOf(o).trim()); } catch (Exception e) { return def; }
@@ -796,7 +1256,7 @@ public final class ItwsConsumer {
 
     // ---------------- Data model ----------------
 
-    private static final class Frame {
+    static final class Frame {
         // receive time
         long receiverMs = 0;
         String receivedAt = "";
@@ -858,39 +1318,199 @@ public final class ItwsConsumer {
         long badCells = 0;
         long apCells = 0;
         long attenCells = 0;
+
+        // packed runs (same runs as cellsRle)
+        byte[] runs;
+        int runsLen = 0;
+        int runCount = 0;
+
+        // the runs indexed by row (ItwsRleGrid), for cell and row lookups without a full decode
+        ItwsRleGrid grid;
+
+        // shared grid-to-lat/lon table of this frame's geometry; null => no usable geometry
+        ItwsProjection projection;
+
+        // grid and geometry hash (see contentHash), 0 => not computed
+        long contentHash;
+
+        // encoded fragment in the configured payload format (set once after parse,
+        // shared by every payload carrying this frame)
+        byte[] json;
+        byte[] bin;
+
+        // level outlines as a JSON array (ITWS_CONTOURS), folded into json; null => none
+        String contours;
+
+        // downsampled grids as a JSON array (ITWS_LOD), folded into json; null => none
+        String lod;
+
+        // fragment with cells as an ItwsDelta against deltaBase (ITWS_DELTA), built on the
+        // encode thread when the frame is first sent as history; null => send json
+        byte[] deltaJson;
+        Frame deltaBase;
+
+        /** Approximate heap held by this frame once encoded: its text, buffers and fragments. */
+        long retainedBytes() {
+            long n = 512 + cellsRle.length();
+            if (runs != null) n += runs.length;
+            if (grid != null) n += grid.retainedBytes();
+            if (json != null) n += json.length;
+            if (bin != null) n += bin.length;
+            if (deltaJson != null) n += deltaJson.length;
+            if (contours != null) n += contours.length();
+            if (lod != null) n += lod.length();
+            return n;
+        }
+
+        /** Back to the state of a new Frame, keeping the runs buffers (see {@link FramePool}). */
+        void reset() {
+            receiverMs = 0;
+            receivedAt = "";
+            productId = -1;
+            productName = "";
+            site = "";
+            airport = "";
+            genSec = 0;
+            genMs = 0;
+            expSec = 0;
+            expMs = 0;
+            itwsGenTimeMs = 0;
+            itwsExpTimeMs = 0;
+            trpLatMicroDeg = 0;
+            trpLonMicroDeg = 0;
+            xOffsetM = 0;
+            yOffsetM = 0;
+            dxM = 0;
+            dyM = 0;
+            rotationMilliDeg = 0;
+            rows = -1;
+            cols = -1;
+            gridMaxX = -1;
+            gridMaxY = -1;
+            plotRows = -1;
+            plotCols = -1;
+            dimsSource = "";
+            attenuated = 7;
+            apDetected = 8;
+            badValue = 9;
+            noCoverage = 15;
+            compression = "";
+            maxPrecipLevel = -1;
+            cellsRle = "";
+            cellsTotal = 0;
+            maxLevel = 0;
+            nonZeroCells = 0;
+            activeMask = 0;
+            noCoverageCells = 0;
+            badCells = 0;
+            apCells = 0;
+            attenCells = 0;
+            runsLen = 0;
+            runCount = 0;
+            if (grid != null) grid.clear();
+            projection = null;
+            contentHash = 0;
+            json = null;
+            bin = null;
+            contours = null;
+            lod = null;
+            deltaJson = null;
+            deltaBase = null;
+        }
     }
 
     // ---------------- Config ----------------
 
-    private static final class Config {
-        final String jmsUrl, vpn, username, password, queueName;
+    static final class Config {
+        final String jmsUrl, vpn, username, password;
+        final String[] queueNames;   // one site per queue
 
-        final URI postUrl;
+        final List<Sink> sinks;      // POST targets, each with its own queue and retries; first => primary
+        final ItwsPipeline.AckPolicy ackPolicy;
         final String ingestToken;
 
+        final int[] products;             // ITWS productIDs to decode, each with its own lane
+        final Map<Integer, URI> postUrls; // per-product overrides of the POST target
+        final Set<String> sites;          // product_header_itws_sites to keep; empty => all
+
         final int receiveTimeoutMs, heartbeatMs;
         final int maxXmlBytes;
 
         final boolean printJson;
-        final int httpConnectTimeoutMs, httpRequestTimeoutMs, retrySleepMs;
+        final int httpConnectTimeoutMs, httpRequestTimeoutMs, retrySleepMs, retryMaxMs;
 
         final boolean ackOnException;
 
-        private Config(String jmsUrl, String vpn, String username, String password, String queueName,
-                       URI postUrl, String ingestToken,
+        final int parseThreads, parseQueueCapacity, postQueueCapacity, ackFlushMs;
+        final int siteRestartMs;
+        final boolean coalesce;
+        final boolean binaryPayload;
+        final ItwsContours.Mode contours;
+        final double contourTolerance; // cells
+        final boolean deltaFrames;
+        final boolean lodPyramid;
+        final boolean framePool;
+        final boolean skipUnchanged;
+
+        final HttpClient.Version httpVersion;
+        final int httpMaxInFlight;
+        final String postEncoding; // null => identity
+        final int postCompressionLevel;
+
+        final Path journalPath;  // null => no capture
+        final Path replayPath;   // null => consume the broker
+        final double replaySpeed; // 0 => as fast as possible
+        final int replayLoops;
+        final boolean stubSink;
+        final int stubSinkPort, stubSinkDelayMs;
+
+        final int metricsPort; // 0 => no metrics endpoint
+
+        final Path snapshotDir; // null => no warm-start snapshots
+
+        final Path outboxDir;   // null => ACK on delivery
+        final int outboxSyncMs;
+
+        final int servePort;    // 0 => no embedded radar server
+
+        final int historyFrames;   // per site, 1..255
+        final int historyWindowMs; // 0 => count only
+        final int historyMaxMb;    // per site, 0 => unbounded
+        final long postMaxBytes;   // per POST body, 0 => unbounded
+
+        private Config(String jmsUrl, String vpn, String username, String password, String[] queueNames,
+                       List<Sink> sinks, ItwsPipeline.AckPolicy ackPolicy, String ingestToken,
+                       int[] products, Map<Integer, URI> postUrls, Set<String> sites,
                        int receiveTimeoutMs, int heartbeatMs, int maxXmlBytes,
                        boolean printJson,
-                       int httpConnectTimeoutMs, int httpRequestTimeoutMs, int retrySleepMs,
-                       boolean ackOnException) {
+                       int httpConnectTimeoutMs, int httpRequestTimeoutMs, int retrySleepMs, int retryMaxMs,
+                       boolean ackOnException,
+                       int parseThreads, int parseQueueCapacity, int postQueueCapacity, int ackFlushMs,
+                       int siteRestartMs,
+                       boolean coalesce, boolean binaryPayload,
+                       ItwsContours.Mode contours, double contourTolerance,
+                       boolean deltaFrames, boolean lodPyramid, boolean framePool,
+                       boolean skipUnchanged,
+                       HttpClient.Version httpVersion, int httpMaxInFlight,
+                       String postEncoding, int postCompressionLevel,
+                       Path journalPath, Path replayPath, double replaySpeed, int replayLoops,
+                       boolean stubSink, int stubSinkPort, int stubSinkDelayMs,
+                       int metricsPort, Path snapshotDir, Path outboxDir, int outboxSyncMs, int servePort,
+                       int historyFrames, int historyWindowMs, int historyMaxMb, long postMaxBytes) {
             this.jmsUrl = jmsUrl;
             this.vpn = vpn;
             this.username = username;
             this.password = password;
-            this.queueName = queueName;
+            this.queueNames = queueNames;
 
-            this.postUrl = postUrl;
+            this.sinks = sinks;
+            this.ackPolicy = ackPolicy;
             this.ingestToken = ingestToken;
 
+            this.products = products;
+            this.postUrls = postUrls;
+            this.sites = sites;
+
             this.receiveTimeoutMs = receiveTimeoutMs;
             this.heartbeatMs = heartbeatMs;
             this.maxXmlBytes = maxXmlBytes;
@@ -899,26 +1519,109 @@ public final class ItwsConsumer {
             this.httpConnectTimeoutMs = httpConnectTimeoutMs;
             this.httpRequestTimeoutMs = httpRequestTimeoutMs;
             this.retrySleepMs = retrySleepMs;
+            this.retryMaxMs = retryMaxMs;
 
             this.ackOnException = ackOnException;
+
+            this.parseThreads = parseThreads;
+            this.parseQueueCapacity = parseQueueCapacity;
+            this.postQueueCapacity = postQueueCapacity;
+            this.ackFlushMs = ackFlushMs;
+            this.siteRestartMs = siteRestartMs;
+            this.coalesce = coalesce;
+            this.binaryPayload = binaryPayload;
+            this.contours = contours;
+            this.contourTolerance = contourTolerance;
+            this.deltaFrames = deltaFrames;
+            this.lodPyramid = lodPyramid;
+            this.framePool = framePool;
+            this.skipUnchanged = skipUnchanged;
+
+            this.httpVersion = httpVersion;
+            this.httpMaxInFlight = httpMaxInFlight;
+            this.postEncoding = postEncoding;
+            this.postCompressionLevel = postCompressionLevel;
+
+            this.journalPath = journalPath;
+            this.replayPath = replayPath;
+            this.replaySpeed = replaySpeed;
+            this.replayLoops = replayLoops;
+            this.stubSink = stubSink;
+            this.stubSinkPort = stubSinkPort;
+            this.stubSinkDelayMs = stubSinkDelayMs;
+
+            this.metricsPort = metricsPort;
+
+            this.snapshotDir = snapshotDir;
+
+            this.outboxDir = outboxDir;
+            this.outboxSyncMs = outboxSyncMs;
+
+            this.servePort = servePort;
+
+            this.historyFrames = historyFrames;
+            this.historyWindowMs = historyWindowMs;
+            this.historyMaxMb = historyMaxMb;
+            this.postMaxBytes = postMaxBytes;
         }
 
         static Config fromEnv() {
-            String url = must("SCDS_JMS_URL_ITWS");
-            String vpn = must("SCDS_VPN_ITWS");
-            String user = must("SCDS_USERNAME");
-            String pass = must("SCDS_PASSWORD");
-            String q = must("SCDS_QUEUE_ITWS");
-
-            // Required token for your API
-            String token = must("ITWS_INGEST_TOKEN");
+            // offline replay of a captured journal: no broker settings needed
+            Path replayPath = pathOrNull(System.getenv("ITWS_REPLAY"));
+            boolean replay = replayPath != null;
+
+            // local stand-in for the POST target (see ItwsStubSink)
+            boolean stubSink = parseBoolOrDefault(System.getenv("ITWS_STUB_SINK"), false);
+            int stubPort = parseIntOrDefault(System.getenv("ITWS_STUB_SINK_PORT"), 18080);
+            int stubDelay = parseIntOrDefault(System.getenv("ITWS_STUB_SINK_DELAY_MS"), 0);
+
+            String url = replay ? envOrEmpty("SCDS_JMS_URL_ITWS") : must("SCDS_JMS_URL_ITWS");
+            String vpn = replay ? envOrEmpty("SCDS_VPN_ITWS") : must("SCDS_VPN_ITWS");
+            String user = replay ? envOrEmpty("SCDS_USERNAME") : must("SCDS_USERNAME");
+            String pass = replay ? envOrEmpty("SCDS_PASSWORD") : must("SCDS_PASSWORD");
+            // comma-separated: one site (receive thread + session) per queue, all on one connection
+            String q = replay ? envOrEmpty("SCDS_QUEUE_ITWS") : must("SCDS_QUEUE_ITWS");
+            String[] queues = Arrays.stream(q.split(","))
+                    .map(String::trim)
+                    .filter(v -> !v.isEmpty())
+                    .distinct()
+                    .toArray(String[]::new);
+
+            // Required token for your API (the stub sink doesn't check it)
+            String token = stubSink ? envOrEmpty("ITWS_INGEST_TOKEN") : must("ITWS_INGEST_TOKEN");
 
             // default requested endpoint
             String postRaw = System.getenv("WX_POST_URL");
-            URI postUrl = (postRaw == null || postRaw.isBlank())
+            URI postUrl = stubSink
+                    ? URI.create("http://127.0.0.1:" + stubPort + "/api/wx/radar")
+                    : (postRaw == null || postRaw.isBlank())
                     ? URI.create("http://localhost:8080/api/wx/radar")
                     : URI.create(postRaw.trim());
 
+            // several servers: WX_POST_URLS=primary=http://a/api/wx/radar,standby=http://b/api/wx/radar
+            List<Sink> sinks = stubSink ? List.of(new Sink(sinkName(postUrl), postUrl))
+                    : parseSinks(System.getenv("WX_POST_URLS"), postUrl);
+
+            // "all" (default) | "any" | "quorum": sinks that must have a frame before its message is ACKed
+            ItwsPipeline.AckPolicy ackPolicy = ItwsPipeline.AckPolicy.parse(System.getenv("ITWS_ACK_POLICY"));
+
+            // products on the queue to decode; the rest are ACKed and dropped
+            int[] products = parseProducts(System.getenv("ITWS_PRODUCTS"));
+            Map<Integer, URI> postUrls = new HashMap<>();
+            if (!stubSink) {
+                for (int id : products) {
+                    String u = System.getenv("WX_POST_URL_" + id);
+                    if (u != null && !u.isBlank()) postUrls.put(id, URI.create(u.trim()));
+                }
+            }
+
+            // ITWS sites to keep (comma-separated); messages of other sites are ACKed and dropped
+            String sl = System.getenv("ITWS_SITES");
+            Set<String> sites = (sl == null) ? Set.of() : Arrays.stream(sl.split(","))
+                    .map(String::trim)
+                    .filter(v -> !v.isEmpty())
+                    .collect(Collectors.toUnmodifiableSet());
+
             int rto = parseIntOrDefault(System.getenv("ITWS_RECEIVE_TIMEOUT_MS"), 1000);
             int hb  = parseIntOrDefault(System.getenv("ITWS_HEARTBEAT_MS"), 5000);
             int max = parseIntOrDefault(System.getenv("ITWS_MAX_XML_BYTES"), 32 * 1024 * 1024);
@@ -928,11 +1631,178 @@ public final class ItwsConsumer {
             int cto = parseIntOrDefault(System.getenv("HTTP_CONNECT_TIMEOUT_MS"), 1500);
             int hto = parseIntOrDefault(System.getenv("HTTP_REQUEST_TIMEOUT_MS"), 5000);
             int rs  = parseIntOrDefault(System.getenv("HTTP_RETRY_SLEEP_MS"), 200);
+            int rmx = parseIntOrDefault(System.getenv("HTTP_RETRY_MAX_MS"), 30_000);
 
             boolean ackOnEx = parseBoolOrDefault(System.getenv("ITWS_ACK_ON_EXCEPTION"), false);
 
-            return new Config(url, vpn, user, pass, q, postUrl, token,
-                    rto, hb, max, printJson, cto, hto, rs, ackOnEx);
+            // pipeline stages
+            int cpus = Runtime.getRuntime().availableProcessors();
+            int pth = parseIntOrDefault(System.getenv("ITWS_PARSE_THREADS"), Math.max(1, Math.min(4, cpus - 1)));
+            int pq  = parseIntOrDefault(System.getenv("ITWS_PARSE_QUEUE"), 32);
+            int oq  = parseIntOrDefault(System.getenv("ITWS_POST_QUEUE"), 4);
+            int af  = parseIntOrDefault(System.getenv("ITWS_ACK_FLUSH_MS"), 100);
+            boolean coalesce = parseBoolOrDefault(System.getenv("ITWS_COALESCE"), false);
+            int siteRestart = parseIntOrDefault(System.getenv("ITWS_SITE_RESTART_MS"), 5000);
+
+            // "json" (default) | "binary"
+            String fmt = System.getenv("ITWS_PAYLOAD_FORMAT");
+            boolean binary = fmt != null && fmt.trim().equalsIgnoreCase("binary");
+
+            // "off" (default) | "with" (next to cellsRle) | "only" (instead of cellsRle); JSON only
+            ItwsContours.Mode contours = ItwsContours.parseMode(System.getenv("ITWS_CONTOURS"));
+            double contourTol = parseDouble(System.getenv("ITWS_CONTOUR_TOLERANCE"), 0.75);
+
+            // history frames as changes against their newer neighbour; JSON with cells only
+            boolean delta = parseBoolOrDefault(System.getenv("ITWS_DELTA"), false);
+
+            // 2x/4x max-level downsampled grids next to the cells; JSON only
+            boolean lod = parseBoolOrDefault(System.getenv("ITWS_LOD"), false);
+
+            // reuse evicted frames (and their runs buffers) for new messages
+            boolean pool = parseBoolOrDefault(System.getenv("ITWS_FRAME_POOL"), false);
+
+            // ACK without posting a frame whose grid equals its site's newest one
+            boolean skipUnchanged = parseBoolOrDefault(System.getenv("ITWS_SKIP_UNCHANGED"), false);
+
+            // "2" (default; h2 via ALPN on https, h2c upgrade attempt on http) | "1.1"
+            String hv = System.getenv("HTTP_VERSION");
+            HttpClient.Version version = (hv != null && hv.trim().startsWith("1"))
+                    ? HttpClient.Version.HTTP_1_1
+                    : HttpClient.Version.HTTP_2;
+            int inFlight = parseIntOrDefault(System.getenv("HTTP_MAX_IN_FLIGHT"), 1);
+
+            // "identity" (default) | "gzip" | "deflate"
+            String enc = System.getenv("ITWS_POST_ENCODING");
+            enc = (enc == null) ? "" : enc.trim().toLowerCase(Locale.ROOT);
+            String postEncoding = (enc.equals("gzip") || enc.equals("deflate")) ? enc : null;
+            int level = parseIntOrDefault(System.getenv("ITWS_POST_COMPRESSION_LEVEL"), 1);
+
+            // capture raw messages while consuming the broker
+            Path journalPath = pathOrNull(System.getenv("ITWS_JOURNAL"));
+
+            // "1" (default, recorded pace) | "10" / "10x" | "0" / "max"
+            double speed = parseSpeed(System.getenv("ITWS_REPLAY_SPEED"));
+            int loops = parseIntOrDefault(System.getenv("ITWS_REPLAY_LOOPS"), 1);
+
+            // Prometheus text on http://host:port/metrics
+            int metricsPort = parseIntOrDefault(System.getenv("ITWS_METRICS_PORT"), 0);
+
+            // FrameCache snapshots, rewritten after each delivered POST and reloaded at startup
+            Path snapshotDir = pathOrNull(System.getenv("ITWS_SNAPSHOT_DIR"));
+
+            // spool payloads to disk and ACK once they are forced there, not once a sink has them
+            Path outboxDir = pathOrNull(System.getenv("ITWS_OUTBOX_DIR"));
+            int outboxSync = parseIntOrDefault(System.getenv("ITWS_OUTBOX_SYNC_MS"), 20);
+
+            // GET the newest payloads from the consumer itself (see ItwsRadarServer)
+            int servePort = parseIntOrDefault(System.getenv("ITWS_SERVE_PORT"), 0);
+
+            // frames kept per site: CACHE_N, or a loop of the last ITWS_HISTORY_WINDOW_MS
+            // (binary payloads count frames in a u8)
+            int window = Math.max(0, parseIntOrDefault(System.getenv("ITWS_HISTORY_WINDOW_MS"), 0));
+            int historyFrames = parseIntOrDefault(System.getenv("ITWS_HISTORY_FRAMES"), window > 0 ? 240 : CACHE_N);
+            historyFrames = Math.max(1, Math.min(255, historyFrames));
+            int historyMaxMb = Math.max(0, parseIntOrDefault(System.getenv("ITWS_HISTORY_MAX_MB"), 64));
+            // a POST drops its oldest frames to fit: keep this under the sink's own limit (the
+            // Node server's WX_POST_MAX_BYTES, 40 MB by default), or every post of a long loop is
+            // rejected and retried, and its messages are never ACKed
+            long postMaxBytes = Math.max(0, parseIntOrDefault(System.getenv("ITWS_POST_MAX_BYTES"), 32_000_000));
+
+            return new Config(url, vpn, user, pass, queues, sinks, ackPolicy, token, products, postUrls, sites,
+                    rto, hb, max, printJson, cto, hto, rs, rmx, ackOnEx,
+                    pth, pq, oq, af, siteRestart, coalesce, binary, contours, contourTol, delta, lod, pool, skipUnchanged,
+                    version, inFlight, postEncoding, level,
+                    journalPath, replayPath, speed, loops,
+                    stubSink, stubPort, stubDelay,
+                    metricsPort, snapshotDir, outboxDir, outboxSync, servePort,
+                    historyFrames, window, historyMaxMb, postMaxBytes);
+        }
+
+        /** A POST target; {@code name} labels its log lines. */
+        record Sink(String name, URI url) {}
+
+        /**
+         * POST target of a product on {@code sink}: the sink's URL for 9850 and its sibling path
+         * named after the decoder for the others (/api/wx/radar -> /api/wx/name).
+         * WX_POST_URL_&lt;productID&gt; overrides the primary sink's target.
+         */
+        URI postUrl(Sink sink, int productId, String name) {
+            URI u = (sink == sinks.get(0)) ? postUrls.get(productId) : null;
+            if (u != null) return u;
+            return (productId == TARGET_PRODUCT_ID) ? sink.url() : sink.url().resolve(name);
+        }
+
+        /** Comma-separated [name=]url entries; unnamed ones are named host:port. None => {@code fallback}. */
+        private static List<Sink> parseSinks(String s, URI fallback) {
+            List<Sink> sinks = new ArrayList<>();
+            if (s != null) {
+                for (String e : s.split(",")) {
+                    e = e.trim();
+                    if (e.isEmpty()) continue;
+                    int eq = e.indexOf('=');
+                    boolean named = eq > 0 && e.indexOf(':') > eq;
+                    URI u = URI.create(named ? e.substring(eq + 1).trim() : e);
+                    String name = named ? e.substring(0, eq).trim() : sinkName(u);
+                    for (Sink k : sinks) {
+                        if (k.name().equals(name)) throw new IllegalArgumentException("Duplicate sink name in WX_POST_URLS: " + name);
+                    }
+                    sinks.add(new Sink(name, u));
+                }
+            }
+            if (sinks.isEmpty()) sinks.add(new Sink(sinkName(fallback), fallback));
+            return List.copyOf(sinks);
+        }
+
+        private static String sinkName(URI u) {
+            return (u.getPort() < 0) ? u.getHost() : u.getHost() + ":" + u.getPort();
+        }
+
+        private static int[] parseProducts(String s) {
+            if (s == null || s.isBlank()) return new int[] {TARGET_PRODUCT_ID};
+            // a typo must not take the consumer down: skip it and keep the rest
+            int[] ids = Arrays.stream(s.split(","))
+                    .map(String::trim)
+                    .filter(v -> !v.isEmpty())
+                    .mapToInt(v -> {
+                        try {
+                            int id = Integer.parseInt(v);
+                            if (id < 0) throw new NumberFormatException(v);
+                            return id;
+                        } catch (NumberFormatException e) {
+                            System.err.println("WARN: ignoring invalid ITWS_PRODUCTS entry '" + v + "'");
+                            return -1;
+                        }
+                    })
+                    .filter(id -> id >= 0)
+                    .distinct()
+                    .toArray();
+            if (ids.length == 0) {
+                System.err.println("WARN: no valid ITWS_PRODUCTS entries, using " + TARGET_PRODUCT_ID);
+                return new int[] {TARGET_PRODUCT_ID};
+            }
+            return ids;
+        }
+
+        private static double parseSpeed(String s) {
+            if (s == null || s.isBlank()) return 1.0;
+            String v = s.trim().toLowerCase(Locale.ROOT);
+            if (v.equals("max")) return 0;
+            if (v.endsWith("x")) v = v.substring(0, v.length() - 1);
+            try { return Math.max(0, Double.parseDouble(v)); } catch (Exception e) { return 1.0; }
+        }
+
+        private static double parseDouble(String s, double def) {
+            if (s == null || s.isBlank()) return def;
+            try { return Double.parseDouble(s.trim()); } catch (Exception e) { return def; }
+        }
+
+        private static Path pathOrNull(String s) {
+            return (s == null || s.isBlank()) ? null : Path.of(s.trim());
+        }
+
+        private static String envOrEmpty(String k) {
+            String v = System.getenv(k);
+            return (v == null) ? "" : v;
         }
 
         private static int parseIntOrDefault(String s, int def) {
@@ -0,0 +1,318 @@
+package dev.vstars;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Precipitation outlines per level, traced once on the server (opt-in: ITWS_CONTOURS=with|only).
+ *
+ * For each level L (1..6) present in the frame the grid is thresholded at "level &gt;= L" and traced with
+ * marching squares over the cell centres (edge midpoints, saddles split), so the outlines of
+ * higher levels nest inside lower ones. Rings are simplified with Douglas-Peucker
+ * (ITWS_CONTOUR_TOLERANCE, in cells) and projected to lat/lon with the frame's {@link ItwsProjection},
+ * the same offsets, dx/dy and rotation the client uses for cells.
+ *
+ * JSON, inside the frame's grid object:
+ *
+ *   "contours":[{"level":1,"rings":[[lat,lon,lat,lon,...],...]},...]
+ *
+ * Rings are closed implicitly (last vertex != first); holes are separate rings, so fill with
+ * the even-odd rule.
+ */
+final class ItwsContours {
+
+    enum Mode { OFF, WITH_CELLS, ONLY }
+
+    // lattice buffers are sized by the grid, so each parse thread keeps and reuses one
+    private static final ThreadLocal<Tracer> TRACER = new ThreadLocal<>();
+
+    private ItwsContours() {}
+
+    static Mode parseMode(String s) {
+        if (s == null) return Mode.OFF;
+        return switch (s.trim().toLowerCase(Locale.ROOT)) {
+            case "with", "true", "1", "yes" -> Mode.WITH_CELLS;
+            case "only" -> Mode.ONLY;
+            default -> Mode.OFF;
+        };
+    }
+
+    /** The "contours" JSON array for {@code f}, or null if the frame has no usable grid. */
+    static String toJson(ItwsConsumer.Frame f, double tolerance) {
+        int rows = f.plotRows, cols = f.plotCols;
+        ItwsProjection proj = f.projection;
+        if (rows <= 0 || cols <= 0 || f.grid == null || proj == null) return null;
+
+        byte[] grid = f.grid.toRaster();
+        Tracer tracer = TRACER.get();
+        if (tracer == null || tracer.rows != rows || tracer.cols != cols) {
+            tracer = new Tracer(rows, cols);
+            TRACER.set(tracer);
+        }
+
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append('[');
+        boolean firstLevel = true;
+        for (int lvl = 1; lvl <= 6; lvl++) {
+            // nested outlines: a level's area includes every cell at a higher level, so a level
+            // without cells of its own would only repeat the next one
+            if ((f.activeMask & (1 << lvl)) == 0) continue;
+
+            boolean open = false;
+            tracer.trace(grid, lvl);
+            for (int r = 0; r < tracer.ringCount; r++) {
+                int off = tracer.ringStart[r];
+                int len = tracer.ringStart[r + 1] - off;
+                if (len < 3) continue;
+                // a ring smaller than the tolerance (e.g. one cell) is kept as traced, not dropped
+                if (simplify(tracer.xs, tracer.ys, off, len, tolerance, tracer.keep) < 3) {
+                    Arrays.fill(tracer.keep, 0, len, true);
+                }
+
+                if (!open) {
+                    if (!firstLevel) sb.append(',');
+                    sb.append("{\"level\":").append(lvl).append(",\"rings\":[");
+                    open = true;
+                    firstLevel = false;
+                } else {
+                    sb.append(',');
+                }
+                sb.append('[');
+                boolean first = true;
+                for (int i = 0; i < len; i++) {
+                    if (!tracer.keep[i]) continue;
+                    if (!first) sb.append(',');
+                    proj.append(sb, tracer.xs[off + i], tracer.ys[off + i]);
+                    first = false;
+                }
+                sb.append(']');
+            }
+            if (open) sb.append("]}");
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+    // ---------------- Marching squares ----------------
+
+    /**
+     * Traces the iso-lines of one threshold. Samples are the cell centres, padded with a ring of
+     * zeros so every outline closes. Crossing points sit on lattice edges and are numbered:
+     * horizontal edges first ((rows+2) x (cols+1)), then vertical ones ((rows+1) x (cols+2)).
+     * Each crossing belongs to exactly two segments, so rings are walked through neighbour links.
+     */
+    private static final class Tracer {
+        final int rows, cols;
+        final int hCount;
+        final int[] nb1, nb2;
+        int[] touched = new int[1024]; // crossings set in this pass, to reset cheaply
+        int touchedLen;
+        private final int[] cross = new int[4];
+
+        // rings of the last pass, in sample coordinates (row, col of cell centres)
+        double[] xs = new double[1024], ys = new double[1024];
+        int[] ringStart = new int[64];
+        int ringCount;
+        int pointCount;
+        boolean[] keep = new boolean[1024];
+
+        Tracer(int rows, int cols) {
+            this.rows = rows;
+            this.cols = cols;
+            this.hCount = (rows + 2) * (cols + 1);
+            int total = hCount + (rows + 1) * (cols + 2);
+            this.nb1 = new int[total];
+            this.nb2 = new int[total];
+            Arrays.fill(nb1, -1);
+            Arrays.fill(nb2, -1);
+        }
+
+        // sample (r, c) in padded coordinates: 0 and rows+1 / cols+1 are the zero border
+        private boolean in(byte[] grid, int lvl, int r, int c) {
+            if (r <= 0 || c <= 0 || r > rows || c > cols) return false;
+            return grid[(r - 1) * cols + (c - 1)] >= lvl;
+        }
+
+        private int h(int r, int c) { return r * (cols + 1) + c; }
+        private int v(int r, int c) { return hCount + r * (cols + 2) + c; }
+
+        void trace(byte[] grid, int lvl) {
+            for (int i = 0; i < touchedLen; i++) {
+                nb1[touched[i]] = -1;
+                nb2[touched[i]] = -1;
+            }
+            touchedLen = 0;
+
+            // squares with top-left sample (r, c)
+            for (int r = 0; r <= rows; r++) {
+                boolean bl = in(grid, lvl, r + 1, 0);
+                boolean tl = in(grid, lvl, r, 0);
+                for (int c = 0; c <= cols; c++) {
+                    boolean tr = in(grid, lvl, r, c + 1);
+                    boolean br = in(grid, lvl, r + 1, c + 1);
+                    if (tl == tr && tr == br && br == bl) {
+                        tl = tr;
+                        bl = br;
+                        continue;
+                    }
+
+                    // crossed edges, clockwise from the top
+                    int k = 0;
+                    if (tl != tr) cross[k++] = h(r, c);
+                    if (tr != br) cross[k++] = v(r, c + 1);
+                    if (br != bl) cross[k++] = h(r + 1, c);
+                    if (bl != tl) cross[k++] = v(r, c);
+
+                    if (k == 2) {
+                        link(cross[0], cross[1]);
+                    } else if (tl) {
+                        // saddle with TL and BR inside: keep them apart
+                        link(cross[0], cross[3]);
+                        link(cross[1], cross[2]);
+                    } else {
+                        link(cross[0], cross[1]);
+                        link(cross[2], cross[3]);
+                    }
+                    tl = tr;
+                    bl = br;
+                }
+            }
+
+            collectRings();
+        }
+
+        private void link(int a, int b) {
+            attach(a, b);
+            attach(b, a);
+        }
+
+        private void attach(int p, int q) {
+            if (nb1[p] < 0) {
+                nb1[p] = q;
+                if (touchedLen == touched.length) touched = Arrays.copyOf(touched, touched.length * 2);
+                touched[touchedLen++] = p;
+            } else {
+                nb2[p] = q;
+            }
+        }
+
+        private void collectRings() {
+            ringCount = 0;
+            pointCount = 0;
+            ringStart[0] = 0;
+
+            for (int i = 0; i < touchedLen; i++) {
+                int start = touched[i];
+                if (nb1[start] < 0) continue; // already walked
+
+                int prev = start, cur = nb1[start];
+                addPoint(start);
+                nb1[start] = -1; // walked; nb2 is reset with the rest on the next pass
+                while (cur != start && cur >= 0) {
+                    addPoint(cur);
+                    int next = (nb1[cur] == prev) ? nb2[cur] : nb1[cur];
+                    nb1[cur] = -1;
+                    prev = cur;
+                    cur = next;
+                }
+
+                if (ringCount + 2 > ringStart.length) ringStart = Arrays.copyOf(ringStart, ringStart.length * 2);
+                ringStart[++ringCount] = pointCount;
+            }
+            if (keep.length < pointCount) keep = new boolean[xs.length];
+        }
+
+        private void addPoint(int id) {
+            if (pointCount == xs.length) {
+                xs = Arrays.copyOf(xs, xs.length * 2);
+                ys = Arrays.copyOf(ys, ys.length * 2);
+            }
+            // padded sample (r, c) is cell (r - 1, c - 1); crossings sit halfway between samples
+            if (id < hCount) {
+                int r = id / (cols + 1), c = id % (cols + 1);
+                ys[pointCount] = r - 1;
+                xs[pointCount] = c - 0.5;
+            } else {
+                int k = id - hCount;
+                int r = k / (cols + 2), c = k % (cols + 2);
+                ys[pointCount] = r - 0.5;
+                xs[pointCount] = c - 1;
+            }
+            pointCount++;
+        }
+    }
+
+    // ---------------- Douglas-Peucker ----------------
+
+    /**
+     * Marks the vertices of the closed ring {@code xs/ys[off, off + n)} to keep in
+     * {@code keep[0, n)}; returns how many. The ring is split at its first vertex and the vertex
+     * farthest from it, and each half is simplified on its own.
+     */
+    static int simplify(double[] xs, double[] ys, int off, int n, double tol, boolean[] keep) {
+        if (tol <= 0 || n < 4) {
+            Arrays.fill(keep, 0, n, true);
+            return n;
+        }
+        Arrays.fill(keep, 0, n, false);
+
+        int far = 0;
+        double best = -1;
+        for (int i = 1; i < n; i++) {
+            double dx = xs[off + i] - xs[off], dy = ys[off + i] - ys[off];
+            double d = dx * dx + dy * dy;
+            if (d > best) {
+                best = d;
+                far = i;
+            }
+        }
+        keep[0] = true;
+        keep[far] = true;
+
+        double tol2 = tol * tol;
+        int[] stack = new int[64];
+        int sp = 0;
+        stack[sp++] = 0;
+        stack[sp++] = far;
+        stack[sp++] = far;
+        stack[sp++] = n; // index n wraps to vertex 0
+
+        while (sp > 0) {
+            int b = stack[--sp], a = stack[--sp];
+            if (b - a < 2) continue;
+            double ax = xs[off + a], ay = ys[off + a];
+            double bx = xs[off + b % n], by = ys[off + b % n];
+            double ex = bx - ax, ey = by - ay;
+            double len2 = ex * ex + ey * ey;
+
+            int idx = -1;
+            double max = tol2;
+            for (int i = a + 1; i < b; i++) {
+                double px = xs[off + i] - ax, py = ys[off + i] - ay;
+                double d;
+                if (len2 == 0) {
+                    d = px * px + py * py;
+                } else {
+                    double cross = px * ey - py * ex;
+                    d = cross * cross / len2;
+                }
+                if (d > max) {
+                    max = d;
+                    idx = i;
+                }
+            }
+            if (idx < 0) continue;
+
+            keep[idx] = true;
+            if (sp + 4 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+            stack[sp++] = a;
+            stack[sp++] = idx;
+            stack[sp++] = idx;
+            stack[sp++] = b;
+        }
+
+        int kept = 0;
+        for (int i = 0; i < n; i++) if (keep[i]) kept++;
+        return kept;
+    }
+}
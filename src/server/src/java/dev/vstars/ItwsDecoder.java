@@ -0,0 +1,64 @@
+package dev.vstars;
+
+import javax.jms.Message;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Decodes one ITWS product (keyed by productID, see {@link ItwsDecoders}).
+ *
+ * The pipeline gives every decoder its own lane: a FrameCache of decoded frames (newest first)
+ * per {@link #site}, an in-order encode thread and a POST target. {@link #decode} and
+ * {@link #encode} run on the parse pool shared by all products; {@link #buildPayload} runs on
+ * the lane's encode thread.
+ */
+interface ItwsDecoder<F> {
+
+    int productId();
+
+    /** Short name for logs and default URLs, e.g. "precip-tracon". */
+    String name();
+
+    /** Parses one message; null means there is nothing to post (the message is ACKed). */
+    F decode(Message msg, long receiverMs) throws Exception;
+
+    /** Pre-encodes a decoded frame so payloads can share it (called once, right after decode). */
+    void encode(F frame);
+
+    /**
+     * Hands back a frame the lane's cache has evicted; nothing holds it any more, so a decoder may
+     * reuse it for a later {@link #decode}.
+     */
+    default void recycle(F frame) {}
+
+    /** Builds the POST body from the lane's cache (newest first). */
+    ItwsConsumer.Payload buildPayload(ItwsConsumer.FrameCache<F> cache);
+
+    /** ITWS site of a frame (product_header_itws_sites); each site gets its own cache and POST. */
+    String site(F frame);
+
+    /**
+     * Hash of what a frame shows (grid and geometry, not its times); equal hashes mean the same
+     * picture. 0 => unknown: the frame is never treated as a duplicate.
+     */
+    default long contentHash(F frame) { return 0; }
+
+    /** Approximate heap held by a cached frame, for the cache's ITWS_HISTORY_MAX_MB (0 => not counted). */
+    default long retainedBytes(F frame) { return 0; }
+
+    /** ITWS generation time of a frame (0 if unknown). */
+    long genTimeMs(F frame);
+
+    /** ITWS expiration time of a frame (0 if unknown); expired frames are not restored. */
+    long expTimeMs(F frame);
+
+    /** Writes a decoded frame for the warm-start snapshot ({@link ItwsSnapshot}). */
+    void writeFrame(F frame, DataOutput out) throws IOException;
+
+    /** Reads back a frame written by {@link #writeFrame}; the pipeline then {@link #encode}s it. */
+    F readFrame(DataInput in) throws IOException;
+
+    /** Product-specific fields for the POST OK log line. */
+    String describe(F frame);
+}
@@ -0,0 +1,263 @@
+package dev.vstars;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import javax.xml.stream.XMLInputFactory;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Registry of ITWS product decoders, and the header read that routes a message to one.
+ *
+ * To add a product: implement {@link ItwsDecoder}, register its factory in {@link #REGISTRY},
+ * and list its productID in ITWS_PRODUCTS (POST target: WX_POST_URL_&lt;productID&gt;).
+ */
+final class ItwsDecoders {
+
+    static final int UNKNOWN_PRODUCT = -1;
+
+    private static final Map<Integer, Function<ItwsConsumer.Config, ItwsDecoder<?>>> REGISTRY = Map.of(
+            ItwsConsumer.TARGET_PRODUCT_ID, PrecipTracon::new
+    );
+
+    private ItwsDecoders() {}
+
+    /** A decoder for {@code productId}, or null if none is registered. */
+    static ItwsDecoder<?> create(int productId, ItwsConsumer.Config cfg) {
+        Function<ItwsConsumer.Config, ItwsDecoder<?>> f = REGISTRY.get(productId);
+        return (f == null) ? null : f.apply(cfg);
+    }
+
+    // ---------------- Header ----------------
+
+    /**
+     * Reads the identity of a message once, on the receive thread, into {@code h}: the productID
+     * property when present and the site is not needed, else the product header at the start of
+     * the body ({@link ItwsHeader}; the body is rewound afterwards).
+     */
+    static ItwsHeader readHeader(Message msg, ItwsHeader h, byte[] scratch, boolean needSite) throws JMSException {
+        h.reset();
+        boolean property = msg.propertyExists("productID");
+
+        if (!property || needSite) {
+            if (msg instanceof BytesMessage bm) {
+                int n;
+                while (!h.done() && (n = bm.readBytes(scratch)) > 0) h.feed(scratch, 0, n);
+                bm.reset();
+            } else if (msg instanceof TextMessage tm) {
+                String s = tm.getText();
+                if (s != null) h.feed(s, 0, s.length());
+            }
+            ItwsMetrics.HEADER_BYTES.record(h.bytesRead());
+        }
+
+        if (property) h.setProductId(ItwsConsumer.toInt(msg.getObjectProperty("productID"), UNKNOWN_PRODUCT));
+        return h;
+    }
+
+    // ---------------- 9850 Precipitation TRACON ----------------
+
+    static final class PrecipTracon implements ItwsDecoder<ItwsConsumer.Frame> {
+        private final int maxXmlBytes;
+        private final boolean binary;
+        private final ItwsContours.Mode contours;
+        private final double contourTolerance;
+        private final boolean delta;
+        private final boolean lod;
+        private final ItwsConsumer.FramePool pool; // null => a new Frame per message
+        private final ThreadLocal<XMLInputFactory> xif = ThreadLocal.withInitial(ItwsConsumer::newXmlInputFactory);
+
+        PrecipTracon(ItwsConsumer.Config cfg) {
+            this.maxXmlBytes = cfg.maxXmlBytes;
+            this.binary = cfg.binaryPayload;
+            this.contours = cfg.contours;
+            this.contourTolerance = cfg.contourTolerance;
+            // a frame without cells (contours only) cannot anchor its older neighbour
+            this.delta = cfg.deltaFrames && !binary && contours != ItwsContours.Mode.ONLY;
+            this.lod = cfg.lodPyramid;
+            // snapshots keep the histories of earlier payloads, so their frames are never free;
+            // steady state per site: the cache, one frame per parse thread and one being handed over
+            this.pool = (cfg.framePool && cfg.snapshotDir == null)
+                    ? new ItwsConsumer.FramePool(cfg.historyFrames + cfg.parseThreads + 1)
+                    : null;
+        }
+
+        @Override
+        public int productId() { return ItwsConsumer.TARGET_PRODUCT_ID; }
+
+        @Override
+        public String name() { return "precip-tracon"; }
+
+        @Override
+        public ItwsConsumer.Frame decode(Message msg, long receiverMs) throws Exception {
+            ItwsConsumer.Frame f = ItwsConsumer.parse9850(msg, xif.get(), maxXmlBytes, receiverMs, pool);
+            if (f == null || f.cellsRle == null) return null;
+            ItwsMetrics.FRAME_CELLS.record(f.cellsTotal);
+            return f;
+        }
+
+        @Override
+        public void encode(ItwsConsumer.Frame f) { ItwsConsumer.encodeFrame(f, binary, contours, contourTolerance, lod); }
+
+        @Override
+        public void recycle(ItwsConsumer.Frame f) {
+            if (pool != null) pool.release(f);
+        }
+
+        @Override
+        public ItwsConsumer.Payload buildPayload(ItwsConsumer.FrameCache<ItwsConsumer.Frame> cache) {
+            return ItwsConsumer.buildPayload(cache, binary, delta);
+        }
+
+        @Override
+        public String site(ItwsConsumer.Frame f) { return f.site; }
+
+        @Override
+        public long contentHash(ItwsConsumer.Frame f) { return f.contentHash; }
+
+        @Override
+        public long retainedBytes(ItwsConsumer.Frame f) { return f.retainedBytes(); }
+
+        @Override
+        public long genTimeMs(ItwsConsumer.Frame f) { return f.itwsGenTimeMs; }
+
+        @Override
+        public long expTimeMs(ItwsConsumer.Frame f) { return f.itwsExpTimeMs; }
+
+        @Override
+        public void writeFrame(ItwsConsumer.Frame f, DataOutput out) throws IOException {
+            out.writeLong(f.receiverMs);
+            out.writeInt(f.productId);
+            out.writeUTF(f.productName);
+            out.writeUTF(f.site);
+            out.writeUTF(f.airport);
+
+            out.writeLong(f.genSec);
+            out.writeInt(f.genMs);
+            out.writeLong(f.expSec);
+            out.writeInt(f.expMs);
+            out.writeLong(f.itwsGenTimeMs);
+            out.writeLong(f.itwsExpTimeMs);
+
+            out.writeInt(f.trpLatMicroDeg);
+            out.writeInt(f.trpLonMicroDeg);
+            out.writeInt(f.xOffsetM);
+            out.writeInt(f.yOffsetM);
+            out.writeInt(f.dxM);
+            out.writeInt(f.dyM);
+            out.writeInt(f.rotationMilliDeg);
+
+            out.writeInt(f.rows);
+            out.writeInt(f.cols);
+            out.writeInt(f.gridMaxX);
+            out.writeInt(f.gridMaxY);
+            out.writeInt(f.plotRows);
+            out.writeInt(f.plotCols);
+            out.writeUTF(f.dimsSource);
+
+            out.writeInt(f.attenuated);
+            out.writeInt(f.apDetected);
+            out.writeInt(f.badValue);
+            out.writeInt(f.noCoverage);
+            out.writeUTF(f.compression);
+            out.writeInt(f.maxPrecipLevel);
+
+            byte[] rle = f.cellsRle.getBytes(StandardCharsets.US_ASCII);
+            out.writeInt(rle.length);
+            out.write(rle);
+            out.writeLong(f.cellsTotal);
+            out.writeInt(f.maxLevel);
+            out.writeLong(f.nonZeroCells);
+            out.writeInt(f.activeMask);
+
+            out.writeLong(f.noCoverageCells);
+            out.writeLong(f.badCells);
+            out.writeLong(f.apCells);
+            out.writeLong(f.attenCells);
+
+            out.writeInt(f.runCount);
+            out.writeInt(f.runsLen);
+            if (f.runsLen > 0) out.write(f.runs, 0, f.runsLen);
+        }
+
+        @Override
+        public ItwsConsumer.Frame readFrame(DataInput in) throws IOException {
+            ItwsConsumer.Frame f = new ItwsConsumer.Frame();
+            f.receiverMs = in.readLong();
+            f.receivedAt = Instant.ofEpochMilli(f.receiverMs).toString();
+            f.productId = in.readInt();
+            f.productName = in.readUTF();
+            f.site = in.readUTF();
+            f.airport = in.readUTF();
+
+            f.genSec = in.readLong();
+            f.genMs = in.readInt();
+            f.expSec = in.readLong();
+            f.expMs = in.readInt();
+            f.itwsGenTimeMs = in.readLong();
+            f.itwsExpTimeMs = in.readLong();
+
+            f.trpLatMicroDeg = in.readInt();
+            f.trpLonMicroDeg = in.readInt();
+            f.xOffsetM = in.readInt();
+            f.yOffsetM = in.readInt();
+            f.dxM = in.readInt();
+            f.dyM = in.readInt();
+            f.rotationMilliDeg = in.readInt();
+
+            f.rows = in.readInt();
+            f.cols = in.readInt();
+            f.gridMaxX = in.readInt();
+            f.gridMaxY = in.readInt();
+            f.plotRows = in.readInt();
+            f.plotCols = in.readInt();
+            f.dimsSource = in.readUTF();
+
+            f.attenuated = in.readInt();
+            f.apDetected = in.readInt();
+            f.badValue = in.readInt();
+            f.noCoverage = in.readInt();
+            f.compression = in.readUTF();
+            f.maxPrecipLevel = in.readInt();
+
+            byte[] rle = new byte[in.readInt()];
+            in.readFully(rle);
+            f.cellsRle = new String(rle, StandardCharsets.US_ASCII);
+            f.cellsTotal = in.readLong();
+            f.maxLevel = in.readInt();
+            f.nonZeroCells = in.readLong();
+            f.activeMask = in.readInt();
+
+            f.noCoverageCells = in.readLong();
+            f.badCells = in.readLong();
+            f.apCells = in.readLong();
+            f.attenCells = in.readLong();
+
+            f.runCount = in.readInt();
+            f.runsLen = in.readInt();
+            f.runs = new byte[f.runsLen];
+            in.readFully(f.runs);
+            f.grid = ItwsRleGrid.ofPacked(f.runs, f.runsLen, null);
+            f.grid.index(f.plotRows, f.plotCols);
+            f.projection = ItwsProjection.of(f);
+            f.contentHash = ItwsConsumer.contentHash(f);
+            return f;
+        }
+
+        @Override
+        public String describe(ItwsConsumer.Frame f) {
+            return "newestNonZero=" + f.nonZeroCells
+                    + " newestMaxLvl=" + f.maxLevel
+                    + " newestCells=" + f.cellsTotal
+                    + " newestPlot=" + f.plotCols + "x" + f.plotRows
+                    + " dimsSrc=" + f.dimsSource;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package dev.vstars;
+
+/**
+ * Inter-frame deltas of the precip grid (opt-in: ITWS_DELTA=true, JSON payloads only).
+ *
+ * Consecutive frames are mostly the same grid, so only the newest frame (the keyframe) keeps
+ * its cellsRle; every history frame is sent as the runs that changed relative to its newer
+ * neighbour in the payload (frames[i] against frames[i-1]). A receiver rebuilds frames newest to
+ * oldest and gets every grid back exactly.
+ *
+ * JSON, inside the history frame's grid object (instead of cellsRle):
+ *
+ *   "cellsEncoding":"delta", "cellsDelta":"=N lvl,cnt =N ..."
+ *
+ * "=N" copies the next N cells from the newer frame, "lvl,cnt" sets the next cnt cells to lvl.
+ * Tokens cover the whole grid, row-major. A frame whose plot dims differ from its neighbour's
+ * stays a full cellsRle frame, and so does one whose delta would not be shorter (storm edges
+ * that move on every row cost about as many tokens as the runs themselves).
+ *
+ * The delta is a merge of both frames' packed runs (no grid is expanded) and is computed at most
+ * once per frame: a frame's newer neighbour in the cache never changes.
+ */
+final class ItwsDelta {
+
+    private ItwsDelta() {}
+
+    /** Delta of {@code older} against {@code newer}, or null when they are not comparable. */
+    static String encode(ItwsConsumer.Frame older, ItwsConsumer.Frame newer) {
+        if (older.runs == null || newer.runs == null) return null;
+        if (older.plotRows != newer.plotRows || older.plotCols != newer.plotCols) return null;
+        if (older.cellsTotal != newer.cellsTotal) return null;
+
+        Runs a = new Runs(older.runs, older.runsLen);
+        Runs b = new Runs(newer.runs, newer.runsLen);
+        StringBuilder sb = new StringBuilder(Math.max(64, older.runsLen));
+
+        long same = 0;       // pending "=N"
+        int litLevel = -1;   // pending literal run
+        long litCount = 0;
+
+        while (a.next() | b.next()) {
+            if (a.left == 0 || b.left == 0) return null; // lengths disagree
+            long n = Math.min(a.left, b.left);
+            if (a.level == b.level) {
+                if (litCount > 0) { token(sb, litLevel, litCount); litCount = 0; }
+                same += n;
+            } else {
+                if (same > 0) { same(sb, same); same = 0; }
+                if (litCount > 0 && litLevel != a.level) { token(sb, litLevel, litCount); litCount = 0; }
+                litLevel = a.level;
+                litCount += n;
+            }
+            a.left -= n;
+            b.left -= n;
+        }
+        if (litCount > 0) token(sb, litLevel, litCount);
+        if (same > 0) same(sb, same);
+        return sb.toString();
+    }
+
+    /**
+     * Rebuilds the cellsRle of the older frame from its newer neighbour's cellsRle and the delta
+     * (what a receiver does; runs are merged, so the result equals the original cellsRle).
+     */
+    static String apply(String newerRle, String delta) {
+        TextRuns b = new TextRuns(newerRle);
+        StringBuilder sb = new StringBuilder(newerRle.length() + delta.length());
+        int outLevel = -1;
+        long outCount = 0;
+
+        int i = 0, len = delta.length();
+        while (i < len) {
+            while (i < len && delta.charAt(i) == ' ') i++;
+            if (i >= len) break;
+
+            if (delta.charAt(i) == '=') {
+                i++;
+                long n = 0;
+                while (i < len && delta.charAt(i) != ' ') n = n * 10 + (delta.charAt(i++) - '0');
+                while (n > 0) {
+                    if (!b.next()) throw new IllegalArgumentException("delta overruns the newer frame");
+                    long k = Math.min(n, b.left);
+                    if (b.level != outLevel) {
+                        if (outCount > 0) token(sb, outLevel, outCount);
+                        outLevel = b.level;
+                        outCount = 0;
+                    }
+                    outCount += k;
+                    b.left -= k;
+                    n -= k;
+                }
+            } else {
+                int level = 0;
+                while (delta.charAt(i) != ',') level = level * 10 + (delta.charAt(i++) - '0');
+                i++;
+                long n = 0;
+                while (i < len && delta.charAt(i) != ' ') n = n * 10 + (delta.charAt(i++) - '0');
+                if (level != outLevel) {
+                    if (outCount > 0) token(sb, outLevel, outCount);
+                    outLevel = level;
+                    outCount = 0;
+                }
+                outCount += n;
+                while (n > 0) {
+                    if (!b.next()) throw new IllegalArgumentException("delta overruns the newer frame");
+                    long k = Math.min(n, b.left);
+                    b.left -= k;
+                    n -= k;
+                }
+            }
+        }
+        if (b.next()) throw new IllegalArgumentException("delta is shorter than the newer frame");
+        if (outCount > 0) token(sb, outLevel, outCount);
+        return sb.toString();
+    }
+
+    private static void token(StringBuilder sb, int level, long count) {
+        if (!sb.isEmpty()) sb.append(' ');
+        sb.append(level).append(',').append(count);
+    }
+
+    private static void same(StringBuilder sb, long count) {
+        if (!sb.isEmpty()) sb.append(' ');
+        sb.append('=').append(count);
+    }
+
+    /** Cursor over packed runs (see {@link ItwsConsumer.Frame#runs}). */
+    private static final class Runs {
+        private final byte[] b;
+        private final int len;
+        private int i;
+        int level;
+        long left;
+
+        Runs(byte[] b, int len) { this.b = b; this.len = len; }
+
+        /** Loads the next non-empty run unless the current one has cells left; false at the end. */
+        boolean next() {
+            while (left == 0) {
+                if (i >= len) return false;
+                int v = b[i++] & 0xFF;
+                level = v & 0x0F;
+                long count = v >>> 4;
+                if (count == 0) {
+                    int shift = 0;
+                    int x;
+                    do {
+                        x = b[i++] & 0xFF;
+                        count |= (long) (x & 0x7F) << shift;
+                        shift += 7;
+                    } while ((x & 0x80) != 0);
+                }
+                left = count;
+            }
+            return true;
+        }
+    }
+
+    /** Cursor over "lvl,cnt" text runs. */
+    private static final class TextRuns {
+        private final String s;
+        private int i;
+        int level;
+        long left;
+
+        TextRuns(String s) { this.s = s; }
+
+        boolean next() {
+            int len = s.length();
+            while (left == 0) {
+                while (i < len && s.charAt(i) == ' ') i++;
+                if (i >= len) return false;
+                int lv = 0;
+                while (s.charAt(i) != ',') lv = lv * 10 + (s.charAt(i++) - '0');
+                i++;
+                long n = 0;
+                while (i < len && s.charAt(i) != ' ') n = n * 10 + (s.charAt(i++) - '0');
+                level = lv;
+                left = n;
+            }
+            return true;
+        }
+    }
+}
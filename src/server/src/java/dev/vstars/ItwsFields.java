@@ -0,0 +1,219 @@
+package dev.vstars;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The 9850 header elements both parsers understand, resolved to small ids and applied straight
+ * from a reused char buffer: no String per element name, no substring/trim per number.
+ *
+ * String-valued fields (site, airport, ...) repeat from message to message, so {@link Text}
+ * hands back the instance it produced last time when the chars match.
+ */
+final class ItwsFields {
+
+    static final String[] NAMES = {
+            "product_msg_id", "product_msg_name", "product_header_itws_sites", "product_header_airports",
+            "product_header_generation_time_seconds", "product_header_generation_time_milliseconds",
+            "product_header_expiration_time_seconds", "product_header_expiration_time_milliseconds",
+            "prcp_TRP_latitude", "prcp_TRP_longitude", "prcp_xoffset", "prcp_yoffset",
+            "prcp_dx", "prcp_dy", "prcp_rotation", "prcp_nrows", "prcp_ncols",
+            "prcp_grid_max_x", "prcp_grid_max_y",
+            "prcp_attenuated", "prcp_ap_detected", "prcp_bad_value", "prcp_no_coverage",
+            "prcp_grid_compression_encoding_scheme", "prcp_grid_max_precip_level",
+            "prcp_grid_compressed"
+    };
+
+    /** product_msg_id, the product check (see {@link ItwsConsumer#unwanted}). */
+    static final int PRODUCT_ID = 0;
+    private static final int PRODUCT_NAME = 1, SITES = 2, AIRPORTS = 3,
+            GEN_SEC = 4, GEN_MS = 5, EXP_SEC = 6, EXP_MS = 7,
+            TRP_LAT = 8, TRP_LON = 9, X_OFFSET = 10, Y_OFFSET = 11,
+            DX = 12, DY = 13, ROTATION = 14, NROWS = 15, NCOLS = 16,
+            GRID_MAX_X = 17, GRID_MAX_Y = 18,
+            ATTENUATED = 19, AP_DETECTED = 20, BAD_VALUE = 21, NO_COVERAGE = 22,
+            COMPRESSION = 23, MAX_PRECIP_LEVEL = 24;
+
+    /** prcp_grid_compressed: the cells, fed to {@link ItwsConsumer.MappedRleBuilder}. */
+    static final int GRID = NAMES.length - 1;
+    /** Any other element. */
+    static final int OTHER = -1;
+
+    private static final Map<String, Integer> BY_NAME = new HashMap<>();
+    private static final byte[][] NAME_BYTES = new byte[NAMES.length][];
+
+    static {
+        for (int i = 0; i < NAMES.length; i++) {
+            BY_NAME.put(NAMES[i], i);
+            NAME_BYTES[i] = NAMES[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private ItwsFields() {}
+
+    /** Id of a StAX local name (parsers hand out interned names, so this is a hash lookup). */
+    static int id(String localName) {
+        Integer id = BY_NAME.get(localName);
+        return (id == null) ? OTHER : id;
+    }
+
+    /** Id of the ASCII name in {@code name[0, len)}. */
+    static int id(byte[] name, int len) {
+        for (int i = 0; i < NAME_BYTES.length; i++) {
+            byte[] k = NAME_BYTES[i];
+            if (k.length != len) continue;
+            int j = 0;
+            while (j < len && k[j] == name[j]) j++;
+            if (j == len) return i;
+        }
+        return OTHER;
+    }
+
+    /** Sets the field {@code id} of {@code f} from the collected element text. */
+    static void apply(ItwsConsumer.Frame f, int id, Text v) {
+        switch (id) {
+            // identity
+            case PRODUCT_ID -> f.productId = v.toInt(-1);
+            case PRODUCT_NAME -> f.productName = v.string(id);
+            case SITES -> f.site = v.string(id);
+            case AIRPORTS -> f.airport = v.string(id);
+
+            // ITWS times (recommended)
+            case GEN_SEC -> f.genSec = v.toLong(0);
+            case GEN_MS -> f.genMs = v.toInt(0);
+            case EXP_SEC -> f.expSec = v.toLong(0);
+            case EXP_MS -> f.expMs = v.toInt(0);
+
+            // geometry/grid
+            case TRP_LAT -> f.trpLatMicroDeg = v.toInt(0);
+            case TRP_LON -> f.trpLonMicroDeg = v.toInt(0);
+
+            case X_OFFSET -> f.xOffsetM = v.toInt(0);
+            case Y_OFFSET -> f.yOffsetM = v.toInt(0);
+
+            case DX -> f.dxM = v.toInt(0);
+            case DY -> f.dyM = v.toInt(0);
+
+            case ROTATION -> f.rotationMilliDeg = v.toInt(0);
+
+            case NROWS -> f.rows = v.toInt(-1);
+            case NCOLS -> f.cols = v.toInt(-1);
+
+            // IMPORTANT: authoritative grid bounds (often match the compressed cells)
+            case GRID_MAX_X -> f.gridMaxX = v.toInt(-1);
+            case GRID_MAX_Y -> f.gridMaxY = v.toInt(-1);
+
+            // special codes
+            case ATTENUATED -> f.attenuated = v.toInt(7);
+            case AP_DETECTED -> f.apDetected = v.toInt(8);
+            case BAD_VALUE -> f.badValue = v.toInt(9);
+            case NO_COVERAGE -> f.noCoverage = v.toInt(15);
+
+            // misc
+            case COMPRESSION -> f.compression = v.string(id);
+            case MAX_PRECIP_LEVEL -> f.maxPrecipLevel = v.toInt(-1);
+
+            default -> { /* ignore */ }
+        }
+
+        if (f.genSec > 0) f.itwsGenTimeMs = f.genSec * 1000L + Math.max(0, f.genMs);
+        if (f.expSec > 0) f.itwsExpTimeMs = f.expSec * 1000L + Math.max(0, f.expMs);
+    }
+
+    /** Text of the current header element (first 1024 chars), reused per parse thread. */
+    static final class Text {
+        private static final int SEEN = 4; // distinct values remembered per field
+
+        private final char[] buf = new char[1024];
+        private int len;
+        private final String[][] seen = new String[NAMES.length][SEEN];
+
+        void clear() { len = 0; }
+
+        void append(char[] c, int off, int n) {
+            n = Math.min(n, buf.length - len);
+            System.arraycopy(c, off, buf, len, n);
+            len += n;
+        }
+
+        /** Replaces the text with UTF-8 bytes (header values are almost always ASCII). */
+        void setUtf8(byte[] b, int off, int n) {
+            len = 0;
+            for (int i = 0; i < n; i++) {
+                byte x = b[off + i];
+                if (x < 0) {
+                    String s = new String(b, off, n, StandardCharsets.UTF_8);
+                    len = Math.min(s.length(), buf.length);
+                    s.getChars(0, len, buf, 0);
+                    return;
+                }
+                buf[len++] = (char) x;
+            }
+        }
+
+        /** Trimmed value; the same instance as last time for a repeated value of field {@code id}. */
+        String string(int id) {
+            int s = start(), e = end(s);
+            String[] known = seen[id];
+            for (String k : known) {
+                if (k != null && matches(k, s, e)) return k;
+            }
+            String v = new String(buf, s, e - s);
+            System.arraycopy(known, 0, known, 1, SEEN - 1);
+            known[0] = v;
+            return v;
+        }
+
+        /** Same rules as Integer.parseInt on the trimmed text up to a '.'; {@code def} if not a number. */
+        int toInt(int def) {
+            long v = toLong(Long.MIN_VALUE);
+            return (v == Long.MIN_VALUE || v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) ? def : (int) v;
+        }
+
+        /** Same rules as Long.parseLong on the trimmed text up to a '.'; {@code def} if not a number. */
+        long toLong(long def) {
+            int s = start(), e = end(s);
+            for (int i = s; i < e; i++) {
+                if (buf[i] == '.') { e = end(s, i); break; }
+            }
+            if (s >= e) return def;
+
+            boolean neg = false;
+            int i = s;
+            if (buf[i] == '-' || buf[i] == '+') {
+                neg = buf[i] == '-';
+                if (++i == e) return def;
+            }
+            long v = 0;
+            for (; i < e; i++) {
+                char c = buf[i];
+                if (c < '0' || c > '9') return def;
+                if (v > (Long.MAX_VALUE - (c - '0')) / 10) return def; // overflow
+                v = v * 10 + (c - '0');
+            }
+            return neg ? -v : v;
+        }
+
+        private boolean matches(String k, int s, int e) {
+            if (k.length() != e - s) return false;
+            for (int i = s; i < e; i++) {
+                if (k.charAt(i - s) != buf[i]) return false;
+            }
+            return true;
+        }
+
+        private int start() {
+            int s = 0;
+            while (s < len && buf[s] <= ' ') s++;
+            return s;
+        }
+
+        private int end(int s) { return end(s, len); }
+
+        private int end(int s, int e) {
+            while (e > s && buf[e - 1] <= ' ') e--;
+            return e;
+        }
+    }
+}
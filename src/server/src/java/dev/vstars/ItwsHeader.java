@@ -0,0 +1,269 @@
+package dev.vstars;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Identity of a message read from the start of its body: product_msg_id and
+ * product_header_itws_sites, for the receive thread to route or reject it without parsing.
+ *
+ * The body is fed in chunks and the read stops as soon as the answer is known: both fields
+ * seen, the product header closed, a *_grid_compressed element opened (data before identity),
+ * or {@link #MAX_BYTES} read. A rejected message therefore costs its header, not its grid.
+ *
+ * Markup is tracked just well enough to find element names (start/end/empty tags, attributes,
+ * comments, CDATA, PIs); namespace prefixes are ignored. One instance per receive thread,
+ * {@link #reset} per message.
+ */
+final class ItwsHeader {
+
+    /** Most body bytes (or chars) read per message. */
+    static final int MAX_BYTES = 64 * 1024;
+
+    private static final byte[] MSG_ID = ascii("product_msg_id");
+    private static final byte[] SITES = ascii("product_header_itws_sites");
+    private static final byte[] HEADER = ascii("product_header");
+    private static final byte[] GRID_SUFFIX = ascii("_grid_compressed");
+
+    private static final int TEXT = 0, OPEN = 1, NAME = 2, ATTRS = 3, PI = 4, BANG = 5, COMMENT = 6, CDATA = 7, DECL = 8;
+    private static final int NO_FIELD = 0, FIELD_ID = 1, FIELD_SITE = 2;
+
+    private int productId;
+    private String site;
+    private boolean done;
+    private int read;
+
+    private int state;
+    private boolean closing;
+    private final byte[] name = new byte[64];
+    private int nameLen;
+    private boolean nameOverflow;
+    private int quote;   // open attribute quote, 0 => none
+    private int prev;    // previous markup char (end of "/>", "?>", "-->")
+    private int prev2;
+    private int brackets; // ']' held back in CDATA until it is known not to start "]]>"
+
+    private int field;   // element whose text is being collected
+    private final byte[] value = new byte[256];
+    private int valueLen;
+    private String lastSite;
+
+    ItwsHeader() { reset(); }
+
+    void reset() {
+        productId = ItwsDecoders.UNKNOWN_PRODUCT;
+        site = null;
+        done = false;
+        read = 0;
+        state = TEXT;
+        nameLen = 0;
+        field = NO_FIELD;
+        valueLen = 0;
+    }
+
+    /** product_msg_id, or {@link ItwsDecoders#UNKNOWN_PRODUCT} if the header did not have one. */
+    int productId() { return productId; }
+
+    /** Overrides the body's product (the JMS productID property wins when there is one). */
+    void setProductId(int id) { productId = id; }
+
+    /** Trimmed product_header_itws_sites, or null if the header did not have one. */
+    String site() { return site; }
+
+    /** Body bytes (or chars) consumed so far. */
+    int bytesRead() { return read; }
+
+    /** True once more input would not change the answer. */
+    boolean done() { return done; }
+
+    /** Feeds UTF-8 bytes; returns {@link #done()}. */
+    boolean feed(byte[] b, int off, int len) {
+        for (int i = off; i < off + len && !done; i++) step(b[i] & 0xFF);
+        return done;
+    }
+
+    /** Feeds chars (only ASCII matters to the markup); returns {@link #done()}. */
+    boolean feed(CharSequence s, int off, int len) {
+        for (int i = off; i < off + len && !done; i++) {
+            char c = s.charAt(i);
+            step(c < 0x80 ? c : '?');
+        }
+        return done;
+    }
+
+    private void step(int c) {
+        if (++read >= MAX_BYTES) done = true;
+
+        switch (state) {
+            case TEXT -> {
+                if (c == '<') {
+                    state = OPEN;
+                } else if (field != NO_FIELD && valueLen < value.length) {
+                    value[valueLen++] = (byte) c;
+                }
+            }
+            case OPEN -> {
+                nameLen = 0;
+                nameOverflow = false;
+                closing = c == '/';
+                if (c == '?') {
+                    state = PI;
+                } else if (c == '!') {
+                    state = BANG;
+                    nameLen = 0;
+                } else {
+                    state = NAME;
+                    if (!closing) nameChar(c);
+                }
+                prev = prev2 = 0;
+            }
+            case NAME -> {
+                if (c == '>' || c == '/' || c <= ' ') {
+                    state = ATTRS;
+                    quote = 0;
+                    attrs(c);
+                } else {
+                    nameChar(c);
+                }
+            }
+            case ATTRS -> attrs(c);
+            case PI -> {
+                if (c == '>' && prev == '?') state = TEXT;
+                prev = c;
+            }
+            case BANG -> {
+                // "<!--" comment, "<![CDATA[" section, else a declaration up to '>'
+                if (nameLen < name.length) name[nameLen++] = (byte) c;
+                if (nameLen == 2 && name[0] == '-' && name[1] == '-') {
+                    state = COMMENT;
+                } else if (nameLen == 7 && startsWith(name, "[CDATA[")) {
+                    state = CDATA;
+                    brackets = 0;
+                } else if (c == '>') {
+                    state = TEXT;
+                } else if (nameLen >= 7 || (nameLen == 2 && name[0] == '-')) {
+                    state = DECL;
+                }
+            }
+            case COMMENT -> {
+                if (c == '>' && prev == '-' && prev2 == '-') state = TEXT;
+                prev2 = prev;
+                prev = c;
+            }
+            case CDATA -> {
+                if (c == ']') {
+                    // a third ']' in a row: the first of them was text
+                    if (brackets == 2) cdataChar(']');
+                    else brackets++;
+                } else if (c == '>' && brackets == 2) {
+                    state = TEXT;
+                } else {
+                    for (; brackets > 0; brackets--) cdataChar(']');
+                    cdataChar(c);
+                }
+            }
+            case DECL -> {
+                if (c == '>') state = TEXT;
+            }
+            default -> state = TEXT;
+        }
+    }
+
+    private void cdataChar(int c) {
+        if (field != NO_FIELD && valueLen < value.length) value[valueLen++] = (byte) c;
+    }
+
+    private void nameChar(int c) {
+        if (c == ':') {
+            nameLen = 0; // drop the namespace prefix
+        } else if (nameLen < name.length) {
+            name[nameLen++] = (byte) c;
+        } else {
+            nameOverflow = true;
+        }
+    }
+
+    private void attrs(int c) {
+        if (quote != 0) {
+            if (c == quote) quote = 0;
+        } else if (c == '"' || c == '\'') {
+            quote = c;
+        } else if (c == '>') {
+            state = TEXT;
+            if (closing) endTag();
+            else startTag(prev == '/');
+        }
+        prev = c;
+    }
+
+    private void startTag(boolean empty) {
+        if (nameOverflow) return;
+        if (endsWith(name, nameLen, GRID_SUFFIX)) {
+            done = true; // the data starts: whatever identity there is has been seen
+            return;
+        }
+        int f = is(MSG_ID) ? FIELD_ID : is(SITES) ? FIELD_SITE : NO_FIELD;
+        if (f == NO_FIELD) return;
+        field = f;
+        valueLen = 0;
+        if (empty) endTag(); // <x/>: an empty value
+    }
+
+    private void endTag() {
+        if (nameOverflow) return;
+        if (field != NO_FIELD) {
+            if (field == FIELD_ID && productId == ItwsDecoders.UNKNOWN_PRODUCT) productId = parseId();
+            else if (field == FIELD_SITE && site == null) site = siteString();
+            field = NO_FIELD;
+            valueLen = 0;
+            if (productId != ItwsDecoders.UNKNOWN_PRODUCT && site != null) done = true;
+        } else if (is(HEADER)) {
+            done = true;
+        }
+    }
+
+    /** The trimmed value as a String; the previous message's instance when it is the same site. */
+    private String siteString() {
+        int s = 0, e = valueLen;
+        while (s < e && value[s] <= ' ') s++;
+        while (e > s && value[e - 1] <= ' ') e--;
+        String last = lastSite;
+        if (last != null && last.length() == e - s) {
+            int i = 0;
+            while (i < e - s && last.charAt(i) == value[s + i]) i++;
+            if (i == e - s) return last;
+        }
+        return lastSite = new String(value, s, e - s, StandardCharsets.UTF_8);
+    }
+
+    private int parseId() {
+        int k = 0;
+        while (k < valueLen && value[k] <= ' ') k++;
+        int v = 0, digits = 0;
+        while (k < valueLen && value[k] >= '0' && value[k] <= '9' && digits < 9) {
+            v = v * 10 + (value[k++] - '0');
+            digits++;
+        }
+        return (digits > 0) ? v : ItwsDecoders.UNKNOWN_PRODUCT;
+    }
+
+    private boolean is(byte[] k) {
+        return k.length == nameLen && endsWith(name, nameLen, k);
+    }
+
+    private static boolean endsWith(byte[] b, int len, byte[] k) {
+        if (len < k.length) return false;
+        for (int i = 0; i < k.length; i++) {
+            if (b[len - k.length + i] != k[i]) return false;
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] b, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (b[i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String s) { return s.getBytes(StandardCharsets.US_ASCII); }
+}
@@ -0,0 +1,433 @@
+package dev.vstars;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.TextMessage;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Journal of raw SWIM messages, for reproducing a live feed offline.
+ *
+ * - {@link Writer} (ITWS_JOURNAL=path): the receive thread appends every message, as received,
+ *   to a memory-mapped file before handing it to the parse stage.
+ * - {@link Replay} (ITWS_REPLAY=path): a MessageConsumer that plays the journal back into the
+ *   same pipeline at the recorded pace, N times faster, or as fast as the pipeline takes it.
+ *
+ * File: "ITWSJRNL" u32 version, then records until a zero length (all integers big-endian):
+ *
+ *   u32 recordLen      bytes after this field; written last, so a torn record reads as the end
+ *   i64 receiverMs     local receive time
+ *   i64 jmsTimestamp
+ *   u8  kind           1 = TextMessage (UTF-8 body), 2 = BytesMessage
+ *   u16 propCount      { str name, str value } x propCount (values as strings; productID etc.)
+ *   u32 bodyLen, body
+ *
+ * str = u16 byte length + UTF-8.
+ */
+final class ItwsJournal {
+
+    static final byte[] MAGIC = {'I', 'T', 'W', 'S', 'J', 'R', 'N', 'L'};
+    static final int VERSION = 1;
+    static final int HEADER_LEN = MAGIC.length + 4;
+
+    static final int KIND_TEXT = 1, KIND_BYTES = 2;
+
+    private static final long SEGMENT = 64L << 20; // writer mapping window
+    private static final long WINDOW = 256L << 20; // reader mapping window
+
+    private ItwsJournal() {}
+
+    // ---------------- Capture ----------------
+
+    /** Appends messages to a journal; used by the receive thread only. */
+    static final class Writer implements AutoCloseable {
+        private final FileChannel ch;
+        private MappedByteBuffer map;
+        private long base;        // file offset of `map`
+        private final byte[] chunk = new byte[16 * 1024];
+        private long records = 0;
+
+        Writer(Path path) throws IOException {
+            this.ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            long end;
+            if (ch.size() == 0) {
+                ByteBuffer h = ByteBuffer.allocate(HEADER_LEN).put(MAGIC).putInt(VERSION).flip();
+                while (h.hasRemaining()) ch.write(h, h.position());
+                end = HEADER_LEN;
+            } else {
+                end = scanEnd(ch);
+            }
+            remap(end, SEGMENT);
+        }
+
+        long records() { return records; }
+
+        void append(Message msg, long receiverMs) throws JMSException, IOException {
+            ArrayList<byte[]> props = new ArrayList<>();
+            int propBytes = 0;
+            Enumeration<?> names = msg.getPropertyNames();
+            while (names.hasMoreElements()) {
+                String name = String.valueOf(names.nextElement());
+                byte[] k = str(name);
+                byte[] v = str(String.valueOf(msg.getObjectProperty(name)));
+                props.add(k);
+                props.add(v);
+                propBytes += k.length + v.length;
+            }
+
+            int kind;
+            byte[] text = null;
+            long bodyLen;
+            if (msg instanceof TextMessage tm) {
+                kind = KIND_TEXT;
+                String s = tm.getText();
+                text = (s == null) ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+                bodyLen = text.length;
+            } else if (msg instanceof BytesMessage bm) {
+                kind = KIND_BYTES;
+                bodyLen = bm.getBodyLength();
+            } else {
+                return; // the consumer only understands text/bytes bodies
+            }
+
+            long recordLen = 8 + 8 + 1 + 2 + propBytes + 4 + bodyLen;
+            if (recordLen > Integer.MAX_VALUE - 8) {
+                System.err.println("WARN: journal skipped a message of " + bodyLen + " bytes");
+                return;
+            }
+            ensure(4 + recordLen + 4);
+
+            int start = map.position();
+            map.position(start + 4);
+            map.putLong(receiverMs);
+            map.putLong(msg.getJMSTimestamp());
+            map.put((byte) kind);
+            map.putShort((short) (props.size() / 2));
+            for (byte[] p : props) map.put(p);
+            map.putInt((int) bodyLen);
+
+            if (text != null) {
+                map.put(text);
+            } else {
+                BytesMessage bm = (BytesMessage) msg;
+                long left = bodyLen;
+                while (left > 0) {
+                    int n = bm.readBytes(chunk, (int) Math.min(chunk.length, left));
+                    if (n <= 0) break;
+                    map.put(chunk, 0, n);
+                    left -= n;
+                }
+                bm.reset(); // the parse stage reads the body again from the start
+            }
+
+            // length last: until here the record is invisible to readers
+            map.putInt(start, (int) recordLen);
+            records++;
+        }
+
+        private void ensure(long need) throws IOException {
+            if (map.remaining() >= need) return;
+            remap(base + map.position(), Math.max(SEGMENT, need));
+        }
+
+        private void remap(long at, long size) throws IOException {
+            map = ch.map(FileChannel.MapMode.READ_WRITE, at, size);
+            base = at;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long end = base + map.position();
+            map.force();
+            map = null;
+            ch.truncate(end); // drop the unused, zero-filled tail of the last window
+            ch.close();
+        }
+
+        private static long scanEnd(FileChannel ch) throws IOException {
+            checkHeader(ch);
+            long pos = HEADER_LEN;
+            ByteBuffer b = ByteBuffer.allocate(4);
+            while (pos + 4 <= ch.size()) {
+                b.clear();
+                while (b.hasRemaining() && ch.read(b, pos + b.position()) > 0) {}
+                int len = b.flip().getInt();
+                if (len <= 0 || pos + 4 + len > ch.size()) break;
+                pos += 4 + len;
+            }
+            return pos;
+        }
+    }
+
+    // ---------------- Replay ----------------
+
+    /**
+     * Plays a journal back as a MessageConsumer. speed 1 = recorded pace, N = N times faster,
+     * 0 = no pacing. Messages come back as Text/BytesMessages with the recorded properties;
+     * acknowledge() is a no-op.
+     */
+    static final class Replay implements MessageConsumer {
+        private final Path path;
+        private final FileChannel ch;
+        private final long size;
+        private final double speed;
+        private int loopsLeft;
+
+        private MappedByteBuffer map;
+        private long base;
+        private long pos = HEADER_LEN;
+
+        private long firstRecMs = Long.MIN_VALUE, firstWallMs;
+        private Message pending;
+        private long pendingDueMs;
+        private boolean exhausted = false;
+        private long replayed = 0;
+
+        Replay(Path path, double speed, int loops) throws IOException {
+            this.path = path;
+            this.ch = FileChannel.open(path, StandardOpenOption.READ);
+            this.size = ch.size();
+            this.speed = speed;
+            this.loopsLeft = Math.max(1, loops);
+            checkHeader(ch);
+        }
+
+        boolean exhausted() { return exhausted; }
+
+        long replayed() { return replayed; }
+
+        @Override
+        public Message receive(long timeoutMs) throws JMSException {
+            long deadline = (timeoutMs <= 0) ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMs;
+            while (true) {
+                if (pending == null && !advance()) return null;
+
+                long now = System.currentTimeMillis();
+                long wait = pendingDueMs - now;
+                if (wait <= 0) {
+                    Message m = pending;
+                    pending = null;
+                    replayed++;
+                    return m;
+                }
+                if (now >= deadline) return null;
+                try {
+                    Thread.sleep(Math.min(wait, deadline - now));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+
+        @Override
+        public Message receive() throws JMSException { return receive(0); }
+
+        @Override
+        public Message receiveNoWait() throws JMSException { return receive(1); }
+
+        /** Loads the next record into `pending`; false at the end of the last loop. */
+        private boolean advance() throws JMSException {
+            if (exhausted) return false;
+            try {
+                Record r = next();
+                if (r == null) {
+                    if (--loopsLeft <= 0 || replayed == 0) {
+                        exhausted = true;
+                        return false;
+                    }
+                    pos = HEADER_LEN;
+                    firstRecMs = Long.MIN_VALUE;
+                    r = next();
+                    if (r == null) {
+                        exhausted = true;
+                        return false;
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (firstRecMs == Long.MIN_VALUE) {
+                    firstRecMs = r.receiverMs;
+                    firstWallMs = now;
+                }
+                pendingDueMs = (speed > 0)
+                        ? firstWallMs + (long) ((r.receiverMs - firstRecMs) / speed)
+                        : now;
+                pending = r.toMessage();
+                return true;
+            } catch (IOException e) {
+                JMSException je = new JMSException("journal " + path + ": " + e.getMessage());
+                je.setLinkedException(e);
+                throw je;
+            }
+        }
+
+        private Record next() throws IOException {
+            if (pos + 4 > size) return null;
+            window(pos, 4);
+            int len = map.getInt((int) (pos - base));
+            if (len <= 0 || pos + 4 + len > size) return null; // end marker or torn tail
+            window(pos, 4L + len);
+
+            ByteBuffer b = map.duplicate();
+            b.position((int) (pos - base + 4));
+            b.limit((int) (pos - base + 4 + len));
+            pos += 4L + len;
+
+            Record r = new Record();
+            r.receiverMs = b.getLong();
+            r.jmsTimestamp = b.getLong();
+            r.kind = b.get();
+            int nprops = b.getShort() & 0xFFFF;
+            for (int i = 0; i < nprops; i++) r.props.put(readStr(b), readStr(b));
+            int bodyLen = b.getInt();
+            b.limit(b.position() + bodyLen);
+            r.body = b.slice();
+            return r;
+        }
+
+        /** Makes [at, at+len) addressable in `map`, remapping if needed. */
+        private void window(long at, long len) throws IOException {
+            if (map != null && at >= base && at + len <= base + map.capacity()) return;
+            long n = Math.min(size - at, Math.max(WINDOW, len));
+            map = ch.map(FileChannel.MapMode.READ_ONLY, at, n);
+            base = at;
+        }
+
+        @Override
+        public void close() throws JMSException {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                throw new JMSException(e.getMessage());
+            }
+        }
+
+        @Override
+        public String getMessageSelector() { return null; }
+
+        @Override
+        public MessageListener getMessageListener() { return null; }
+
+        @Override
+        public void setMessageListener(MessageListener listener) throws JMSException {
+            throw new JMSException("journal replay is synchronous (receive only)");
+        }
+    }
+
+    // ---------------- Replayed messages ----------------
+
+    private static final class Record {
+        long receiverMs, jmsTimestamp;
+        int kind;
+        final Map<String, String> props = new LinkedHashMap<>();
+        ByteBuffer body; // read-only view into the mapped journal
+
+        Message toMessage() {
+            Class<?> type = (kind == KIND_TEXT) ? TextMessage.class : BytesMessage.class;
+            return (Message) Proxy.newProxyInstance(ItwsJournal.class.getClassLoader(),
+                    new Class<?>[]{type}, new Recorded(this));
+        }
+    }
+
+    /** Just the Message surface the pipeline uses; anything else is unsupported. */
+    private static final class Recorded implements InvocationHandler {
+        private final Record r;
+        private final ByteBuffer body;
+
+        Recorded(Record r) {
+            this.r = r;
+            this.body = r.body.duplicate();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] a) throws JMSException {
+            switch (m.getName()) {
+                case "getText":
+                    return StandardCharsets.UTF_8.decode(r.body.duplicate()).toString();
+                case "getBodyLength":
+                    return (long) body.capacity();
+                case "readBytes": {
+                    byte[] dst = (byte[]) a[0];
+                    int len = (a.length > 1) ? (Integer) a[1] : dst.length;
+                    int n = Math.min(len, body.remaining());
+                    if (n <= 0) return -1;
+                    body.get(dst, 0, n);
+                    return n;
+                }
+                case "reset":
+                    body.rewind();
+                    return null;
+                case "propertyExists":
+                    return r.props.containsKey((String) a[0]);
+                case "getObjectProperty":
+                case "getStringProperty":
+                    return r.props.get((String) a[0]);
+                case "getPropertyNames":
+                    return Collections.enumeration(r.props.keySet());
+                case "getJMSTimestamp":
+                    return r.jmsTimestamp;
+                case "acknowledge":
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == a[0];
+                case "toString":
+                    return "Replayed" + ((r.kind == KIND_TEXT) ? "TextMessage" : "BytesMessage") + r.props;
+                default:
+                    throw new JMSException("not supported on a replayed message: " + m.getName());
+            }
+        }
+    }
+
+    // ---------------- Helpers ----------------
+
+    private static void checkHeader(FileChannel ch) throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(HEADER_LEN);
+        while (h.hasRemaining() && ch.read(h, h.position()) > 0) {}
+        h.flip();
+        byte[] magic = new byte[MAGIC.length];
+        if (h.remaining() < HEADER_LEN) throw new IOException("not an ITWS journal (too short)");
+        h.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("not an ITWS journal (bad magic)");
+        int v = h.getInt();
+        if (v != VERSION) throw new IOException("unsupported ITWS journal version " + v);
+    }
+
+    private static byte[] str(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        int n = Math.min(b.length, 0xFFFF);
+        byte[] out = new byte[2 + n];
+        out[0] = (byte) (n >>> 8);
+        out[1] = (byte) n;
+        System.arraycopy(b, 0, out, 2, n);
+        return out;
+    }
+
+    private static String readStr(ByteBuffer b) {
+        int n = b.getShort() & 0xFFFF;
+        byte[] s = new byte[n];
+        b.get(s);
+        return new String(s, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,249 @@
+package dev.vstars;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics, served as Prometheus text on ITWS_METRICS_PORT (opt-in, e.g. 9464; 0 = off, the default).
+ *
+ * Recording is lock-free and allocation-free: a histogram is a fixed array of atomic bucket
+ * counters plus an atomic sum, a counter is one AtomicLong. Only a scrape builds strings.
+ *
+ * Durations are recorded in nanoseconds and exposed in seconds.
+ */
+final class ItwsMetrics {
+
+    private ItwsMetrics() {}
+
+    private static final List<Metric> ALL = new ArrayList<>();
+    private static final List<Gauge> GAUGES = new CopyOnWriteArrayList<>();
+
+    private static final double NS = 1e-9, MS = 1e-3, ONE = 1;
+
+    // bucket upper bounds, in the recorded unit
+    private static final long[] DURATION_NS = {
+            50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 25_000_000, 50_000_000,
+            100_000_000, 250_000_000, 500_000_000, 1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+    private static final long[] AGE_MS = {
+            1_000, 2_000, 5_000, 10_000, 15_000, 30_000, 60_000, 120_000, 300_000, 600_000, 1_800_000
+    };
+    private static final long[] BYTES = {
+            1 << 10, 4 << 10, 16 << 10, 64 << 10, 256 << 10, 1 << 20, 4 << 20, 16 << 20, 64 << 20
+    };
+    private static final long[] CELLS = {10_000, 40_000, 160_000, 640_000, 2_560_000, 10_240_000};
+    private static final long[] ATTEMPTS = {1, 2, 3, 5, 10, 20, 50, 100};
+
+    // ---------------- Histograms ----------------
+
+    static final Histogram RECEIVE_TO_PARSE = histogram("itws_receive_to_parse_seconds",
+            "Time from JMS receive until a parse worker picks the message up", NS, DURATION_NS);
+    static final Histogram PARSE = histogram("itws_parse_seconds",
+            "9850 parse duration (XML + grid RLE)", NS, DURATION_NS);
+    static final Histogram ENCODE = histogram("itws_encode_seconds",
+            "Per-frame payload fragment encode duration (JSON or binary)", NS, DURATION_NS);
+    static final Histogram POST = histogram("itws_post_seconds",
+            "Round trip of a single POST attempt", NS, DURATION_NS);
+    static final Histogram POST_ATTEMPTS = histogram("itws_post_attempts",
+            "Attempts per delivered POST (1 = no retry)", ONE, ATTEMPTS);
+    static final Histogram FRAME_AGE = histogram("itws_frame_age_at_post_seconds",
+            "Age of the newest frame (since itwsGenTimeMs) when its POST succeeded", MS, AGE_MS);
+    static final Histogram MESSAGE_BYTES = histogram("itws_message_bytes",
+            "Message body size in bytes (UTF-8 length for a TextMessage)", ONE, BYTES);
+    static final Histogram HEADER_BYTES = histogram("itws_header_bytes",
+            "Body bytes (or chars) the receive thread read to find a message's product and site", ONE, BYTES);
+    static final Histogram FRAME_CELLS = histogram("itws_frame_cells",
+            "Grid cells per parsed frame", ONE, CELLS);
+
+    // ---------------- Counters ----------------
+
+    static final Counter RECEIVED = counter("itws_messages_received_total",
+            "Messages received from JMS (or a replayed journal)");
+    static final Counter FILTERED = counter("itws_messages_filtered_total",
+            "Messages skipped as another product or site (header read or parsed product id)");
+    static final Counter OVERSIZED = counter("itws_messages_oversized_total",
+            "Messages rejected for exceeding ITWS_MAX_XML_BYTES");
+    static final Counter PARSE_FAILED = counter("itws_parse_failed_total",
+            "Messages whose parse threw");
+    static final Counter DIMS_UNKNOWN = counter("itws_dims_unknown_total",
+            "Frames dropped because no plot dimensions could be determined");
+    static final Counter DIMS_MISMATCH = counter("itws_dims_mismatch_total",
+            "Frames whose cell count differs from plotRows*plotCols");
+    static final Counter POSTS_OK = counter("itws_posts_ok_total",
+            "POSTs that returned 2xx");
+    static final Counter POST_ERRORS = counter("itws_post_errors_total",
+            "POST attempts that failed (non-2xx or I/O error)");
+    static final Counter POSTS_SUPERSEDED = counter("itws_posts_superseded_total",
+            "Failed POSTs dropped because a newer payload got through");
+    static final Counter POSTS_TRIMMED = counter("itws_posts_trimmed_total",
+            "Payloads posted without their oldest frames to fit ITWS_POST_MAX_BYTES");
+    static final Counter DUPLICATES = counter("itws_frames_duplicate_total",
+            "Frames ACKed as a redelivery or copy of one already cached (same site, generation time and grid)");
+    static final Counter UNCHANGED = counter("itws_frames_unchanged_total",
+            "Frames ACKed without a POST because their grid equals the site's newest (ITWS_SKIP_UNCHANGED)");
+    static final Counter FRAMES_DELIVERED = counter("itws_frames_delivered_total",
+            "Frames ACKed after a successful (or superseding) POST, or once spooled to the outbox");
+    static final Counter SERVE_OK = counter("itws_serve_ok_total",
+            "Payloads sent by the embedded radar server (ITWS_SERVE_PORT)");
+    static final Counter SERVE_NOT_MODIFIED = counter("itws_serve_not_modified_total",
+            "Embedded radar server requests answered 304 (If-None-Match on the current frame, or nothing newer than since=)");
+    static final Counter SERVE_WAIT_REFUSED = counter("itws_serve_wait_refused_total",
+            "Long polls answered at once because the request threads were all holding polls");
+    static final Counter PROJECTIONS = counter("itws_projections_built_total",
+            "Grid-to-lat/lon tables built (a geometry not seen before, or evicted)");
+    static final Counter SITE_RESTARTS = counter("itws_site_restarts_total",
+            "Site receive loops restarted after a failure");
+
+    /** Registers a gauge read at scrape time (e.g. queue depths). */
+    static void gauge(String name, String help, LongSupplier value) {
+        GAUGES.add(new Gauge(name, help, value));
+    }
+
+    // ---------------- Types ----------------
+
+    private abstract static class Metric {
+        final String name, help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract void render(StringBuilder sb);
+    }
+
+    static final class Counter extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter(String name, String help) { super(name, help); }
+
+        void inc() { value.incrementAndGet(); }
+
+        void add(long n) { value.addAndGet(n); }
+
+        long get() { return value.get(); }
+
+        @Override
+        void render(StringBuilder sb) {
+            header(sb, name, help, "counter");
+            sb.append(name).append(' ').append(value.get()).append('\n');
+        }
+    }
+
+    static final class Histogram extends Metric {
+        private final long[] bounds;
+        private final String[] le;             // bounds in the exposed unit
+        private final AtomicLongArray buckets; // last slot = +Inf
+        private final AtomicLong sum = new AtomicLong();
+        private final double scale;            // recorded unit -> exposed unit
+
+        private Histogram(String name, String help, double scale, long[] bounds) {
+            super(name, help);
+            this.bounds = bounds;
+            this.buckets = new AtomicLongArray(bounds.length + 1);
+            this.scale = scale;
+            this.le = new String[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                le[i] = BigDecimal.valueOf(bounds[i]).multiply(BigDecimal.valueOf(scale)).stripTrailingZeros().toPlainString();
+            }
+        }
+
+        void record(long v) {
+            int i = 0;
+            while (i < bounds.length && v > bounds[i]) i++;
+            buckets.incrementAndGet(i);
+            sum.addAndGet(v);
+        }
+
+        /** Records {@code System.nanoTime() - startNanos}. */
+        void since(long startNanos) { record(System.nanoTime() - startNanos); }
+
+        @Override
+        void render(StringBuilder sb) {
+            header(sb, name, help, "histogram");
+            long cum = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cum += buckets.get(i);
+                sb.append(name).append("_bucket{le=\"").append(le[i]).append("\"} ").append(cum).append('\n');
+            }
+            cum += buckets.get(bounds.length);
+            sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cum).append('\n');
+            sb.append(name).append("_sum ").append(sum.get() * scale).append('\n');
+            sb.append(name).append("_count ").append(cum).append('\n');
+        }
+    }
+
+    private static final class Gauge extends Metric {
+        private final LongSupplier value;
+
+        Gauge(String name, String help, LongSupplier value) {
+            super(name, help);
+            this.value = value;
+        }
+
+        @Override
+        void render(StringBuilder sb) {
+            header(sb, name, help, "gauge");
+            sb.append(name).append(' ').append(value.getAsLong()).append('\n');
+        }
+    }
+
+    private static Histogram histogram(String name, String help, double scale, long[] bounds) {
+        Histogram h = new Histogram(name, help, scale, bounds);
+        ALL.add(h);
+        return h;
+    }
+
+    private static Counter counter(String name, String help) {
+        Counter c = new Counter(name, help);
+        ALL.add(c);
+        return c;
+    }
+
+    // ---------------- Exposition ----------------
+
+    static String scrape() {
+        StringBuilder sb = new StringBuilder(8192);
+        for (Metric m : ALL) m.render(sb);
+        for (Gauge g : GAUGES) g.render(sb);
+        return sb.toString();
+    }
+
+    /** Starts GET /metrics on {@code port}; the server runs on a daemon thread. */
+    static HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "itws-metrics");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.createContext("/metrics", ex -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            ex.sendResponseHeaders(200, body.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
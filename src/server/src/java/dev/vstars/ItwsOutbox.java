@@ -0,0 +1,409 @@
+package dev.vstars;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead outbox of one lane (ITWS_OUTBOX_DIR/&lt;productID&gt;/): built payloads are spooled to
+ * disk so their JMS messages can be ACKed before any sink has them.
+ *
+ * - The encode thread appends each payload to a memory-mapped segment file.
+ * - A sync thread forces the appended range every ITWS_OUTBOX_SYNC_MS (group fsync) and only
+ *   then runs the records' callbacks, which ACK their messages.
+ * - Each sink keeps a cursor: every record before it is delivered (or superseded) on that sink.
+ *   Cursors are rewritten on the sync tick; segments wholly behind every cursor are deleted.
+ * - At startup the records at or after a sink's cursor are handed back for posting. A record is
+ *   lost only if it was never forced, and then its message was never ACKed; what is posted twice
+ *   is at most what was delivered since the last cursor write.
+ *
+ * Segment "&lt;base&gt;.seg": "ITWSOBOX" u32 version, i64 base, then records until a zero length
+ * (a record's offset is base + its position in the file; all integers big-endian):
+ *
+ *   u32 recordLen      bytes after this field; written last, so a torn record reads as the end
+ *   u32 crc            CRC-32C of the bytes after this field
+ *   i64 appendedMs
+ *   str site, str idempotencyKey ("" => none)
+ *   i64 genMs, str describe, u16 frames
+ *   str contentType, i64 baselineLength
+ *   u32 bodyLen, body
+ *
+ * str = u16 byte length + UTF-8. Cursor "&lt;sink&gt;.cursor": i64 offset.
+ */
+final class ItwsOutbox {
+
+    static final byte[] MAGIC = {'I', 'T', 'W', 'S', 'O', 'B', 'O', 'X'};
+    static final int VERSION = 1;
+    static final int HEADER_LEN = MAGIC.length + 4 + 8;
+
+    private static final long SEGMENT = 64L << 20;
+
+    /** A spooled payload as read back at startup. */
+    record Entry(long offset, String site, String idempotencyKey, long genMs, String describe, int frames,
+                 ItwsConsumer.Payload payload) {}
+
+    private final Path dir;
+    private final String name; // for the sync thread and log lines
+    private final int syncMs;
+    private final Cursor[] cursors; // per sink
+
+    // writer state; guarded by this
+    private final TreeMap<Long, Path> segments = new TreeMap<>(); // by base
+    private FileChannel ch;
+    private MappedByteBuffer map;
+    private long base;
+    private int synced;   // position in map forced so far
+    private ArrayList<Runnable> waiting = new ArrayList<>(); // callbacks of records not forced yet
+    private final CRC32C crc = new CRC32C();
+
+    private long recoverFrom, recoverTo; // lowest cursor and end of the log at open
+
+    /** Opens (or creates) the outbox in {@code dir} for the given sinks, in sink order. */
+    ItwsOutbox(Path dir, String name, List<String> sinks, int syncMs) throws IOException {
+        this.dir = dir;
+        this.name = name;
+        this.syncMs = Math.max(1, syncMs);
+        Files.createDirectories(dir);
+
+        this.cursors = new Cursor[sinks.size()];
+        long maxCursor = 0;
+        recoverFrom = Long.MAX_VALUE;
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = new Cursor(dir.resolve(fileName(sinks.get(i)) + ".cursor"));
+            recoverFrom = Math.min(recoverFrom, cursors[i].persisted);
+            maxCursor = Math.max(maxCursor, cursors[i].persisted);
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+            for (Path p : files) {
+                String n = p.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(n.substring(0, n.length() - 4)), p);
+                } catch (NumberFormatException e) {
+                    System.err.println("WARN: ignoring outbox file " + p);
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            open(maxCursor, 0);
+        } else {
+            Map.Entry<Long, Path> last = segments.lastEntry();
+            open(last.getKey(), scan(last.getValue(), last.getKey(), Long.MAX_VALUE, null));
+        }
+        recoverTo = base + map.position();
+    }
+
+    /**
+     * Before {@link #start}: hands every record at or after the lowest sink cursor to {@code out},
+     * oldest first, and marks it outstanding on the sinks that have not delivered it.
+     */
+    void recover(Consumer<Entry> out) throws IOException {
+        List<Map.Entry<Long, Path>> segs = new ArrayList<>(segments.entrySet());
+        for (int i = 0; i < segs.size(); i++) {
+            long next = (i + 1 < segs.size()) ? segs.get(i + 1).getKey() : Long.MAX_VALUE;
+            if (next <= recoverFrom) continue; // wholly delivered
+            scan(segs.get(i).getValue(), segs.get(i).getKey(), recoverFrom, e -> {
+                if (e.offset() >= recoverTo) return; // appended since the open
+                for (Cursor c : cursors) {
+                    if (e.offset() >= c.persisted) c.add(e.offset());
+                }
+                out.accept(e);
+            });
+        }
+    }
+
+    /** True if sink {@code sink} still has to deliver the record at {@code offset}. */
+    boolean pending(int sink, long offset) {
+        return offset >= cursors[sink].persisted;
+    }
+
+    void start() {
+        Thread t = new Thread(this::syncLoop, "itws-outbox-" + name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // ---------------- Append (encode thread) ----------------
+
+    /**
+     * Appends a payload; {@code durable} runs on the sync thread once the record is on disk.
+     * Returns the record's offset, outstanding on every sink until {@link #done}.
+     */
+    synchronized long append(String site, String idempotencyKey, long genMs, String describe, int frames,
+                             ItwsConsumer.Payload payload, Runnable durable) throws IOException {
+        byte[] s = str(site), k = str(idempotencyKey), d = str(describe), ct = str(payload.contentType);
+        long recordLen = 4 + 8 + s.length + k.length + 8 + d.length + 2 + ct.length + 8 + 4 + payload.length;
+        if (recordLen > Integer.MAX_VALUE - 8) throw new IOException("payload of " + payload.length + " bytes");
+        ensure(4 + recordLen + 4);
+
+        int start = map.position();
+        map.position(start + 8);
+        map.putLong(System.currentTimeMillis());
+        map.put(s).put(k);
+        map.putLong(genMs).put(d).putShort((short) frames);
+        map.put(ct).putLong(payload.baselineLength);
+        map.putInt((int) payload.length);
+        for (int i = 0; i < payload.partCount(); i++) map.put(payload.part(i));
+        int end = map.position();
+
+        crc.reset();
+        crc.update(map.slice(start + 8, end - start - 8));
+        map.putInt(start + 4, (int) crc.getValue());
+        // length last: until here the record is invisible to recovery
+        map.putInt(start, (int) recordLen);
+
+        long offset = base + start;
+        for (Cursor c : cursors) c.add(offset);
+        if (durable != null) waiting.add(durable);
+        return offset;
+    }
+
+    /** Sink {@code sink} delivered (or superseded) the record at {@code offset}. */
+    void done(int sink, long offset) {
+        cursors[sink].done(offset);
+    }
+
+    /** Bytes between the slowest sink's cursor and the end of the log. */
+    synchronized long backlogBytes() {
+        long end = base + map.position();
+        long min = end;
+        for (Cursor c : cursors) min = Math.min(min, c.position(end));
+        return end - min;
+    }
+
+    private void ensure(long need) throws IOException {
+        if (map.remaining() >= need) return;
+        // the full segment is forced now, so the sync thread only ever forces the current one
+        long next = base + map.position();
+        map.force();
+        map = null;
+        ch.truncate(next - base);
+        ch.close();
+        open(next, 0, need);
+    }
+
+    private void open(long at, int end) throws IOException {
+        open(at, end, 0);
+    }
+
+    /** Maps segment {@code at} for appending at {@code end} (0 => a new segment). */
+    private void open(long at, int end, long need) throws IOException {
+        Path p = dir.resolve(String.format("%020d.seg", at));
+        ch = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (end == 0) {
+            ch.truncate(0);
+            ByteBuffer h = ByteBuffer.allocate(HEADER_LEN).put(MAGIC).putInt(VERSION).putLong(at).flip();
+            while (h.hasRemaining()) ch.write(h, h.position());
+            end = HEADER_LEN;
+        } else {
+            ch.truncate(end); // drop a torn record, so what follows reads as zeros
+        }
+        map = ch.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(SEGMENT, HEADER_LEN + need));
+        map.position(end);
+        base = at;
+        synced = end;
+        segments.put(at, p);
+    }
+
+    // ---------------- Sync thread ----------------
+
+    private void syncLoop() {
+        while (true) {
+            try {
+                Thread.sleep(syncMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                sync();
+                compact();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("WARN: outbox " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** Forces what was appended since the last sync, then runs its callbacks. */
+    private void sync() {
+        MappedByteBuffer m;
+        int from, to;
+        ArrayList<Runnable> ready;
+        synchronized (this) {
+            if (waiting.isEmpty() && map.position() == synced) return;
+            m = map;
+            from = synced;
+            to = map.position();
+            synced = to;
+            ready = waiting;
+            waiting = new ArrayList<>();
+        }
+        try {
+            m.force(from, to - from); // outside the lock: appends go on meanwhile
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                if (map == m) synced = Math.min(synced, from);
+                ready.addAll(waiting);
+                waiting = ready;
+            }
+            throw e;
+        }
+        for (Runnable r : ready) r.run();
+    }
+
+    /** Rewrites moved cursors, then deletes the segments every sink is past. */
+    private void compact() throws IOException {
+        long end;
+        synchronized (this) {
+            end = base + map.position();
+        }
+        long min = end;
+        for (Cursor c : cursors) min = Math.min(min, c.persist(end));
+
+        synchronized (this) {
+            Iterator<Map.Entry<Long, Path>> it = segments.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Path> e = it.next();
+                Long next = segments.higherKey(e.getKey());
+                if (next == null || next > min) break;
+                Files.deleteIfExists(e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    // ---------------- Read ----------------
+
+    /**
+     * Walks the records of one segment, passing those at or after {@code from} to {@code out}
+     * (null => none); returns the position after the last intact record.
+     */
+    private static int scan(Path p, long base, long from, Consumer<Entry> out) throws IOException {
+        try (FileChannel rc = FileChannel.open(p, StandardOpenOption.READ)) {
+            long size = Math.min(rc.size(), Integer.MAX_VALUE);
+            if (size < HEADER_LEN) return 0;
+            MappedByteBuffer m = rc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] magic = new byte[MAGIC.length];
+            m.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || m.getInt() != VERSION || m.getLong() != base) {
+                throw new IOException("not an outbox segment: " + p);
+            }
+
+            CRC32C crc = new CRC32C();
+            int pos = HEADER_LEN;
+            while (pos + 8 <= size) {
+                int len = m.getInt(pos);
+                if (len <= 4 || pos + 4L + len > size) break;
+                crc.reset();
+                crc.update(m.slice(pos + 8, len - 4));
+                if ((int) crc.getValue() != m.getInt(pos + 4)) {
+                    System.err.println("WARN: outbox " + p + ": torn record at " + pos);
+                    break;
+                }
+                if (out != null && base + pos >= from) {
+                    m.position(pos + 8);
+                    out.accept(entry(m, base + pos));
+                }
+                pos += 4 + len;
+            }
+            return pos;
+        }
+    }
+
+    private static Entry entry(ByteBuffer m, long offset) {
+        m.getLong(); // appendedMs
+        String site = str(m);
+        String key = str(m);
+        long genMs = m.getLong();
+        String describe = str(m);
+        int frames = m.getShort() & 0xFFFF;
+        String contentType = str(m);
+        long baseline = m.getLong();
+        byte[] body = new byte[m.getInt()];
+        m.get(body);
+        ItwsConsumer.Payload p = new ItwsConsumer.Payload(new byte[][] {body}, 1, contentType, baseline);
+        return new Entry(offset, site, key.isEmpty() ? null : key, genMs, describe, frames, p);
+    }
+
+    // ---------------- Cursors ----------------
+
+    /** One sink's progress: the records it has not delivered yet, and the offset last written. */
+    private static final class Cursor {
+        private final Path file;
+        private final TreeSet<Long> outstanding = new TreeSet<>();
+        private long persisted;
+
+        Cursor(Path file) throws IOException {
+            this.file = file;
+            if (Files.exists(file)) {
+                byte[] b = Files.readAllBytes(file);
+                if (b.length == 8) persisted = ByteBuffer.wrap(b).getLong();
+            }
+        }
+
+        synchronized void add(long offset) { outstanding.add(offset); }
+
+        synchronized void done(long offset) { outstanding.remove(offset); }
+
+        /** The oldest undelivered record, or {@code end} if there is none. */
+        synchronized long position(long end) {
+            return outstanding.isEmpty() ? end : outstanding.first();
+        }
+
+        /** Writes the cursor if it moved (temp file + atomic rename); returns it. */
+        long persist(long end) throws IOException {
+            long at = position(end);
+            if (at == persisted) return at;
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, ByteBuffer.allocate(8).putLong(at).array());
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            persisted = at;
+            return at;
+        }
+    }
+
+    // ---------------- Encoding ----------------
+
+    private static byte[] str(String s) {
+        byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        int n = Math.min(b.length, 0xFFFF);
+        ByteBuffer out = ByteBuffer.allocate(2 + n).putShort((short) n).put(b, 0, n);
+        return out.array();
+    }
+
+    private static String str(ByteBuffer m) {
+        byte[] b = new byte[m.getShort() & 0xFFFF];
+        m.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static String fileName(String sink) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < sink.length(); i++) {
+            char c = sink.charAt(i);
+            sb.append((Character.isLetterOrDigit(c) || c == '_' || c == '-') ? c : '_');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,995 @@
+package dev.vstars;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Staged ITWS pipeline:
+ *
+ *   receive (one thread per site) -> header -> lane[productID]: [parseQ] -> parse pool -> encode (in order) -> per sink: [postQ] -> post -> ACK release
+ *
+ * - Each site (SCDS_QUEUE_ITWS entry) has its own receive thread and JMS session; only that
+ *   thread touches the session. It reads each message's product (and site) once
+ *   ({@link ItwsDecoders#readHeader}) and hands it to that product's lane; messages of products
+ *   not in ITWS_PRODUCTS or sites not in ITWS_SITES are ACKed right away.
+ * - Every lane has its own {@link ItwsDecoder} and encode thread, a post queue, post thread and
+ *   {@link ItwsPoster} per sink (WX_POST_URLS), and a FrameCache per ITWS site (product_header_itws_sites) posted with ?site=. Decoding runs on one
+ *   worker pool shared by all lanes and sites, so a heavy product only takes pool threads,
+ *   never another lane's encode or post stage.
+ * - A lane's encode stage consumes results in receive order, so each FrameCache has a single
+ *   writer and history order matches the queue.
+ * - Between polls a receive thread ACKs every finished message it received, in receive order
+ *   per lane (one batch per pass; sessions ACK individually, so lanes don't wait on each other).
+ * - A message is finished when it was filtered/skipped, or when the POSTs carrying its frame
+ *   returned 2xx on as many sinks as ITWS_ACK_POLICY asks for (all, any, quorum). Failed
+ *   messages finish without ACK (redelivery) unless ITWS_ACK_ON_EXCEPTION.
+ *
+ * With ITWS_OUTBOX_DIR, the encode stage also spools each payload to the lane's {@link ItwsOutbox}
+ * and its messages are finished once the spool is on disk; the sinks then only move the outbox
+ * cursors, and ITWS_ACK_POLICY no longer applies.
+ *
+ * All queues are bounded. A sink's post queue never blocks the encode stage: a slow or failing
+ * sink keeps only the newest payloads per site and retries with backoff, while its unfinished
+ * messages stay unACKed, so what backs up is the broker, not the heap or the other sinks.
+ *
+ * With ITWS_JOURNAL set, the receive threads append each message to an {@link ItwsJournal}
+ * before it enters the pipeline; ITWS_REPLAY feeds such a journal back in place of the broker.
+ *
+ * Coalescing (opt-in: ITWS_COALESCE=true): while a POST is in flight, later frames still update
+ * FrameCache but only the newest payload per site is posted; superseded frames are ACKed with
+ * it. When a backlog is drained after a reconnect, frames whose successor is already parsed
+ * skip payload building entirely, so the scope is current after one POST instead of replaying
+ * history.
+ *
+ * Duplicates: each lane remembers the identities (site, generation time, content hash) of the
+ * last {@link #RECENT_IDS} frames it cached. A redelivered copy is ACKed without encoding,
+ * caching or posting it, so it cannot push a real frame out of the history.
+ */
+final class ItwsPipeline {
+
+    // far more than the unACKed window (parse queue + in-flight payloads) a redelivery comes from
+    private static final int RECENT_IDS = 256;
+
+    private final ItwsConsumer.Config cfg;
+    private final Map<Integer, Lane<?>> lanes = new LinkedHashMap<>(); // by productID
+    private final ExecutorService parsePool; // shared by all lanes
+    private final ItwsJournal.Writer journal; // null => no capture
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final ExecutorService snapshots; // null => no warm-start snapshots
+    private final ItwsRadarServer server; // null => not serving
+    private final List<Receiver> receivers = new CopyOnWriteArrayList<>();
+
+    // gauges (read by the heartbeat)
+    private final AtomicInteger parsing = new AtomicInteger();
+
+    // receive -> delivered latency (read by the replay summary)
+    private final AtomicLong latencySumMs = new AtomicLong();
+    private final AtomicLong latencyMaxMs = new AtomicLong();
+
+    ItwsPipeline(ItwsConsumer.Config cfg, HttpClient http, ItwsJournal.Writer journal) throws IOException {
+        this.cfg = cfg;
+        this.journal = journal;
+        this.parsePool = Executors.newFixedThreadPool(Math.max(1, cfg.parseThreads), daemon("itws-parse"));
+        this.snapshots = (cfg.snapshotDir != null) ? Executors.newSingleThreadExecutor(daemon("itws-snapshot")) : null;
+        this.server = (cfg.servePort > 0) ? new ItwsRadarServer(cfg.servePort) : null;
+
+        for (int id : cfg.products) {
+            ItwsDecoder<?> d = ItwsDecoders.create(id, cfg);
+            if (d == null) throw new IllegalArgumentException("No decoder for ITWS product " + id);
+            lanes.put(id, newLane(d, http));
+        }
+
+        ItwsMetrics.gauge("itws_parse_queue_depth", "Messages waiting for the encode stage", this::parseQueueDepth);
+        ItwsMetrics.gauge("itws_parsing", "Messages being parsed", this::parsingInFlight);
+        ItwsMetrics.gauge("itws_post_queue_depth", "Payloads waiting to be posted", this::postQueueDepth);
+        ItwsMetrics.gauge("itws_posts_in_flight", "POSTs outstanding", this::postsInFlight);
+        ItwsMetrics.gauge("itws_ack_pending", "Received messages not yet ACKed", this::ackPendingDepth);
+        if (cfg.outboxDir != null) {
+            ItwsMetrics.gauge("itws_outbox_backlog_bytes", "Outbox bytes not yet delivered to every sink", this::outboxBacklog);
+        }
+    }
+
+    private <F> Lane<F> newLane(ItwsDecoder<F> d, HttpClient http) throws IOException {
+        return new Lane<>(d, http);
+    }
+
+    /** One line per lane for the startup banner. */
+    String describeLanes() {
+        StringBuilder sb = new StringBuilder();
+        for (Lane<?> l : lanes.values()) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append("  ").append(l.decoder.productId()).append(' ').append(l.decoder.name()).append(" ->");
+            for (Lane<?>.Sender k : l.senders) sb.append(' ').append(k.name).append('=').append(k.url);
+            if (server != null) sb.append(", served on :").append(server.port()).append(l.servePath);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Starts the lanes. With ITWS_SNAPSHOT_DIR set, the cached history of every site is restored
+     * first and its payload queued for POST right away; call this before connecting to the broker.
+     */
+    void start() {
+        if (!started.compareAndSet(false, true)) return;
+        long now = System.currentTimeMillis();
+        for (Lane<?> l : lanes.values()) {
+            if (cfg.snapshotDir != null) l.restore(now);
+            l.start();
+        }
+    }
+
+    // ---------------- Receive stage (one thread per site) ----------------
+
+    void run(MessageConsumer consumer) throws JMSException, InterruptedException {
+        run(consumer, "itws", () -> false);
+    }
+
+    /**
+     * Receives from one site until {@code sourceDone} is true and every message it received has
+     * been finished. Several sites may run concurrently, each on its own thread and session.
+     */
+    void run(MessageConsumer consumer, String source, BooleanSupplier sourceDone) throws JMSException, InterruptedException {
+        start();
+
+        Receiver r = new Receiver(source);
+        receivers.add(r);
+        try {
+            r.run(consumer, sourceDone);
+        } finally {
+            receivers.remove(r);
+        }
+    }
+
+    /** ITWS_SITES: true if {@code site} (null => the header had none) is to be consumed. */
+    private boolean wantedSite(String site) {
+        return cfg.sites.isEmpty() || (site != null && cfg.sites.contains(site));
+    }
+
+    /** State owned by one receive thread: its header scratch and its unACKed messages per lane. */
+    private final class Receiver {
+        final String source;
+        final byte[] scratch = new byte[8 * 1024];
+        final ItwsHeader header = new ItwsHeader();
+        final Map<Lane<?>, ArrayDeque<Ticket<?>>> unacked = new LinkedHashMap<>();
+        volatile int ackPending = 0;
+
+        Receiver(String source) {
+            this.source = source;
+            for (Lane<?> l : lanes.values()) unacked.put(l, new ArrayDeque<>());
+        }
+
+        void run(MessageConsumer consumer, BooleanSupplier sourceDone) throws JMSException, InterruptedException {
+            long pollMs = Math.max(1, Math.min(cfg.receiveTimeoutMs, cfg.ackFlushMs));
+            long empty = 0;
+            long lastBeat = System.currentTimeMillis();
+
+            while (true) {
+                if (releaseAcks() == 0 && sourceDone.getAsBoolean()) return;
+
+                long now = System.currentTimeMillis();
+                if (now - lastBeat >= cfg.heartbeatMs) {
+                    System.out.println("Pipeline[" + source + "] " + gauges() + " (" + empty + " empty polls)");
+                    lastBeat = now;
+                }
+
+                Message msg = consumer.receive(pollMs);
+                if (msg == null) {
+                    empty++;
+                    continue;
+                }
+
+                long receiverMs = System.currentTimeMillis();
+                ItwsMetrics.RECEIVED.inc();
+
+                if (journal != null) {
+                    try {
+                        synchronized (journal) {
+                            journal.append(msg, receiverMs);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("WARN: journal append failed: " + e.getMessage());
+                    }
+                }
+
+                // Cheap gate: one header read routes the message; unknown products and sites are ACKed here
+                ItwsHeader h = ItwsDecoders.readHeader(msg, header, scratch, !cfg.sites.isEmpty());
+                Lane<?> lane = lanes.get(h.productId());
+                if (lane == null || !wantedSite(h.site())) {
+                    ItwsMetrics.FILTERED.inc();
+                    msg.acknowledge();
+                    continue;
+                }
+
+                Ticket<?> t = lane.submit(msg, receiverMs);
+                unacked.get(lane).addLast(t);
+
+                // backpressure: keep releasing ACKs while the lane's encode stage catches up
+                while (!lane.enqueue(t, pollMs)) {
+                    releaseAcks();
+                }
+            }
+        }
+
+        /** ACKs finished messages in receive order per lane; returns how many are still pending. */
+        private int releaseAcks() throws JMSException {
+            int pending = 0;
+            for (ArrayDeque<Ticket<?>> q : unacked.values()) {
+                Ticket<?> head;
+                while ((head = q.peekFirst()) != null && head.state != Ticket.PENDING) {
+                    q.pollFirst();
+                    if (head.state == Ticket.ACK) head.msg.acknowledge();
+                }
+                pending += q.size();
+            }
+            ackPending = pending;
+            return pending;
+        }
+    }
+
+    // ---------------- Lanes ----------------
+
+    /** Everything one product owns: decoder, per-site caches, encode stage and one post stage per sink. */
+    private final class Lane<F> {
+        final ItwsDecoder<F> decoder;
+        final List<Sender> senders = new ArrayList<>(); // one per sink, in cfg.sinks order
+        final int ackNeeded; // sinks that must have a frame before its message is ACKed
+        final ItwsOutbox outbox; // null => messages are ACKed on delivery
+        final String servePath;  // the primary sink's path, on the embedded server
+
+        final BlockingQueue<Ticket<F>> parseQ;
+        final RecentIds recent = new RecentIds(RECENT_IDS);
+
+        // by ITWS site; owned by the encode thread
+        final Map<String, Site> sites = new HashMap<>();
+
+        Lane(ItwsDecoder<F> decoder, HttpClient http) throws IOException {
+            this.decoder = decoder;
+            this.parseQ = new ArrayBlockingQueue<>(Math.max(1, cfg.parseQueueCapacity));
+            for (ItwsConsumer.Config.Sink k : cfg.sinks) senders.add(new Sender(senders.size(), k, http));
+            this.ackNeeded = cfg.ackPolicy.needed(senders.size());
+
+            List<String> names = new ArrayList<>();
+            for (Sender k : senders) names.add(k.name);
+            this.outbox = (cfg.outboxDir == null) ? null
+                    : new ItwsOutbox(cfg.outboxDir.resolve(String.valueOf(decoder.productId())), decoder.name(),
+                            names, cfg.outboxSyncMs);
+
+            this.servePath = senders.get(0).url.getPath();
+            if (server != null) server.register(servePath);
+        }
+
+        /** One ITWS site of this product: its frame history and where it is posted. */
+        final class Site {
+            final String name;
+            final ItwsConsumer.FrameCache<F> cache = new ItwsConsumer.FrameCache<>(cfg.historyFrames,
+                    cfg.historyWindowMs, (long) cfg.historyMaxMb << 20,
+                    decoder::genTimeMs, decoder::expTimeMs, decoder::retainedBytes);
+            final URI[] urls;            // per sink
+            final AtomicLong[] lastOkSeq; // per sink
+            final AtomicLong snapshotted = new AtomicLong(); // newest build handed to the snapshot thread
+
+            // frames pushed into the cache but not yet carried by a payload
+            ArrayList<Ticket<F>> carry = new ArrayList<>();
+            F newest;
+            long newestId; // frameId of newest, 0 => none
+            long builds;   // payloads built so far
+
+            Site(String name) {
+                this.name = name;
+                this.urls = new URI[senders.size()];
+                this.lastOkSeq = new AtomicLong[senders.size()];
+                for (int i = 0; i < urls.length; i++) {
+                    urls[i] = withSite(senders.get(i).url, name);
+                    lastOkSeq[i] = new AtomicLong();
+                }
+            }
+        }
+
+        /** Before the encode thread starts: reloads snapshots into the site caches and queues their payloads. */
+        void restore(long nowMs) {
+            for (ItwsSnapshot.Restored<F> r : ItwsSnapshot.load(cfg.snapshotDir, decoder, nowMs)) {
+                Site s = sites.computeIfAbsent(r.site(), Site::new);
+                List<F> frames = r.frames();
+                for (int i = frames.size() - 1; i >= 0; i--) { // oldest first, so the newest ends up at 0
+                    F f = frames.get(i);
+                    decoder.encode(f);
+                    s.cache.push(f);
+                    // a redelivery of a snapshotted frame is a duplicate after the restart too
+                    long id = frameId(f);
+                    if (id != 0) recent.add(id);
+                }
+                s.newest = s.cache.get(0);
+                s.newestId = frameId(s.newest);
+
+                dispatch(s, new ArrayList<>(), decoder.buildPayload(s.cache), history(s.cache));
+
+                System.out.println("Warm start: " + decoder.name() + " site=" + s.name
+                        + " frames=" + s.cache.size() + " (snapshot)");
+            }
+        }
+
+        /** Before the encode thread starts: queues the spooled payloads a sink had not delivered. */
+        private void recoverOutbox() throws IOException {
+            int[] n = new int[1];
+            outbox.recover(e -> {
+                Site s = sites.computeIfAbsent(e.site(), Site::new);
+                for (int i = 0; i < senders.size(); i++) {
+                    if (!outbox.pending(i, e.offset())) continue;
+                    senders.get(i).queue.offer(new Outbound<>(s.name, s.urls[i], s.lastOkSeq[i], s.snapshotted, 0,
+                            new ArrayList<>(), records(e.offset()), e.genMs(), e.describe(), e.idempotencyKey(),
+                            e.payload(), e.frames(), null));
+                }
+                n[0]++;
+            });
+            if (n[0] > 0) {
+                System.out.println("Outbox: " + decoder.name() + " resumed " + n[0] + " payloads ("
+                        + outbox.backlogBytes() + " bytes)");
+            }
+        }
+
+        void start() {
+            if (outbox != null) {
+                try {
+                    recoverOutbox();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("outbox recovery failed (" + decoder.name() + ")", e);
+                }
+                outbox.start();
+            }
+            startDaemon("itws-encode-" + decoder.name(), this::encodeLoop);
+            for (Sender k : senders) startDaemon("itws-post-" + decoder.name() + "-" + k.name, k::postLoop);
+        }
+
+        /** Receive thread: starts decoding the message on the shared pool. */
+        Ticket<F> submit(Message msg, long receiverMs) {
+            Ticket<F> t = new Ticket<>(msg, receiverMs);
+            parsing.incrementAndGet();
+            t.parsed = CompletableFuture.supplyAsync(() -> parse(t), parsePool);
+            return t;
+        }
+
+        @SuppressWarnings("unchecked")
+        boolean enqueue(Ticket<?> t, long timeoutMs) throws InterruptedException {
+            return parseQ.offer((Ticket<F>) t, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        // ---------------- Parse stage (pool) ----------------
+
+        private F parse(Ticket<F> t) {
+            long t0 = System.nanoTime();
+            ItwsMetrics.RECEIVE_TO_PARSE.record(t0 - t.receivedNanos);
+            try {
+                F f = decoder.decode(t.msg, t.receiverMs);
+                long t1 = System.nanoTime();
+                ItwsMetrics.PARSE.record(t1 - t0);
+                if (f != null) {
+                    t.id = frameId(f);
+                    if (t.id != 0 && recent.contains(t.id)) return f; // a redelivery: the encode stage ACKs it
+                    decoder.encode(f);
+                    t.encoded = true;
+                    ItwsMetrics.ENCODE.since(t1);
+                }
+                return f;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            } finally {
+                parsing.decrementAndGet();
+            }
+        }
+
+        // ---------------- Encode stage (in receive order) ----------------
+
+        private void encodeLoop() {
+            while (true) {
+                Ticket<F> t;
+                try {
+                    t = parseQ.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                Site s = null;
+                try {
+                    F f = t.parsed.join();
+                    ItwsMetrics.Counter skip = (f == null) ? null : redundant(t, f, sites.get(nz(decoder.site(f))));
+                    if (f == null) {
+                        t.finish(true);
+                    } else if (skip != null) {
+                        // already cached (or, with ITWS_SKIP_UNCHANGED, the same picture): nothing to post
+                        skip.inc();
+                        decoder.recycle(f);
+                        t.finish(true);
+                    } else {
+                        if (!t.encoded) decoder.encode(f);
+
+                        // Add to the site's cache (newest first)
+                        s = sites.computeIfAbsent(nz(decoder.site(f)), Site::new);
+                        s.cache.push(f, decoder::recycle);
+                        if (t.id != 0) recent.add(t.id);
+                        s.carry.add(t);
+                        s.newest = f;
+                        s.newestId = t.id;
+                    }
+                } catch (Exception e) {
+                    Throwable c = (e.getCause() != null) ? e.getCause() : e;
+                    System.err.println("Error (" + decoder.name() + "): " + c.getMessage());
+                    ItwsMetrics.PARSE_FAILED.inc();
+                    // No ACK on exception => redelivery (reliability)
+                    t.finish(cfg.ackOnException);
+                }
+
+                // Catch-up: while the site's next frame is already parsed, this payload would be
+                // superseded before it could be posted, so only the cache is updated.
+                if (s == null || (cfg.coalesce && nextParsed(s))) continue;
+
+                // Build payload using cached frames
+                ItwsConsumer.Payload payload = decoder.buildPayload(s.cache);
+
+                if (cfg.printJson && payload.contentType.equals("application/json")) {
+                    synchronized (System.out) {
+                        try {
+                            payload.writeTo(System.out);
+                        } catch (java.io.IOException ignored) {}
+                        System.out.write('\n');
+                        System.out.flush();
+                    }
+                }
+
+                dispatch(s, s.carry, payload, (snapshots != null) ? history(s.cache) : null);
+                s.carry = new ArrayList<>();
+            }
+        }
+
+        /**
+         * Queues one built payload on every sink. Each sink gets its own list of the tickets it
+         * carries, since sinks supersede and deliver independently. With an outbox the payload is
+         * spooled first and its tickets are finished by the spool, not by the sinks.
+         */
+        private void dispatch(Site s, ArrayList<Ticket<F>> tickets, ItwsConsumer.Payload payload, List<F> history) {
+            long build = ++s.builds;
+            // the newest frame may be recycled before the POSTs complete: log fields are taken now
+            long genMs = decoder.genTimeMs(s.newest);
+            String describe = decoder.describe(s.newest);
+            String key = idempotencyKey(s);
+            if (server != null) server.publish(servePath, s.name, payload, genMs);
+
+            // the server keeps the whole loop; the sinks get as much of it as they accept
+            int frames = s.cache.size();
+            int fit = payload.framesWithin(cfg.postMaxBytes);
+            if (fit >= 0 && fit < frames) {
+                payload = payload.head(fit);
+                frames = fit;
+                ItwsMetrics.POSTS_TRIMMED.inc();
+            }
+
+            long record = -1;
+            if (outbox != null) {
+                try {
+                    record = outbox.append(s.name, key, genMs, describe, frames, payload, () -> spooled(tickets));
+                } catch (IOException e) {
+                    System.err.println("WARN: outbox append failed (" + decoder.name() + " site=" + s.name + "): "
+                            + e.getMessage() + "; ACK on delivery instead");
+                }
+            }
+
+            int n = senders.size();
+            for (int i = 0; i < n; i++) {
+                ArrayList<Ticket<F>> carried = (record >= 0) ? new ArrayList<>()
+                        : (i == n - 1) ? tickets : new ArrayList<>(tickets);
+                senders.get(i).queue.offer(new Outbound<>(s.name, s.urls[i], s.lastOkSeq[i], s.snapshotted, build,
+                        carried, (record >= 0) ? records(record) : new ArrayList<>(), genMs, describe, key,
+                        payload, frames, history));
+            }
+        }
+
+        /** True if the next queued message is already decoded into a frame of the same site. */
+        private boolean nextParsed(Site s) {
+            Ticket<F> next = parseQ.peek();
+            if (next == null || !next.parsed.isDone() || next.parsed.isCompletedExceptionally()) return false;
+            F f = next.parsed.getNow(null);
+            return f != null && nz(decoder.site(f)).equals(s.name) && redundant(next, f, s) == null;
+        }
+
+        /**
+         * Why {@code f} would add nothing to its site {@code s} (null => not seen yet): the counter
+         * to bump, or null if the frame is new.
+         */
+        private ItwsMetrics.Counter redundant(Ticket<F> t, F f, Site s) {
+            if (t.id != 0 && recent.contains(t.id)) return ItwsMetrics.DUPLICATES;
+            if (cfg.skipUnchanged && s != null && s.newest != null) {
+                long h = decoder.contentHash(f);
+                if (h != 0 && h == decoder.contentHash(s.newest)) return ItwsMetrics.UNCHANGED;
+            }
+            return null;
+        }
+
+        /**
+         * Identity of a frame: site, generation time and content hash mixed into one long; 0 when
+         * the decoder has no content hash or the frame no generation time.
+         */
+        private long frameId(F f) {
+            long h = decoder.contentHash(f);
+            long gen = decoder.genTimeMs(f);
+            if (h == 0 || gen <= 0) return 0;
+            long id = ItwsConsumer.mix(h ^ ItwsConsumer.mix(gen ^ ((long) nz(decoder.site(f)).hashCode() << 32)));
+            return (id == 0) ? 1 : id;
+        }
+
+        /** Same payload => same key: the newest frame's identity and how many frames ride along. */
+        private String idempotencyKey(Site s) {
+            if (s.newestId == 0) return null;
+            return decoder.name() + ":" + s.name + ":" + Long.toHexString(s.newestId) + ":" + s.cache.size();
+        }
+
+        // ---------------- Post stage (one per sink) ----------------
+
+        /**
+         * Counts one sink's delivery of the frames of {@code o}; a frame is finished (ACKed) once
+         * ITWS_ACK_POLICY sinks have it. Superseded frames count with the payload that replaced them.
+         */
+        private void ack(Outbound<F> o) {
+            long now = System.currentTimeMillis();
+            int done = 0;
+            for (Ticket<F> t : o.tickets) {
+                if (t.delivered.incrementAndGet() != ackNeeded) continue;
+                finish(t, now);
+                done++;
+            }
+            ItwsMetrics.FRAMES_DELIVERED.add(done);
+        }
+
+        /** Outbox sync thread: the payload carrying {@code tickets} is on disk. */
+        private void spooled(List<Ticket<F>> tickets) {
+            long now = System.currentTimeMillis();
+            for (Ticket<F> t : tickets) finish(t, now);
+            ItwsMetrics.FRAMES_DELIVERED.add(tickets.size());
+        }
+
+        private void finish(Ticket<F> t, long now) {
+            long ms = now - t.receiverMs;
+            latencySumMs.addAndGet(ms);
+            latencyMaxMs.accumulateAndGet(ms, Math::max);
+            t.finish(true);
+        }
+
+        /** One sink of this lane: its POST target, latest-wins queue, poster and post thread. */
+        final class Sender {
+            final int index; // in senders, and the outbox's sink number
+            final String name;
+            final URI url;
+            final SinkQueue<F> queue = new SinkQueue<>(cfg.coalesce ? 1 : Math.max(1, cfg.postQueueCapacity));
+            final ItwsPoster poster;
+
+            Sender(int index, ItwsConsumer.Config.Sink sink, HttpClient http) {
+                this.index = index;
+                this.name = sink.name();
+                this.url = cfg.postUrl(sink, decoder.productId(), decoder.name());
+                this.poster = new ItwsPoster(name, http, cfg.ingestToken, cfg.httpRequestTimeoutMs,
+                        cfg.retrySleepMs, cfg.retryMaxMs, cfg.postEncoding, cfg.postCompressionLevel, cfg.httpMaxInFlight);
+            }
+
+            private void postLoop() {
+                long seq = 0;
+                while (true) {
+                    try {
+                        // take a slot first, so a coalesced payload is picked as late as possible
+                        poster.acquire();
+                        Outbound<F> o = queue.take();
+                        long mySeq = ++seq;
+                        // a failing POST gives way to a newer payload of its site, delivered or waiting
+                        BooleanSupplier superseded = () -> o.lastOkSeq.get() > mySeq || (cfg.coalesce && queue.handOver(o));
+                        poster.post(o.url, o.payload, o.idempotencyKey, superseded)
+                                .whenComplete((r, e) -> delivered(o, mySeq, r));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            private void delivered(Outbound<F> o, long seq, ItwsPoster.Result r) {
+                if (r == null) return; // not reached: POSTs retry until delivered or superseded
+
+                long genMs = o.genMs;
+                if (r.superseded()) {
+                    ItwsMetrics.POSTS_SUPERSEDED.inc();
+                    System.out.println("POST superseded " + Instant.now()
+                            + " product=" + decoder.name()
+                            + " sink=" + name
+                            + " site=" + o.site
+                            + " gen=" + genMs
+                            + " acked=" + o.tickets.size());
+                } else {
+                    o.lastOkSeq.accumulateAndGet(seq, Math::max);
+                    ItwsMetrics.POSTS_OK.inc();
+                    ItwsMetrics.POST_ATTEMPTS.record(r.attempts());
+                    if (genMs > 0) ItwsMetrics.FRAME_AGE.record(System.currentTimeMillis() - genMs);
+                    System.out.println("POST OK " + Instant.now()
+                            + " product=" + decoder.name()
+                            + " sink=" + name
+                            + " site=" + o.site
+                            + " frames=" + o.frames
+                            + " " + o.describe
+                            + " acked=" + o.tickets.size()
+                            + " bytes=" + r.rawBytes() + "->" + r.wireBytes()
+                            + (o.payload.baselineLength > 0 ? " full=" + o.payload.baselineLength : "")
+                            + " ms=" + r.millis()
+                            + " attempts=" + r.attempts()
+                            + " http=" + r.version()
+                    );
+                    // the first sink to deliver a build writes its snapshot
+                    if (o.history != null && o.snapshotted.getAndAccumulate(o.build, Math::max) < o.build) {
+                        snapshots.execute(() -> snapshot(o));
+                    }
+                }
+
+                ack(o);
+                if (outbox != null) {
+                    for (long rec : o.records) outbox.done(index, rec);
+                }
+            }
+        }
+
+        /** Snapshot thread: persists the history a delivered payload carried, unless a newer one got through. */
+        private void snapshot(Outbound<F> o) {
+            if (o.snapshotted.get() != o.build) return;
+            try {
+                ItwsSnapshot.write(cfg.snapshotDir, decoder, o.site, o.history);
+            } catch (IOException e) {
+                System.err.println("WARN: snapshot write failed (" + decoder.name() + " site=" + o.site + "): " + e.getMessage());
+            }
+        }
+    }
+
+    private static ArrayList<Long> records(long offset) {
+        ArrayList<Long> r = new ArrayList<>(1);
+        r.add(offset);
+        return r;
+    }
+
+    /** The frames of {@code cache}, newest first, as carried by a payload built from it. */
+    private static <F> List<F> history(ItwsConsumer.FrameCache<F> cache) {
+        List<F> h = new ArrayList<>(cache.size());
+        for (int i = 0; i < cache.size(); i++) h.add(cache.get(i));
+        return h;
+    }
+
+    /** {@code url} with {@code site=} added to its query, or {@code url} itself for an unnamed site. */
+    static URI withSite(URI url, String site) {
+        if (site.isEmpty()) return url;
+        String q = "site=" + URLEncoder.encode(site, StandardCharsets.UTF_8);
+        String s = url.toString();
+        int hash = s.indexOf('#');
+        String frag = (hash < 0) ? "" : s.substring(hash);
+        if (hash >= 0) s = s.substring(0, hash);
+        return URI.create(s + (url.getRawQuery() == null ? "?" : "&") + q + frag);
+    }
+
+    private static String nz(String s) { return (s == null) ? "" : s.trim(); }
+
+    // ---------------- Gauges ----------------
+
+    // summed over lanes
+    int parseQueueDepth() {
+        int n = 0;
+        for (Lane<?> l : lanes.values()) n += l.parseQ.size();
+        return n;
+    }
+
+    int parsingInFlight() { return parsing.get(); }
+
+    int postQueueDepth() {
+        int n = 0;
+        for (Lane<?> l : lanes.values()) {
+            for (Lane<?>.Sender k : l.senders) n += k.queue.depth();
+        }
+        return n;
+    }
+
+    int postsInFlight() {
+        int n = 0;
+        for (Lane<?> l : lanes.values()) {
+            for (Lane<?>.Sender k : l.senders) n += k.poster.inFlight();
+        }
+        return n;
+    }
+
+    long outboxBacklog() {
+        long n = 0;
+        for (Lane<?> l : lanes.values()) {
+            if (l.outbox != null) n += l.outbox.backlogBytes();
+        }
+        return n;
+    }
+
+    /** Waits up to {@code timeoutMs} until every outbox is delivered on every sink; false on timeout. */
+    boolean awaitOutbox(long timeoutMs) throws InterruptedException {
+        long until = System.currentTimeMillis() + timeoutMs;
+        while (outboxBacklog() > 0) {
+            if (System.currentTimeMillis() >= until) return false;
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    int ackPendingDepth() {
+        int n = 0;
+        for (Receiver r : receivers) n += r.ackPending;
+        return n;
+    }
+
+    String gauges() {
+        return "depth{parseQ=" + parseQueueDepth()
+                + " parsing=" + parsingInFlight()
+                + " postQ=" + postQueueDepth()
+                + " posting=" + postsInFlight()
+                + " ackPending=" + ackPendingDepth() + "}";
+    }
+
+    /** Totals since start; {@code elapsedMs} is the wall time they are averaged over. */
+    String summary(long elapsedMs) {
+        long frames = ItwsMetrics.FRAMES_DELIVERED.get();
+        long received = ItwsMetrics.RECEIVED.get();
+        double secs = Math.max(1, elapsedMs) / 1000.0;
+        return "messages=" + received
+                + " frames=" + frames
+                + " posts=" + ItwsMetrics.POSTS_OK.get()
+                + " elapsedMs=" + elapsedMs
+                + String.format(Locale.ROOT, " frames/s=%.1f msgs/s=%.1f", frames / secs, received / secs)
+                + " latencyMs{avg=" + ((frames == 0) ? 0 : latencySumMs.get() / frames)
+                + " max=" + latencyMaxMs.get() + "}";
+    }
+
+    // ---------------- Plumbing ----------------
+
+    private static final class Ticket<F> {
+        static final int PENDING = 0, ACK = 1, NO_ACK = 2;
+
+        final Message msg;
+        final long receiverMs;
+        final long receivedNanos = System.nanoTime();
+        CompletableFuture<F> parsed;
+        volatile int state = PENDING;
+        final AtomicInteger delivered = new AtomicInteger(); // sinks that have the frame
+
+        // set by the parse stage, read after parsed completes
+        long id;          // frameId, 0 => none
+        boolean encoded;  // false => skipped as a duplicate at parse time
+
+        Ticket(Message msg, long receiverMs) {
+            this.msg = msg;
+            this.receiverMs = receiverMs;
+        }
+
+        void finish(boolean ack) { state = ack ? ACK : NO_ACK; }
+    }
+
+    private static final class Outbound<F> {
+        final String site;
+        final URI url;
+        final AtomicLong lastOkSeq; // the site's on this sink, shared by all its payloads there
+        final AtomicLong snapshotted; // the site's
+        final long build; // per site, shared by the copies for each sink
+        final ArrayList<Ticket<F>> tickets;
+        final ArrayList<Long> records; // outbox offsets this payload delivers on its sink
+        final long genMs;       // of the newest frame
+        final String describe;  // of the newest frame
+        final String idempotencyKey; // null => none
+        final ItwsConsumer.Payload payload;
+        final int frames;
+        final List<F> history; // cache contents behind the payload, for the snapshot; null => none
+
+        Outbound(String site, URI url, AtomicLong lastOkSeq, AtomicLong snapshotted, long build,
+                 ArrayList<Ticket<F>> tickets, ArrayList<Long> records, long genMs, String describe, String idempotencyKey,
+                 ItwsConsumer.Payload payload, int frames, List<F> history) {
+            this.site = site;
+            this.url = url;
+            this.lastOkSeq = lastOkSeq;
+            this.snapshotted = snapshotted;
+            this.build = build;
+            this.tickets = tickets;
+            this.records = records;
+            this.genMs = genMs;
+            this.describe = describe;
+            this.idempotencyKey = idempotencyKey;
+            this.payload = payload;
+            this.frames = frames;
+            this.history = history;
+        }
+    }
+
+    /**
+     * Latest-wins queue of one sink, never blocking the encode stage: at most {@code perSite}
+     * payloads per site wait; beyond that the site's oldest is dropped and its tickets ride with
+     * the next one. With perSite 1 (coalescing) a newer payload replaces the site's unposted one,
+     * and sites are taken in the order they last changed.
+     */
+    private static final class SinkQueue<F> {
+        private final int perSite;
+        private final ArrayDeque<Outbound<F>> pending = new ArrayDeque<>();
+
+        SinkQueue(int perSite) { this.perSite = perSite; }
+
+        synchronized void offer(Outbound<F> o) {
+            int same = 0;
+            for (Outbound<F> p : pending) {
+                if (p.site.equals(o.site)) same++;
+            }
+            if (same >= perSite) {
+                Outbound<F> oldest = null, heir = o;
+                for (Iterator<Outbound<F>> it = pending.iterator(); it.hasNext(); ) {
+                    Outbound<F> p = it.next();
+                    if (!p.site.equals(o.site)) continue;
+                    if (oldest == null) {
+                        oldest = p;
+                        it.remove();
+                    } else {
+                        heir = p;
+                        break;
+                    }
+                }
+                inherit(heir, oldest);
+            }
+            pending.addLast(o);
+            notifyAll();
+        }
+
+        synchronized Outbound<F> take() throws InterruptedException {
+            while (pending.isEmpty()) wait();
+            return pending.pollFirst();
+        }
+
+        /**
+         * Moves the tickets of {@code o}, a payload being retried, to a waiting payload of its site;
+         * false if there is none.
+         */
+        synchronized boolean handOver(Outbound<F> o) {
+            for (Outbound<F> p : pending) {
+                if (!p.site.equals(o.site)) continue;
+                inherit(p, o);
+                o.tickets.clear();
+                o.records.clear();
+                return true;
+            }
+            return false;
+        }
+
+        synchronized int depth() { return pending.size(); }
+
+        // finished tickets (ACKed through other sinks) are not carried further
+        private static <F> void inherit(Outbound<F> heir, Outbound<F> from) {
+            int i = 0;
+            for (Ticket<F> t : from.tickets) {
+                if (t.state == Ticket.PENDING) heir.tickets.add(i++, t);
+            }
+            heir.records.addAll(from.records);
+        }
+    }
+
+    /**
+     * How many sinks must have returned 2xx for a frame before its message is ACKed
+     * (ITWS_ACK_POLICY): all of them, any one, or a majority.
+     */
+    enum AckPolicy {
+        ALL, ANY, QUORUM;
+
+        int needed(int sinks) {
+            return switch (this) {
+                case ALL -> sinks;
+                case ANY -> 1;
+                case QUORUM -> sinks / 2 + 1;
+            };
+        }
+
+        static AckPolicy parse(String s) {
+            if (s == null) return ALL;
+            return switch (s.trim().toLowerCase(Locale.ROOT)) {
+                case "any", "one", "1" -> ANY;
+                case "quorum", "majority" -> QUORUM;
+                default -> ALL;
+            };
+        }
+    }
+
+    /** The last {@code n} frame ids a lane cached; a ring scanned linearly (n is small). */
+    private static final class RecentIds {
+        private final long[] ids;
+        private int next;
+
+        RecentIds(int n) { this.ids = new long[n]; }
+
+        synchronized boolean contains(long id) {
+            for (long v : ids) {
+                if (v == id) return true;
+            }
+            return false;
+        }
+
+        synchronized void add(long id) {
+            ids[next] = id;
+            next = (next + 1) % ids.length;
+        }
+    }
+
+    /**
+     * Starts {@code r} on a virtual thread when the runtime has them (JDK 21+), else on a
+     * platform daemon thread. Used for the per-site receive loops, which mostly block in receive().
+     */
+    static Thread startVirtual(String name, Runnable r) {
+        if (OF_VIRTUAL != null) {
+            try {
+                Object b = OF_VIRTUAL.invoke(null);
+                b = BUILDER_NAME.invoke(b, name);
+                return (Thread) BUILDER_START.invoke(b, r);
+            } catch (ReflectiveOperationException ignored) {
+                // fall through to a platform thread
+            }
+        }
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /** True when {@link #startVirtual} gets virtual threads (JDK 21+). */
+    static boolean hasVirtualThreads() { return OF_VIRTUAL != null; }
+
+    private static final Method OF_VIRTUAL, BUILDER_NAME, BUILDER_START;
+    static {
+        Method of = null, name = null, start = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            of = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            start = builder.getMethod("start", Runnable.class);
+        } catch (ReflectiveOperationException ignored) {
+            of = null; // JDK < 21
+        }
+        OF_VIRTUAL = of;
+        BUILDER_NAME = name;
+        BUILDER_START = start;
+    }
+
+    private static void startDaemon(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    static java.util.concurrent.ThreadFactory daemon(String prefix) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
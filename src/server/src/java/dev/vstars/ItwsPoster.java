@@ -0,0 +1,207 @@
+package dev.vstars;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Asynchronous POST of radar payloads to one sink, with retry.
+ *
+ * - Up to HTTP_MAX_IN_FLIGHT requests are outstanding at once (sendAsync on the shared client,
+ *   HTTP/2 when HTTP_VERSION=2, kept-alive connection either way).
+ * - ITWS_POST_ENCODING=gzip|deflate compresses the body with Content-Encoding. Each in-flight
+ *   slot owns a Deflater and output buffer that are reset and reused, never reallocated per POST.
+ * - A failed POST is retried until it succeeds or the caller reports it superseded (a newer
+ *   payload already got through, or is waiting). The wait doubles from HTTP_RETRY_SLEEP_MS up to
+ *   HTTP_RETRY_MAX_MS, with equal jitter so sinks recovering together are not hit in lockstep.
+ * - Every attempt of a payload carries the same Idempotency-Key, so the server can answer a
+ *   retry of what it already stored without reading the body.
+ */
+final class ItwsPoster {
+
+    /** Outcome of a delivered POST; {@code superseded} means it was dropped in favour of a newer one. */
+    record Result(boolean superseded, long rawBytes, long wireBytes, long millis, int attempts,
+                  HttpClient.Version version) {}
+
+    private final String sink; // for log lines
+    private final HttpClient http;
+    private final String token;
+    private final int requestTimeoutMs;
+    private final int retrySleepMs, retryMaxMs;
+    private final String encoding; // null => identity
+
+    private final Semaphore inFlight;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final BlockingQueue<Compressor> compressors;
+
+    ItwsPoster(String sink, HttpClient http, String token, int requestTimeoutMs, int retrySleepMs, int retryMaxMs,
+               String encoding, int compressionLevel, int maxInFlight) {
+        this.sink = sink;
+        this.http = http;
+        this.token = token;
+        this.requestTimeoutMs = requestTimeoutMs;
+        this.retrySleepMs = Math.max(50, retrySleepMs);
+        this.retryMaxMs = Math.max(this.retrySleepMs, retryMaxMs);
+        this.encoding = encoding;
+
+        int slots = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(slots);
+        this.compressors = new ArrayBlockingQueue<>(slots);
+        if (encoding != null) {
+            for (int i = 0; i < slots; i++) compressors.add(new Compressor(compressionLevel, encoding.equals("gzip")));
+        }
+    }
+
+    int inFlight() { return outstanding.get(); }
+
+    /** Blocks while HTTP_MAX_IN_FLIGHT requests are outstanding; each acquire is followed by one {@link #post}. */
+    void acquire() throws InterruptedException {
+        inFlight.acquire();
+        outstanding.incrementAndGet();
+    }
+
+    /** {@code idempotencyKey} (null => none) identifies the payload across retries and re-posts. */
+    CompletableFuture<Result> post(URI url, ItwsConsumer.Payload payload, String idempotencyKey,
+                                   BooleanSupplier superseded) throws InterruptedException {
+        Compressor c = (encoding == null) ? null : compressors.take();
+        long wire = payload.length;
+        if (c != null) {
+            c.compress(payload);
+            wire = c.len;
+        }
+
+        CompletableFuture<Result> done = new CompletableFuture<>();
+        attempt(url, payload, idempotencyKey, c, wire, 1, System.nanoTime(), superseded, done);
+
+        return done.whenComplete((r, e) -> {
+            if (c != null) compressors.add(c);
+            outstanding.decrementAndGet();
+            inFlight.release();
+        });
+    }
+
+    private void attempt(URI url, ItwsConsumer.Payload payload, String key, Compressor c, long wire, int attemptNo, long t0,
+                         BooleanSupplier superseded, CompletableFuture<Result> done) {
+        HttpRequest.Builder b = HttpRequest.newBuilder(url)
+                .timeout(Duration.ofMillis(requestTimeoutMs))
+                .header("Content-Type", payload.contentType)
+                .header("X-WX-Token", token);   // <- ITWS_INGEST_TOKEN
+        if (key != null) b.header("Idempotency-Key", key);
+        if (c != null) {
+            b.header("Content-Encoding", encoding);
+            b.POST(HttpRequest.BodyPublishers.ofByteArray(c.out, 0, c.len));
+        } else {
+            b.POST(payload.publisher());
+        }
+
+        long sent = System.nanoTime();
+        http.sendAsync(b.build(), HttpResponse.BodyHandlers.ofString()).whenComplete((resp, err) -> {
+            ItwsMetrics.POST.since(sent);
+            if (err == null) {
+                int code = resp.statusCode();
+                if (code >= 200 && code < 300) {
+                    long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+                    done.complete(new Result(false, payload.length, wire, ms, attemptNo, resp.version()));
+                    return;
+                }
+                System.err.println("WX POST failed (" + sink + "): HTTP " + code);
+                System.err.println("Response: " + resp.body());
+            } else {
+                Throwable cause = (err.getCause() != null) ? err.getCause() : err;
+                System.err.println("WX POST error (" + sink + "): " + cause.getMessage());
+            }
+            ItwsMetrics.POST_ERRORS.inc();
+
+            if (superseded.getAsBoolean()) {
+                done.complete(new Result(true, payload.length, wire, 0, attemptNo, null));
+                return;
+            }
+
+            Executor later = CompletableFuture.delayedExecutor(backoffMs(attemptNo), TimeUnit.MILLISECONDS);
+            later.execute(() -> attempt(url, payload, key, c, wire, attemptNo + 1, t0, superseded, done));
+        });
+    }
+
+    /** Wait after failed attempt {@code n} (1-based): retrySleepMs * 2^(n-1), capped, then jittered into [d/2, d]. */
+    private long backoffMs(int n) {
+        long d = Math.min(retryMaxMs, (long) retrySleepMs << Math.min(n - 1, 20));
+        return d / 2 + ThreadLocalRandom.current().nextLong(d / 2 + 1);
+    }
+
+    // ---------------- Compression ----------------
+
+    /** Deflate/gzip of a gathered payload into a reused buffer. */
+    private static final class Compressor {
+        private final Deflater deflater;
+        private final boolean gzip;
+        private final CRC32 crc = new CRC32();
+        byte[] out = new byte[1 << 16];
+        int len;
+
+        Compressor(int level, boolean gzip) {
+            this.gzip = gzip;
+            // gzip: raw deflate + our own header/trailer; deflate: zlib-wrapped (HTTP "deflate")
+            this.deflater = new Deflater(level, gzip);
+        }
+
+        void compress(ItwsConsumer.Payload p) {
+            deflater.reset();
+            crc.reset();
+            len = 0;
+
+            if (gzip) {
+                ensure(10);
+                out[len++] = 0x1f;
+                out[len++] = (byte) 0x8b;
+                out[len++] = Deflater.DEFLATED;
+                for (int i = 0; i < 6; i++) out[len++] = 0; // flags, mtime, xfl
+                out[len++] = (byte) 0xff;                   // OS unknown
+            }
+
+            for (int i = 0; i < p.partCount(); i++) {
+                byte[] part = p.part(i);
+                if (gzip) crc.update(part, 0, part.length);
+                deflater.setInput(part);
+                while (!deflater.needsInput()) drain();
+            }
+            deflater.finish();
+            while (!deflater.finished()) drain();
+
+            if (gzip) {
+                ensure(8);
+                writeIntLE((int) crc.getValue());
+                writeIntLE((int) p.length);
+            }
+        }
+
+        private void drain() {
+            ensure(8192);
+            len += deflater.deflate(out, len, out.length - len);
+        }
+
+        private void ensure(int n) {
+            if (out.length - len < n) out = Arrays.copyOf(out, Math.max(out.length * 2, len + n));
+        }
+
+        private void writeIntLE(int v) {
+            out[len++] = (byte) v;
+            out[len++] = (byte) (v >>> 8);
+            out[len++] = (byte) (v >>> 16);
+            out[len++] = (byte) (v >>> 24);
+        }
+    }
+}
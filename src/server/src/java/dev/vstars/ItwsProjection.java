@@ -0,0 +1,184 @@
+package dev.vstars;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Grid-to-lat/lon projection of one frame geometry (TRP, offsets, dx/dy, rotation, plot dims),
+ * computed once and shared by every frame with the same geometry, which rarely changes.
+ *
+ * A position (col, row) in cells, cell centres at integers, maps to
+ *
+ *   x = xOffsetM + (col + 0.5) * dxM        y = yOffsetM + (row + 0.5) * dyM
+ *   lat = trpLat + (x sin + y cos) / M_PER_DEG_LAT
+ *   lon = trpLon + (x cos - y sin) / (M_PER_DEG_LAT cos trpLat)
+ *
+ * which is linear in col and row, so the table holds the column and row terms separately on
+ * the half-cell lattice (cell centres and edges, where contour vertices sit): a lookup is two
+ * additions. The bounding box covers the outer cell edges.
+ *
+ * JSON, inside the frame's grid object (fingerprint as 16 hex digits; a client keeps its own
+ * projection while it is unchanged):
+ *
+ *   "geo":{"fingerprint":"...","bbox":{"south":..,"west":..,"north":..,"east":..}}
+ */
+final class ItwsProjection {
+
+    static final double M_PER_DEG_LAT = 1852.0 * 60.0;
+
+    // a handful of sites, each with one geometry at a time: dropped wholesale if it ever fills
+    private static final int MAX_CACHED = 64;
+    private static final Map<Long, ItwsProjection> CACHE = new ConcurrentHashMap<>();
+
+    final long fingerprint;
+    final int rows, cols;
+    final double south, west, north, east;
+
+    private final int trpLatMicroDeg, trpLonMicroDeg, xOffsetM, yOffsetM, dxM, dyM, rotationMilliDeg;
+    private final double trpLat, trpLon, cos, sin, mPerDegLon;
+    // terms at col/row = i / 2 - 1 (i.e. from -1 to cols/rows in half cells)
+    private final double[] colLat, colLon, rowLat, rowLon;
+
+    /** The projection of {@code f}'s geometry, or null when it has no plot dims or cell size. */
+    static ItwsProjection of(ItwsConsumer.Frame f) {
+        if (f.plotRows <= 0 || f.plotCols <= 0 || f.dxM <= 0 || f.dyM <= 0) return null;
+        long fp = fingerprint(f);
+        ItwsProjection p = CACHE.get(fp);
+        if (p != null && p.sameGeometry(f)) return p;
+
+        p = new ItwsProjection(f, fp);
+        ItwsMetrics.PROJECTIONS.inc();
+        if (CACHE.size() >= MAX_CACHED) CACHE.clear();
+        CACHE.put(fp, p);
+        return p;
+    }
+
+    /** 64-bit hash of the geometry fields, never 0. */
+    static long fingerprint(ItwsConsumer.Frame f) {
+        long h = 0x9E3779B97F4A7C15L;
+        h = ItwsConsumer.mix(h ^ ((long) f.plotRows << 32 | (f.plotCols & 0xFFFFFFFFL)));
+        h = ItwsConsumer.mix(h ^ ((long) f.trpLatMicroDeg << 32 | (f.trpLonMicroDeg & 0xFFFFFFFFL)));
+        h = ItwsConsumer.mix(h ^ ((long) f.xOffsetM << 32 | (f.yOffsetM & 0xFFFFFFFFL)));
+        h = ItwsConsumer.mix(h ^ ((long) f.dxM << 32 | (f.dyM & 0xFFFFFFFFL)));
+        h = ItwsConsumer.mix(h ^ f.rotationMilliDeg);
+        return (h == 0) ? 1 : h;
+    }
+
+    private ItwsProjection(ItwsConsumer.Frame f, long fingerprint) {
+        this.fingerprint = fingerprint;
+        rows = f.plotRows;
+        cols = f.plotCols;
+        trpLatMicroDeg = f.trpLatMicroDeg;
+        trpLonMicroDeg = f.trpLonMicroDeg;
+        xOffsetM = f.xOffsetM;
+        yOffsetM = f.yOffsetM;
+        dxM = f.dxM;
+        dyM = f.dyM;
+        rotationMilliDeg = f.rotationMilliDeg;
+
+        trpLat = trpLatMicroDeg / 1_000_000.0;
+        trpLon = trpLonMicroDeg / 1_000_000.0;
+        double rot = Math.toRadians(rotationMilliDeg / 1000.0);
+        cos = Math.cos(rot);
+        sin = Math.sin(rot);
+        mPerDegLon = M_PER_DEG_LAT * Math.cos(Math.toRadians(trpLat));
+
+        colLat = new double[2 * cols + 3];
+        colLon = new double[colLat.length];
+        for (int i = 0; i < colLat.length; i++) {
+            double x = xOffsetM + (i / 2.0 - 0.5) * dxM;
+            colLat[i] = x * sin / M_PER_DEG_LAT;
+            colLon[i] = x * cos / mPerDegLon;
+        }
+        rowLat = new double[2 * rows + 3];
+        rowLon = new double[rowLat.length];
+        for (int i = 0; i < rowLat.length; i++) {
+            double y = yOffsetM + (i / 2.0 - 0.5) * dyM;
+            rowLat[i] = y * cos / M_PER_DEG_LAT;
+            rowLon[i] = -y * sin / mPerDegLon;
+        }
+
+        // affine: the extremes are at the corners of the outer cell edges
+        double s = Double.MAX_VALUE, w = Double.MAX_VALUE, n = -Double.MAX_VALUE, e = -Double.MAX_VALUE;
+        for (double row : new double[] {-0.5, rows - 0.5}) {
+            for (double col : new double[] {-0.5, cols - 0.5}) {
+                double lat = lat(col, row), lon = lon(col, row);
+                s = Math.min(s, lat);
+                n = Math.max(n, lat);
+                w = Math.min(w, lon);
+                e = Math.max(e, lon);
+            }
+        }
+        south = s;
+        west = w;
+        north = n;
+        east = e;
+    }
+
+    private boolean sameGeometry(ItwsConsumer.Frame f) {
+        return rows == f.plotRows && cols == f.plotCols
+                && trpLatMicroDeg == f.trpLatMicroDeg && trpLonMicroDeg == f.trpLonMicroDeg
+                && xOffsetM == f.xOffsetM && yOffsetM == f.yOffsetM
+                && dxM == f.dxM && dyM == f.dyM && rotationMilliDeg == f.rotationMilliDeg;
+    }
+
+    double lat(double col, double row) {
+        int c = lattice(col, cols), r = lattice(row, rows);
+        if (c >= 0 && r >= 0) return trpLat + colLat[c] + rowLat[r];
+        double x = xOffsetM + (col + 0.5) * dxM, y = yOffsetM + (row + 0.5) * dyM;
+        return trpLat + (x * sin + y * cos) / M_PER_DEG_LAT;
+    }
+
+    double lon(double col, double row) {
+        int c = lattice(col, cols), r = lattice(row, rows);
+        if (c >= 0 && r >= 0) return trpLon + colLon[c] + rowLon[r];
+        double x = xOffsetM + (col + 0.5) * dxM, y = yOffsetM + (row + 0.5) * dyM;
+        return trpLon + (x * cos - y * sin) / mPerDegLon;
+    }
+
+    /** Table index of {@code v} (a multiple of 0.5 within [-1, n]), else -1. */
+    private static int lattice(double v, int n) {
+        double h = 2 * v + 2;
+        int i = (int) h;
+        return (i == h && i >= 0 && i <= 2 * n + 2) ? i : -1;
+    }
+
+    /** "lat,lon" of (col, row), five decimals (~1 m). */
+    void append(StringBuilder sb, double col, double row) {
+        appendDeg(sb, lat(col, row));
+        sb.append(',');
+        appendDeg(sb, lon(col, row));
+    }
+
+    /** The "geo" object (see the class comment). */
+    void appendJson(StringBuilder sb) {
+        sb.append("{\"fingerprint\":\"").append(fingerprintHex())
+          .append("\",\"bbox\":{\"south\":");
+        appendDeg(sb, south);
+        sb.append(",\"west\":");
+        appendDeg(sb, west);
+        sb.append(",\"north\":");
+        appendDeg(sb, north);
+        sb.append(",\"east\":");
+        appendDeg(sb, east);
+        sb.append("}}");
+    }
+
+    String fingerprintHex() {
+        String h = Long.toHexString(fingerprint);
+        return "0".repeat(16 - h.length()) + h;
+    }
+
+    /** Five decimals, without going through String.format. */
+    static void appendDeg(StringBuilder sb, double deg) {
+        long v = Math.round(deg * 100_000);
+        if (v < 0) {
+            sb.append('-');
+            v = -v;
+        }
+        sb.append(v / 100_000).append('.');
+        long frac = v % 100_000;
+        for (long p = 10_000; p > frac && p > 1; p /= 10) sb.append('0');
+        sb.append(frac);
+    }
+}
@@ -0,0 +1,98 @@
+package dev.vstars;
+
+/**
+ * Reduced-resolution copies of a frame's grid (opt-in: ITWS_LOD=true, JSON payloads only), so a
+ * zoomed-out scope or a slow link can take a fraction of the cells (GET /api/wx/radar?lod=2|4).
+ *
+ * Level k covers k x k source cells per cell and keeps their maximum level, so a downsampled
+ * frame never hides a strong cell. Edge blocks may be partial. A level-k cell (r, c) is centred
+ * where the source block is, so plotting only multiplies dx/dy by k:
+ *
+ *   x = xOffsetM + (c + 0.5) * k * dxM
+ *
+ * JSON, inside the frame's grid object:
+ *
+ *   "lod":[{"factor":2,"rows":..,"cols":..,"cellsRle":"lvl,cnt ..."},{"factor":4,...}]
+ */
+final class ItwsPyramid {
+
+    static final int[] FACTORS = {2, 4};
+
+    private ItwsPyramid() {}
+
+    /** The pyramid of {@code f} as a JSON array, or null when the frame has no usable grid. */
+    static String toJson(ItwsConsumer.Frame f) {
+        int rows = f.plotRows, cols = f.plotCols;
+        if (rows <= 0 || cols <= 0 || f.grid == null) return null;
+
+        byte[] grid = null;
+        StringBuilder sb = new StringBuilder(f.cellsRle == null ? 1024 : f.cellsRle.length() / 2);
+        sb.append('[');
+        int done = 1;
+        for (int k : FACTORS) {
+            // the first level straight from the runs, each next one from the previous: the max
+            // of maxima is the max of the block
+            int step = k / done;
+            grid = (grid == null) ? downsample(f.grid, step) : downsample(grid, rows, cols, step);
+            rows = (rows + step - 1) / step;
+            cols = (cols + step - 1) / step;
+            done = k;
+
+            if (sb.length() > 1) sb.append(',');
+            sb.append("{\"factor\":").append(k)
+              .append(",\"rows\":").append(rows)
+              .append(",\"cols\":").append(cols)
+              .append(",\"cellsRle\":\"");
+            appendRle(sb, grid);
+            sb.append("\"}");
+        }
+        return sb.append(']').toString();
+    }
+
+    /** Max-level aggregation of {@code k} x {@code k} blocks, row-major. */
+    static byte[] downsample(byte[] grid, int rows, int cols, int k) {
+        int outRows = (rows + k - 1) / k, outCols = (cols + k - 1) / k;
+        byte[] out = new byte[outRows * outCols];
+        for (int r = 0; r < rows; r++) {
+            int src = r * cols;
+            int dst = (r / k) * outCols;
+            for (int c = 0; c < cols; c++) {
+                byte v = grid[src + c];
+                int o = dst + c / k;
+                if (v > out[o]) out[o] = v;
+            }
+        }
+        return out;
+    }
+
+    /** Same as {@link #downsample(byte[], int, int, int)} over the row runs of an indexed grid; level 0 runs cost nothing. */
+    static byte[] downsample(ItwsRleGrid g, int k) {
+        int rows = g.rows(), cols = g.cols();
+        int outCols = (cols + k - 1) / k;
+        byte[] out = new byte[((rows + k - 1) / k) * outCols];
+        for (int r = 0; r < rows; r++) {
+            int dst = (r / k) * outCols;
+            g.forEachRun(r, 0, cols, (col, len, level) -> {
+                if (level == 0) return;
+                for (int o = dst + col / k, last = dst + (col + len - 1) / k; o <= last; o++) {
+                    if (level > out[o]) out[o] = (byte) level;
+                }
+            });
+        }
+        return out;
+    }
+
+    /** "lvl,cnt lvl,cnt ..." of a level grid. */
+    static void appendRle(StringBuilder sb, byte[] grid) {
+        int i = 0;
+        boolean first = true;
+        while (i < grid.length) {
+            int j = i + 1;
+            while (j < grid.length && grid[j] == grid[i]) j++;
+            if (!first) sb.append(' ');
+            sb.append(grid[i]).append(',').append(j - i);
+            first = false;
+            i = j;
+        }
+    }
+}
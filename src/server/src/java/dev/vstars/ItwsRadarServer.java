@@ -0,0 +1,278 @@
+package dev.vstars;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the newest payload of each lane and site straight from the consumer (ITWS_SERVE_PORT,
+ * 0 = off), so browser polls need not go through the Node server.
+ *
+ * GET &lt;lane path&gt;[?site=N90][&amp;wait=ms] (the primary sink's path, e.g. /api/wx/radar):
+ * - The body is the payload as built for the POST, gathered once per frame; its gzip form is
+ *   compressed once, on the first request that accepts it. N clients cost N writes, not N encodes.
+ * - Each representation has a strong ETag; If-None-Match on the current one answers 304.
+ * - wait=ms (at most {@link #MAX_WAIT_MS}) with a current If-None-Match is a long poll: the
+ *   request is held until a newer frame lands (200) or the wait ends (304).
+ * - since=genMs keeps only the frames generated after it (itwsGenTimeMs of the client's newest),
+ *   so an incremental client of a long history loop fetches the new frame, not the loop. Cut per
+ *   request, without an ETag; with wait=ms it is held until such a frame exists. With none,
+ *   immediately or once the wait ends, the answer is 304.
+ *
+ * Without site the newest payload of any site is served. Views (lod, crop) stay with the Node
+ * server. One virtual thread per request on JDK 21+, so held polls cost no platform thread;
+ * before that a pool of {@link #PLATFORM_THREADS}, at most half of them holding polls: a long
+ * poll past that is answered at once, as if its wait had ended.
+ */
+final class ItwsRadarServer {
+
+    static final long MAX_WAIT_MS = 60_000;
+    /** Request threads on JDK &lt; 21, where each is a platform thread. */
+    static final int PLATFORM_THREADS = 32;
+
+    private static final byte[] NO_FRAME = "{\"error\":\"No radar frame yet.\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>(); // by path
+    private final String epoch = Long.toHexString(System.currentTimeMillis()); // ETags of this process
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final int maxWaiting;
+
+    ItwsRadarServer(int port) throws IOException {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        if (ItwsPipeline.hasVirtualThreads()) {
+            server.setExecutor(r -> ItwsPipeline.startVirtual("itws-serve", r));
+            maxWaiting = Integer.MAX_VALUE;
+        } else {
+            // a held poll parks a whole thread: keep half the pool for requests answered at once
+            server.setExecutor(Executors.newFixedThreadPool(PLATFORM_THREADS, ItwsPipeline.daemon("itws-serve")));
+            maxWaiting = PLATFORM_THREADS / 2;
+        }
+        server.start();
+        ItwsMetrics.gauge("itws_serve_waiting", "Long polls held until the next frame", waiting::get);
+    }
+
+    int port() { return server.getAddress().getPort(); }
+
+    /** Starts serving {@code path}; call once per lane before publishing to it. */
+    void register(String path) {
+        channels.computeIfAbsent(path, p -> {
+            Channel c = new Channel();
+            server.createContext(p, ex -> handle(ex, c));
+            return c;
+        });
+    }
+
+    /** Encode thread: makes {@code payload} the newest of {@code site} on {@code path}. */
+    void publish(String path, String site, ItwsConsumer.Payload payload, long newestGenMs) {
+        Channel c = channels.get(path);
+        if (c == null) return;
+        byte[] body = gather(payload);
+        String tag = epoch + "-" + Long.toHexString(published.incrementAndGet());
+        c.publish(new Published(site, payload, body, tag, newestGenMs));
+    }
+
+    // ---------------- Requests ----------------
+
+    private void handle(HttpExchange ex, Channel c) throws IOException {
+        try (ex) {
+            Headers h = ex.getResponseHeaders();
+            h.set("Access-Control-Allow-Origin", "*");
+            h.set("Access-Control-Expose-Headers", "ETag");
+            String method = ex.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            Map<String, String> q = query(ex.getRequestURI().getRawQuery());
+            String site = q.getOrDefault("site", "").trim();
+            long waitMs = Math.min(MAX_WAIT_MS, Math.max(0, parseLong(q.get("wait"))));
+            long since = q.containsKey("since") ? parseLong(q.get("since")) : -1;
+            String inm = ex.getRequestHeaders().getFirst("If-None-Match");
+
+            Published f = c.get(site);
+            if (waitMs > 0 && f != null && (f.matches(inm) || (since >= 0 && f.newestGenMs <= since))) {
+                try {
+                    if (waiting.incrementAndGet() <= maxWaiting) {
+                        f = c.await(site, f, System.currentTimeMillis() + waitMs);
+                    } else {
+                        ItwsMetrics.SERVE_WAIT_REFUSED.inc();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    waiting.decrementAndGet();
+                }
+            }
+
+            if (f == null) {
+                h.set("Content-Type", "application/json");
+                ex.sendResponseHeaders(404, NO_FRAME.length);
+                ex.getResponseBody().write(NO_FRAME);
+                return;
+            }
+
+            boolean gzip = acceptsGzip(ex.getRequestHeaders().getFirst("Accept-Encoding"));
+            h.set("Vary", "Accept-Encoding");
+            h.set("Cache-Control", "no-cache");
+            if (since < 0) h.set("ETag", gzip ? f.gzipTag : f.tag);
+            // nothing newer than the client has (its wait, if any, ended first): never an empty loop
+            if (f.matches(inm) || (since >= 0 && f.newestGenMs <= since)) {
+                ItwsMetrics.SERVE_NOT_MODIFIED.inc();
+                ex.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            byte[] body = (since >= 0) ? f.since(since, gzip) : gzip ? f.gzip() : f.body;
+            h.set("Content-Type", f.contentType);
+            if (gzip) h.set("Content-Encoding", "gzip");
+            ItwsMetrics.SERVE_OK.inc();
+            if (method.equals("HEAD")) {
+                ex.sendResponseHeaders(200, -1);
+                return;
+            }
+            ex.sendResponseHeaders(200, body.length);
+            OutputStream out = ex.getResponseBody();
+            out.write(body);
+        }
+    }
+
+    private static long parseLong(String s) {
+        if (s == null || s.isBlank()) return 0;
+        try { return Long.parseLong(s.trim()); } catch (NumberFormatException e) { return 0; }
+    }
+
+    private static boolean acceptsGzip(String accept) {
+        if (accept == null) return false;
+        for (String e : accept.split(",")) {
+            String v = e.trim().toLowerCase(Locale.ROOT);
+            if (v.equals("gzip") || (v.startsWith("gzip;") && !v.replace(" ", "").endsWith("q=0"))) return true;
+        }
+        return false;
+    }
+
+    private static Map<String, String> query(String raw) {
+        Map<String, String> m = new HashMap<>();
+        if (raw == null) return m;
+        for (String kv : raw.split("&")) {
+            int eq = kv.indexOf('=');
+            String k = (eq < 0) ? kv : kv.substring(0, eq);
+            String v = (eq < 0) ? "" : kv.substring(eq + 1);
+            m.putIfAbsent(URLDecoder.decode(k, StandardCharsets.UTF_8), URLDecoder.decode(v, StandardCharsets.UTF_8));
+        }
+        return m;
+    }
+
+    // ---------------- State ----------------
+
+    /** One published payload; immutable but for its lazily compressed form. */
+    private static final class Published {
+        final String site, contentType;
+        final ItwsConsumer.Payload payload; // its fragments, for since
+        final byte[] body;
+        final String tag, gzipTag; // quoted
+        final long newestGenMs;
+        private volatile byte[] gzip;
+
+        Published(String site, ItwsConsumer.Payload payload, byte[] body, String tag, long newestGenMs) {
+            this.site = site;
+            this.contentType = payload.contentType;
+            this.payload = payload;
+            this.body = body;
+            this.newestGenMs = newestGenMs;
+            this.tag = "\"" + tag + "\"";
+            this.gzipTag = "\"" + tag + "-gz\"";
+        }
+
+        /** True if an If-None-Match value names either representation of this frame. */
+        boolean matches(String inm) {
+            if (inm == null) return false;
+            for (String t : inm.split(",")) {
+                t = t.trim();
+                if (t.startsWith("W/")) t = t.substring(2);
+                if (t.equals("*") || t.equals(tag) || t.equals(gzipTag)) return true;
+            }
+            return false;
+        }
+
+        byte[] gzip() throws IOException {
+            byte[] g = gzip;
+            if (g != null) return g;
+            synchronized (this) {
+                if (gzip == null) gzip = compress(body);
+                return gzip;
+            }
+        }
+
+        /** The frames generated after {@code sinceMs}; compressed per call unless that is all of them. */
+        byte[] since(long sinceMs, boolean gzip) throws IOException {
+            ItwsConsumer.Payload p = payload.since(sinceMs);
+            if (p == payload) return gzip ? gzip() : body;
+            byte[] b = gather(p);
+            return gzip ? compress(b) : b;
+        }
+    }
+
+    private static byte[] gather(ItwsConsumer.Payload payload) {
+        byte[] body = new byte[(int) payload.length];
+        int n = 0;
+        for (int i = 0; i < payload.partCount(); i++) {
+            byte[] part = payload.part(i);
+            System.arraycopy(part, 0, body, n, part.length);
+            n += part.length;
+        }
+        return body;
+    }
+
+    private static byte[] compress(byte[] body) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream z = new GZIPOutputStream(bos)) {
+            z.write(body);
+        }
+        return bos.toByteArray();
+    }
+
+    /** The newest frame per site of one path, and the long polls waiting for the next. */
+    private static final class Channel {
+        private final Map<String, Published> bySite = new ConcurrentHashMap<>();
+        private volatile Published newest;
+
+        synchronized void publish(Published f) {
+            bySite.put(f.site, f);
+            newest = f;
+            notifyAll();
+        }
+
+        Published get(String site) {
+            return site.isEmpty() ? newest : bySite.get(site);
+        }
+
+        /** Waits until {@code site}'s frame is no longer {@code seen} or {@code untilMs} passes. */
+        synchronized Published await(String site, Published seen, long untilMs) throws InterruptedException {
+            Published f;
+            long left;
+            while ((f = get(site)) == seen && (left = untilMs - System.currentTimeMillis()) > 0) wait(left);
+            return f;
+        }
+    }
+}
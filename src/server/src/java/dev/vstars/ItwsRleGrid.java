@@ -0,0 +1,208 @@
+package dev.vstars;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Random-access view of a frame's merged runs, so a reader can ask for one cell or one row
+ * without expanding the whole grid.
+ *
+ * - starts[i] is the first cell of run i (a prefix sum of the counts), starts[count] the total;
+ *   levels[i] its mapped level. Built run by run in {@link ItwsConsumer.MappedRleBuilder}.
+ * - Once the plot dims are known, {@link #index} records the run holding each row's first cell,
+ *   so a lookup binary-searches only the runs of one row.
+ * - {@link #toRaster} expands to one level byte per cell, row-major (as the old decodeRuns did),
+ *   filling row bands in parallel on the common fork-join pool when the grid is large.
+ *
+ * Cells past the last run (cellsTotal short of plotRows*plotCols) read as level 0.
+ */
+final class ItwsRleGrid {
+
+    /** Grids below this many cells are rastered on the calling thread. */
+    static final int PARALLEL_CELLS = 1 << 18;
+    private static final int BAND_CELLS = 1 << 16;
+
+    /** Receives the runs of a row slice: {@code len} cells from column {@code col} at {@code level}. */
+    interface RunVisitor {
+        void run(int col, int len, int level);
+    }
+
+    private int[] starts = new int[256];
+    private byte[] levels = new byte[256];
+    private int count;
+
+    private int rows, cols;
+    private int[] rowRun = new int[0]; // rows + 1 entries once indexed
+
+    /** Clears all runs and the row index, keeping the arrays. */
+    void clear() {
+        count = 0;
+        starts[0] = 0;
+        rows = 0;
+        cols = 0;
+    }
+
+    /** Appends a run; the caller merges equal neighbours. */
+    void add(int level, int cnt) {
+        if (cnt <= 0) return;
+        if (count + 1 >= starts.length) {
+            starts = Arrays.copyOf(starts, starts.length * 2);
+            levels = Arrays.copyOf(levels, starts.length);
+        }
+        int end = starts[count];
+        // a grid this large could not be rastered anyway: clamp rather than wrap
+        levels[count] = (byte) level;
+        starts[++count] = (end > Integer.MAX_VALUE - cnt) ? Integer.MAX_VALUE : end + cnt;
+    }
+
+    /** Copies {@code src} into {@code into} (reusing its arrays) or a new grid when null. */
+    static ItwsRleGrid copyOf(ItwsRleGrid src, ItwsRleGrid into) {
+        ItwsRleGrid g = (into == null) ? new ItwsRleGrid() : into;
+        int n = src.count;
+        if (g.starts.length < n + 1) {
+            g.starts = new int[src.starts.length];
+            g.levels = new byte[src.starts.length];
+        }
+        System.arraycopy(src.starts, 0, g.starts, 0, n + 1);
+        System.arraycopy(src.levels, 0, g.levels, 0, n);
+        g.count = n;
+        g.rows = 0;
+        g.cols = 0;
+        return g;
+    }
+
+    /** Builds a grid from packed runs (see {@link ItwsBinaryCodec}), e.g. for a frame read back from a snapshot. */
+    static ItwsRleGrid ofPacked(byte[] runs, int len, ItwsRleGrid into) {
+        ItwsRleGrid g = (into == null) ? new ItwsRleGrid() : into;
+        g.clear();
+        int i = 0;
+        while (i < len) {
+            int b = runs[i++] & 0xFF;
+            int count = b >>> 4;
+            if (count == 0) {
+                int shift = 0;
+                int v;
+                do {
+                    v = runs[i++] & 0xFF;
+                    count |= (v & 0x7F) << shift;
+                    shift += 7;
+                } while ((v & 0x80) != 0);
+            }
+            g.add(b & 0x0F, count);
+        }
+        return g;
+    }
+
+    /** Records the run holding the first cell of each row; one pass over the runs. */
+    void index(int rows, int cols) {
+        this.rows = Math.max(0, rows);
+        this.cols = Math.max(0, cols);
+        if (rowRun.length < this.rows + 1) rowRun = new int[this.rows + 1];
+        int total = cells();
+        int i = 0;
+        for (int r = 0; r < this.rows; r++) {
+            int cell = (int) Math.min((long) r * this.cols, total);
+            while (i < count - 1 && starts[i + 1] <= cell) i++;
+            rowRun[r] = i;
+        }
+        rowRun[this.rows] = Math.max(0, count - 1);
+    }
+
+    /** Bytes held by the arrays (which may be larger than the runs, see {@link #copyOf}). */
+    long retainedBytes() { return 4L * starts.length + levels.length + 4L * rowRun.length; }
+
+    int runCount() { return count; }
+    int cells() { return starts[count]; }
+    int rows() { return rows; }
+    int cols() { return cols; }
+
+    /** Level of cell (row, col), 0 outside the grid. O(log runs-in-row) once indexed. */
+    int level(int row, int col) {
+        if (row < 0 || row >= rows || col < 0 || col >= cols) return 0;
+        int cell = row * cols + col;
+        if (cell >= cells()) return 0;
+        return levels[runAt(cell, rowRun[row], rowRun[row + 1])];
+    }
+
+    /** Level of the {@code cell}-th cell in row-major order, 0 past the last run. O(log runs). */
+    int level(int cell) {
+        if (cell < 0 || cell >= cells()) return 0;
+        return levels[runAt(cell, 0, count - 1)];
+    }
+
+    /** Visits the runs of columns [fromCol, toCol) of {@code row}, clipped to the grid. */
+    void forEachRun(int row, int fromCol, int toCol, RunVisitor v) {
+        if (row < 0 || row >= rows) return;
+        int base = row * cols;
+        int cell = base + Math.max(0, fromCol);
+        int end = Math.min(base + Math.min(cols, toCol), cells());
+        if (cell >= end) return;
+        int i = runAt(cell, rowRun[row], rowRun[row + 1]);
+        while (cell < end) {
+            int runEnd = Math.min(starts[i + 1], end);
+            v.run(cell - base, runEnd - cell, levels[i]);
+            cell = runEnd;
+            i++;
+        }
+    }
+
+    /** One level byte per cell, rows x cols, row-major; requires {@link #index}. */
+    byte[] toRaster() {
+        byte[] out = new byte[rows * cols];
+        if (out.length < PARALLEL_CELLS) {
+            fillRows(out, 0, rows);
+        } else {
+            ForkJoinPool.commonPool().invoke(new Fill(this, out, 0, rows));
+        }
+        return out;
+    }
+
+    /** Fills rows [r0, r1) of {@code out}; bands touch disjoint cells, so they can run concurrently. */
+    private void fillRows(byte[] out, int r0, int r1) {
+        int cell = r0 * cols;
+        int end = Math.min(r1 * cols, cells());
+        if (cell >= end) return;
+        int i = rowRun[r0];
+        while (cell < end) {
+            int runEnd = Math.min(starts[i + 1], end);
+            if (levels[i] != 0) Arrays.fill(out, cell, runEnd, levels[i]);
+            cell = runEnd;
+            i++;
+        }
+    }
+
+    /** Largest run in [lo, hi] starting at or before {@code cell}. */
+    private int runAt(int cell, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= cell) lo = mid; else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /** Splits rows into bands for {@link #toRaster}; never serialized. */
+    @SuppressWarnings("serial")
+    private static final class Fill extends RecursiveAction {
+        private final ItwsRleGrid grid;
+        private final byte[] out;
+        private final int r0, r1;
+
+        Fill(ItwsRleGrid grid, byte[] out, int r0, int r1) {
+            this.grid = grid;
+            this.out = out;
+            this.r0 = r0;
+            this.r1 = r1;
+        }
+
+        @Override
+        protected void compute() {
+            if (r1 - r0 <= 1 || (long) (r1 - r0) * grid.cols <= BAND_CELLS) {
+                grid.fillRows(out, r0, r1);
+                return;
+            }
+            int mid = (r0 + r1) >>> 1;
+            invokeAll(new Fill(grid, out, r0, mid), new Fill(grid, out, mid, r1));
+        }
+    }
+}
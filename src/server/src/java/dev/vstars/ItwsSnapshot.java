@@ -0,0 +1,124 @@
+package dev.vstars;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Warm-start snapshot of a lane's FrameCache, one file per product and site
+ * (ITWS_SNAPSHOT_DIR/&lt;productID&gt;-&lt;site&gt;.snap).
+ *
+ * Rewritten after every successful POST (temp file + atomic rename, so a crash leaves either the
+ * old or the new snapshot). At startup the pipeline reloads it, drops expired frames and posts
+ * the restored history before the JMS connection is up, so the scope gets its loop back at once
+ * instead of after CACHE_N update cycles.
+ *
+ * File: "ITWSSNAP" u32 version, i32 productId, str site, u16 count, then count frames newest
+ * first, each u32 length + the decoder's own encoding ({@link ItwsDecoder#writeFrame}).
+ */
+final class ItwsSnapshot {
+
+    static final byte[] MAGIC = {'I', 'T', 'W', 'S', 'S', 'N', 'A', 'P'};
+    static final int VERSION = 1;
+
+    private ItwsSnapshot() {}
+
+    /** Frames of one site as read back, newest first. */
+    record Restored<F>(String site, List<F> frames) {}
+
+    static Path path(Path dir, int productId, String site) {
+        StringBuilder sb = new StringBuilder().append(productId).append('-');
+        for (int i = 0; i < site.length(); i++) {
+            char c = site.charAt(i);
+            sb.append((Character.isLetterOrDigit(c) || c == '_') ? c : '_');
+        }
+        return dir.resolve(sb.append(".snap").toString());
+    }
+
+    /** Replaces the snapshot of ({@code productId}, {@code site}) with {@code frames} (newest first). */
+    static <F> void write(Path dir, ItwsDecoder<F> decoder, String site, List<F> frames) throws IOException {
+        Files.createDirectories(dir);
+        Path target = path(dir, decoder.productId(), site);
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(64 * 1024);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(decoder.productId());
+            out.writeUTF(site);
+            out.writeShort(frames.size());
+            for (F f : frames) {
+                frame.reset();
+                decoder.writeFrame(f, new DataOutputStream(frame));
+                out.writeInt(frame.size());
+                frame.writeTo(out);
+            }
+        }
+
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads every snapshot of {@code decoder}'s product in {@code dir}, keeping frames that have
+     * not expired at {@code nowMs}. Unreadable files are reported and skipped.
+     */
+    static <F> List<Restored<F>> load(Path dir, ItwsDecoder<F> decoder, long nowMs) {
+        List<Restored<F>> out = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return out;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, decoder.productId() + "-*.snap")) {
+            for (Path p : files) {
+                try {
+                    Restored<F> r = read(p, decoder, nowMs);
+                    if (r != null && !r.frames().isEmpty()) out.add(r);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("WARN: ignoring snapshot " + p + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("WARN: cannot list snapshots in " + dir + ": " + e.getMessage());
+        }
+        return out;
+    }
+
+    private static <F> Restored<F> read(Path p, ItwsDecoder<F> decoder, long nowMs) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("not a snapshot");
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("unsupported version " + version);
+            if (in.readInt() != decoder.productId()) return null;
+
+            String site = in.readUTF();
+            int n = in.readUnsignedShort();
+            List<F> frames = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                byte[] b = new byte[in.readInt()];
+                in.readFully(b);
+                F f = decoder.readFrame(new DataInputStream(new ByteArrayInputStream(b)));
+                long exp = decoder.expTimeMs(f);
+                if (exp > 0 && exp <= nowMs) continue; // past itwsExpTimeMs
+                frames.add(f);
+            }
+            return new Restored<>(site, frames);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package dev.vstars;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for /api/wx/radar (ITWS_STUB_SINK=true; mostly for replays): drains each POST and
+ * answers 200 after ITWS_STUB_SINK_DELAY_MS, so a replay measures the consumer, not the server.
+ */
+final class ItwsStubSink implements AutoCloseable {
+
+    private static final byte[] OK = "{\"ok\":true}".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    ItwsStubSink(int port, int delayMs) throws IOException {
+        // without TCP_NODELAY, delayed ACKs add ~40 ms to every small POST and swamp the numbers
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "itws-stub-sink");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.createContext("/", ex -> {
+            long n = 0;
+            byte[] buf = new byte[16 * 1024];
+            try (InputStream in = ex.getRequestBody()) {
+                int r;
+                while ((r = in.read(buf)) > 0) n += r;
+            }
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            requests.incrementAndGet();
+            bytes.addAndGet(n);
+
+            ex.getResponseHeaders().set("Content-Type", "application/json");
+            ex.sendResponseHeaders(200, OK.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(OK);
+            }
+        });
+        server.start();
+    }
+
+    URI url() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/api/wx/radar");
+    }
+
+    long requests() { return requests.get(); }
+
+    long bytes() { return bytes.get(); }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
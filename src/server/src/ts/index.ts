@@ -2,6 +2,7 @@ import { readFile } from "node:fs/promises";
 import { createServer, type IncomingMessage, type ServerResponse } from "node:http";
 import { dirname, resolve } from "node:path";
 import { URL, fileURLToPath } from "node:url";
+import { gunzipSync, inflateSync } from "node:zlib";
 import { startAdsbClient } from "./adsb_client.js";
 import { startTfrNotamsWorker, type TfrsIngestPayload } from "./tfrs_notams.js";
 
@@ -31,10 +32,29 @@ const MODULE_DIR = dirname(fileURLToPath(import.meta.url));
 const RECAT_CWT_PATH = resolve(MODULE_DIR, "../../data/recat_cwt.json");
 const TAIS_CACHE_STALE_MS = parsePositiveIntEnv("TAIS_CACHE_STALE_MS", 5 * 60 * 1000);
 const AIRCRAFT_DESTINATION_DEFAULT = "XXX";
+// Compact radar payload posted by ItwsConsumer when ITWS_PAYLOAD_FORMAT=binary (see ItwsBinaryCodec).
+const WX_RADAR_BINARY_TYPE = "application/vnd.vstars.wx-radar";
 
 let latestRadarPayload: unknown = null;
+let latestRadarBinary: Buffer | null = null;
 let latestRadarUpdatedAtMs = 0;
 
+// Per ITWS site (?site= on POST/GET) when one ItwsConsumer serves several sites; the latest*
+// fields above hold whichever site posted last.
+// idempotencyKey: the Idempotency-Key of the POST that stored the record ("" if none).
+type RadarRecord = {
+  payload: unknown;
+  binary: Buffer | null;
+  updatedAtMs: number;
+  sourceUpdatedAtMs: number;
+  idempotencyKey: string;
+};
+const radarBySite = new Map<string, RadarRecord>();
+
+// Reduced / cropped radar payloads (GET ?lod=&crop=1), rebuilt only when the stored payload changes.
+const WX_RADAR_VIEW_CACHE_MAX = 32;
+const radarViews = new Map<unknown, Map<string, Record<string, unknown>>>();
+
 let latestQnhPayload: QnhIngestPayload | null = null;
 let latestQnhUpdatedAtMs = 0;
 const qnhByIcao = new Map<string, QnhStationRecord>();
@@ -276,7 +296,7 @@ function setCorsHeaders(res: ServerResponse): void {
   res.setHeader("Access-Control-Allow-Methods", "GET,POST,OPTIONS");
   res.setHeader(
     "Access-Control-Allow-Headers",
-    "Content-Type,X-WX-Token,X-QNH-Token,X-Aircraft-Token,X-TFRS-Token,X-TAIS-Token"
+    "Content-Type,Content-Encoding,X-WX-Token,X-QNH-Token,X-Aircraft-Token,X-TFRS-Token,X-TAIS-Token"
   );
 }
 
@@ -288,6 +308,13 @@ function writeJson(res: ServerResponse, statusCode: number, payload: unknown): v
 }
 
 function readJsonBody(req: IncomingMessage, maxBytes: number): Promise<unknown> {
+  return readBody(req, maxBytes).then((body) => {
+    const raw = body.toString("utf8");
+    return raw.length === 0 ? {} : JSON.parse(raw);
+  });
+}
+
+function readBody(req: IncomingMessage, maxBytes: number): Promise<Buffer> {
   return new Promise((resolve, reject) => {
     let bytes = 0;
     const chunks: Buffer[] = [];
@@ -305,8 +332,7 @@ function readJsonBody(req: IncomingMessage, maxBytes: number): Promise<unknown>
     req.on("error", (error) => reject(error));
     req.on("end", () => {
       try {
-        const raw = Buffer.concat(chunks).toString("utf8");
-        resolve(raw.length === 0 ? {} : JSON.parse(raw));
+        resolve(decodeContentEncoding(getHeader(req, "content-encoding"), Buffer.concat(chunks), maxBytes));
       } catch (error) {
         reject(error);
       }
@@ -314,6 +340,20 @@ function readJsonBody(req: IncomingMessage, maxBytes: number): Promise<unknown>
   });
 }
 
+function decodeContentEncoding(encoding: string, body: Buffer, maxBytes: number): Buffer {
+  const enc = encoding.trim().toLowerCase();
+  if (enc === "" || enc === "identity") {
+    return body;
+  }
+  if (enc === "gzip") {
+    return gunzipSync(body, { maxOutputLength: maxBytes });
+  }
+  if (enc === "deflate") {
+    return inflateSync(body, { maxOutputLength: maxBytes });
+  }
+  throw new Error(`Unsupported Content-Encoding: ${encoding}`);
+}
+
 function parseFiniteNumber(value: string | null, fallback: number): number {
   if (!value) {
     return fallback;
@@ -583,6 +623,417 @@ function buildFallbackRadarPayload(center: RadarCenter, radiusNm: number): Recor
   };
 }
 
+interface RadarViewRequest {
+  lod: number; // 1 = full resolution, else a factor of the frame's "lod" pyramid
+  crop: { lat: number; lon: number; radiusNm: number } | null;
+}
+
+function parseRadarViewRequest(params: URLSearchParams): RadarViewRequest | null {
+  const lodRaw = Math.floor(parseFiniteNumber(params.get("lod"), 1));
+  const lod = lodRaw === 2 || lodRaw === 4 ? lodRaw : 1;
+  const cropRaw = (params.get("crop") ?? "").trim().toLowerCase();
+  const lat = asFiniteNumber(params.get("lat"));
+  const lon = asFiniteNumber(params.get("lon"));
+  const crop =
+    (cropRaw === "1" || cropRaw === "true") && lat !== null && lon !== null
+      ? { lat, lon, radiusNm: Math.max(0, parseFiniteNumber(params.get("radiusNm"), 80)) }
+      : null;
+  return lod === 1 && crop === null ? null : { lod, crop };
+}
+
+function radarViewKey(view: RadarViewRequest): string {
+  const crop = view.crop ? `${view.crop.lat},${view.crop.lon},${view.crop.radiusNm}` : "-";
+  return `${view.lod}|${crop}`;
+}
+
+function getRadarView(payload: unknown, view: RadarViewRequest): Record<string, unknown> | null {
+  let views = radarViews.get(payload);
+  if (!views) {
+    // one stored payload per site; views of replaced payloads are dropped with them
+    for (const key of radarViews.keys()) {
+      if (key !== latestRadarPayload && ![...radarBySite.values()].some((r) => r.payload === key)) {
+        radarViews.delete(key);
+      }
+    }
+    views = new Map();
+    radarViews.set(payload, views);
+  }
+  const key = radarViewKey(view);
+  const cached = views.get(key);
+  if (cached) {
+    return cached;
+  }
+  const built = buildRadarView(payload, view);
+  if (built) {
+    if (views.size >= WX_RADAR_VIEW_CACHE_MAX) {
+      views.delete(views.keys().next().value as string);
+    }
+    views.set(key, built);
+  }
+  return built;
+}
+
+function decodeRleLevels(rle: string, total: number): Uint8Array {
+  const out = new Uint8Array(total);
+  let pos = 0;
+  for (const token of rle.split(" ")) {
+    if (token.length === 0) {
+      continue;
+    }
+    const comma = token.indexOf(",");
+    const level = Number(token.slice(0, comma));
+    const count = Number(token.slice(comma + 1));
+    if (pos + count > total) {
+      throw new Error("RLE overruns grid.");
+    }
+    if (level !== 0) {
+      out.fill(level, pos, pos + count);
+    }
+    pos += count;
+  }
+  if (pos !== total) {
+    throw new Error("RLE length mismatch.");
+  }
+  return out;
+}
+
+function encodeRleLevels(levels: Uint8Array, rows: number, cols: number, stride: number, row0: number, col0: number): string {
+  const runs: string[] = [];
+  let level = -1;
+  let count = 0;
+  for (let r = row0; r < row0 + rows; r += 1) {
+    const base = r * stride + col0;
+    for (let c = 0; c < cols; c += 1) {
+      const v = levels[base + c];
+      if (v === level) {
+        count += 1;
+      } else {
+        if (count > 0) {
+          runs.push(`${level},${count}`);
+        }
+        level = v;
+        count = 1;
+      }
+    }
+  }
+  if (count > 0) {
+    runs.push(`${level},${count}`);
+  }
+  return runs.join(" ");
+}
+
+// Older frame's levels from its newer neighbour's levels and its cellsDelta (ItwsDelta).
+function applyCellsDelta(newer: Uint8Array, delta: string): Uint8Array {
+  const out = new Uint8Array(newer.length);
+  let pos = 0;
+  for (const token of delta.split(" ")) {
+    if (token.length === 0) {
+      continue;
+    }
+    if (token.startsWith("=")) {
+      const count = Number(token.slice(1));
+      out.set(newer.subarray(pos, pos + count), pos);
+      pos += count;
+    } else {
+      const comma = token.indexOf(",");
+      const count = Number(token.slice(comma + 1));
+      out.fill(Number(token.slice(0, comma)), pos, pos + count);
+      pos += count;
+    }
+  }
+  if (pos !== newer.length) {
+    throw new Error("Cells delta length mismatch.");
+  }
+  return out;
+}
+
+/**
+ * A reduced copy of a stored ITWS payload: each frame at the requested pyramid level (max-level
+ * downsample by the consumer, ITWS_LOD) and/or cropped to the grid-space box around lat/lon and
+ * radiusNm. Geometry is rewritten so the cells plot exactly where the full grid's do.
+ */
+function buildRadarView(payload: unknown, view: RadarViewRequest): Record<string, unknown> | null {
+  const root = asObject(payload);
+  const framesRaw = root && Array.isArray(root.frames) ? root.frames : null;
+  if (!root || !framesRaw) {
+    return null;
+  }
+
+  const frames: unknown[] = [];
+  let newerLevels: Uint8Array | null = null; // full-resolution grid of the previous (newer) frame
+  for (const rawFrame of framesRaw) {
+    const frame = asObject(rawFrame);
+    const grid = asObject(frame?.grid);
+    const geom = asObject(grid?.geom);
+    const trp = asObject(grid?.trp);
+    const rows = asFiniteNumber(grid?.rows) ?? 0;
+    const cols = asFiniteNumber(grid?.cols) ?? 0;
+    if (!frame || !grid || !geom || !trp || rows <= 0 || cols <= 0) {
+      newerLevels = null;
+      frames.push(rawFrame);
+      continue;
+    }
+
+    const cellsRle = asString(grid.cellsRle);
+    const cellsDelta = asString(grid.cellsDelta);
+    let full: Uint8Array | null = null;
+    if (cellsRle) {
+      full = decodeRleLevels(cellsRle, rows * cols);
+    } else if (cellsDelta && newerLevels && newerLevels.length === rows * cols) {
+      full = applyCellsDelta(newerLevels, cellsDelta);
+    }
+    newerLevels = full;
+
+    let factor = 1;
+    let levels = full;
+    let levelRows = rows;
+    let levelCols = cols;
+    if (view.lod > 1 && Array.isArray(grid.lod)) {
+      const entry = grid.lod.map(asObject).find((e) => asFiniteNumber(e?.factor) === view.lod);
+      const entryRle = asString(entry?.cellsRle);
+      const entryRows = asFiniteNumber(entry?.rows) ?? 0;
+      const entryCols = asFiniteNumber(entry?.cols) ?? 0;
+      if (entryRle && entryRows > 0 && entryCols > 0) {
+        factor = view.lod;
+        levelRows = entryRows;
+        levelCols = entryCols;
+        levels = decodeRleLevels(entryRle, entryRows * entryCols);
+      }
+    }
+    if (!levels) {
+      frames.push(rawFrame); // contours-only frame: nothing to reduce
+      continue;
+    }
+
+    const dxM = (asFiniteNumber(geom.dxM) ?? 0) * factor;
+    const dyM = (asFiniteNumber(geom.dyM) ?? 0) * factor;
+    let xOffsetM = asFiniteNumber(geom.xOffsetM) ?? 0;
+    let yOffsetM = asFiniteNumber(geom.yOffsetM) ?? 0;
+    let row0 = 0;
+    let col0 = 0;
+    let outRows = levelRows;
+    let outCols = levelCols;
+    if (view.crop && dxM > 0 && dyM > 0) {
+      // centre in the grid's local frame: metres from the TRP, rotated back by rotationDeg
+      const trpLat = asFiniteNumber(trp.latDeg) ?? 0;
+      const trpLon = asFiniteNumber(trp.lonDeg) ?? 0;
+      const eastM = (view.crop.lon - trpLon) * 1852 * 60 * Math.cos((trpLat * Math.PI) / 180);
+      const northM = (view.crop.lat - trpLat) * 1852 * 60;
+      const rot = ((asFiniteNumber(geom.rotationDeg) ?? 0) * Math.PI) / 180;
+      const xM = eastM * Math.cos(rot) + northM * Math.sin(rot);
+      const yM = -eastM * Math.sin(rot) + northM * Math.cos(rot);
+      const radiusM = view.crop.radiusNm * 1852;
+
+      col0 = Math.min(levelCols - 1, Math.max(0, Math.floor((xM - radiusM - xOffsetM) / dxM)));
+      row0 = Math.min(levelRows - 1, Math.max(0, Math.floor((yM - radiusM - yOffsetM) / dyM)));
+      const col1 = Math.min(levelCols, Math.max(col0 + 1, Math.ceil((xM + radiusM - xOffsetM) / dxM)));
+      const row1 = Math.min(levelRows, Math.max(row0 + 1, Math.ceil((yM + radiusM - yOffsetM) / dyM)));
+      outRows = row1 - row0;
+      outCols = col1 - col0;
+      xOffsetM += col0 * dxM;
+      yOffsetM += row0 * dyM;
+    }
+
+    let nonZeroCells = 0;
+    for (let r = row0; r < row0 + outRows; r += 1) {
+      for (let c = col0; c < col0 + outCols; c += 1) {
+        if (levels[r * levelCols + c] !== 0) {
+          nonZeroCells += 1;
+        }
+      }
+    }
+
+    const outGrid: Record<string, unknown> = {
+      ...grid,
+      rows: outRows,
+      cols: outCols,
+      geom: { ...geom, xOffsetM, yOffsetM, dxM, dyM },
+      cellsEncoding: "rle",
+      cellsRle: encodeRleLevels(levels, outRows, outCols, levelCols, row0, col0),
+      cellsTotal: outRows * outCols,
+      nonZeroCells,
+      view: { factor, row0, col0, sourceRows: rows, sourceCols: cols }
+    };
+    delete outGrid.cellsDelta;
+    delete outGrid.lod;
+    delete outGrid.geo; // the view has its own geometry: clients re-project it
+    delete outGrid.contours; // full-grid polygons would undo the reduction
+    frames.push({ ...frame, grid: outGrid });
+  }
+
+  return { ...root, frames };
+}
+
+/**
+ * Decodes the binary radar payload (ItwsBinaryCodec, version 1) into the same shape as the
+ * JSON payload, rebuilding each frame's "lvl,cnt" cellsRle text from the packed runs.
+ */
+function decodeBinaryRadarPayload(buf: Buffer): Record<string, unknown> {
+  let pos = 0;
+  const need = (n: number): void => {
+    if (pos + n > buf.length) {
+      throw new Error("Truncated binary radar payload.");
+    }
+  };
+  const u8 = (): number => {
+    need(1);
+    return buf.readUInt8(pos++);
+  };
+  const u16 = (): number => {
+    need(2);
+    const v = buf.readUInt16BE(pos);
+    pos += 2;
+    return v;
+  };
+  const i32 = (): number => {
+    need(4);
+    const v = buf.readInt32BE(pos);
+    pos += 4;
+    return v;
+  };
+  const i64 = (): number => {
+    need(8);
+    const v = Number(buf.readBigInt64BE(pos));
+    pos += 8;
+    return v;
+  };
+  const str = (): string => {
+    const n = u16();
+    need(n);
+    const v = buf.toString("utf8", pos, pos + n);
+    pos += n;
+    return v;
+  };
+
+  need(4);
+  if (buf.toString("latin1", 0, 4) !== "WXRB") {
+    throw new Error("Not a binary radar payload.");
+  }
+  pos = 4;
+  const version = u8();
+  if (version !== 1) {
+    throw new Error(`Unsupported binary radar payload version ${version}.`);
+  }
+
+  const frameCount = u8();
+  const levelsMask = u16();
+  const updatedAtMs = i64();
+  const source = str();
+
+  const levels: number[] = [];
+  for (let lvl = 1; lvl <= 6; lvl += 1) {
+    if ((levelsMask & (1 << lvl)) !== 0) {
+      levels.push(lvl);
+    }
+  }
+
+  const frames: Array<Record<string, unknown>> = [];
+  for (let i = 0; i < frameCount; i += 1) {
+    const frameLen = i32();
+    const frameEnd = pos + frameLen;
+    need(frameLen);
+
+    const receiverMs = i64();
+    const itwsGenTimeMs = i64();
+    const itwsExpTimeMs = i64();
+    const productId = i32();
+    const productName = str();
+    const site = str();
+    const airport = str();
+    const receivedAt = str();
+
+    const rows = i32();
+    const cols = i32();
+    const dimsSource = str();
+    const nrows = i32();
+    const ncols = i32();
+    const gridMaxY = i32();
+    const gridMaxX = i32();
+
+    const trpLatMicroDeg = i32();
+    const trpLonMicroDeg = i32();
+    const xOffsetM = i32();
+    const yOffsetM = i32();
+    const dxM = i32();
+    const dyM = i32();
+    const rotationMilliDeg = i32();
+
+    const cellsTotal = i64();
+    const maxLevel = u8();
+    const nonZeroCells = i64();
+    const itwsMaxPrecipLevel = i32();
+    const noCoverageCells = i64();
+    const badCells = i64();
+    const apCells = i64();
+    const attenCells = i64();
+
+    i32(); // runCount
+    const runBytes = i32();
+    need(runBytes);
+    const runsEnd = pos + runBytes;
+    const runs: string[] = [];
+    while (pos < runsEnd) {
+      const b = buf[pos++];
+      const level = b & 0x0f;
+      let count = b >>> 4;
+      if (count === 0) {
+        let shift = 0;
+        let v = 0;
+        do {
+          v = buf[pos++];
+          count += (v & 0x7f) * 2 ** shift;
+          shift += 7;
+        } while ((v & 0x80) !== 0);
+      }
+      runs.push(`${level},${count}`);
+    }
+
+    // appended after the runs: absent from older encoders, skipped by frameLen
+    let geo: Record<string, unknown> | undefined;
+    if (pos < frameEnd && u8() === 1) {
+      need(8);
+      const fingerprint = buf.toString("hex", pos, pos + 8);
+      pos += 8;
+      const south = i32() / 1_000_000;
+      const west = i32() / 1_000_000;
+      const north = i32() / 1_000_000;
+      const east = i32() / 1_000_000;
+      geo = { fingerprint, bbox: { south, west, north, east } };
+    }
+    pos = frameEnd;
+
+    frames.push({
+      receiverMs,
+      receivedAt,
+      itwsGenTimeMs,
+      itwsExpTimeMs,
+      productId,
+      productName,
+      site,
+      airport,
+      grid: {
+        rows,
+        cols,
+        dimsSource,
+        rawDims: { nrows, ncols, gridMaxY, gridMaxX },
+        layout: "row-major",
+        trp: { latDeg: trpLatMicroDeg / 1_000_000, lonDeg: trpLonMicroDeg / 1_000_000 },
+        geom: { xOffsetM, yOffsetM, dxM, dyM, rotationDeg: rotationMilliDeg / 1000 },
+        ...(geo ? { geo } : {}),
+        cellsEncoding: "rle",
+        cellsRle: runs.join(" "),
+        cellsTotal,
+        maxLevel,
+        nonZeroCells,
+        itwsMaxPrecipLevel,
+        special: { noCoverageCells, badCells, apCells, attenCells }
+      }
+    });
+  }
+
+  return { updatedAtMs, source, levels, frames };
+}
+
 function normalizeAircraftPositionIngestPayload(input: unknown): AircraftPositionIngestPayload | null {
   const root = asObject(input);
   if (!root) {
@@ -1206,10 +1657,44 @@ const server = createServer(async (req, res) => {
         }
       }
 
+      // A retried POST of the payload already stored for its site is answered without reading it.
+      const site = (url.searchParams.get("site") ?? "").trim();
+      const idempotencyKey = getHeader(req, "idempotency-key").trim();
+      const stored = radarBySite.get(site);
+      if (idempotencyKey.length > 0 && stored && stored.idempotencyKey === idempotencyKey) {
+        req.resume();
+        writeJson(res, 202, { ok: true, duplicate: true, storedAtMs: stored.updatedAtMs });
+        return;
+      }
+
       try {
-        const payload = await readJsonBody(req, MAX_JSON_BYTES);
+        let payload: unknown;
+        let binary: Buffer | null = null;
+        if (getHeader(req, "content-type").startsWith(WX_RADAR_BINARY_TYPE)) {
+          binary = await readBody(req, MAX_JSON_BYTES);
+          payload = decodeBinaryRadarPayload(binary); // validate before replacing the stored frame
+        } else {
+          payload = await readJsonBody(req, MAX_JSON_BYTES);
+        }
+
+        // With several POSTs in flight an older payload can land after a newer one.
+        const previous = radarBySite.get(site);
+        const sourceUpdatedAtMs = inferUpdatedAtMs(payload);
+        if (previous && sourceUpdatedAtMs < previous.sourceUpdatedAtMs) {
+          writeJson(res, 202, { ok: true, stale: true, storedAtMs: previous.updatedAtMs });
+          return;
+        }
+
+        latestRadarBinary = binary;
         latestRadarPayload = payload;
         latestRadarUpdatedAtMs = Date.now();
+        radarBySite.set(site, {
+          payload,
+          binary,
+          updatedAtMs: latestRadarUpdatedAtMs,
+          sourceUpdatedAtMs,
+          idempotencyKey
+        });
         writeJson(res, 202, {
           ok: true,
           storedAtMs: latestRadarUpdatedAtMs
@@ -1228,8 +1713,35 @@ const server = createServer(async (req, res) => {
       };
       const radiusNm = parseFiniteNumber(url.searchParams.get("radiusNm"), 80);
 
-      if (latestRadarPayload !== null) {
-        writeJson(res, 200, latestRadarPayload);
+      const site = (url.searchParams.get("site") ?? "").trim();
+      const stored = site.length > 0 ? radarBySite.get(site) : undefined;
+      const radarBinary = stored ? stored.binary : latestRadarBinary;
+      const radarPayload = stored ? stored.payload : latestRadarPayload;
+
+      const view = parseRadarViewRequest(url.searchParams);
+      if (view !== null && radarPayload !== null) {
+        try {
+          const reduced = getRadarView(radarPayload, view);
+          if (reduced !== null) {
+            writeJson(res, 200, reduced);
+            return;
+          }
+        } catch (error) {
+          const message = error instanceof Error ? error.message : "Cannot reduce radar payload.";
+          writeJson(res, 500, { error: message });
+          return;
+        }
+      }
+
+      if (radarBinary !== null && getHeader(req, "accept").includes(WX_RADAR_BINARY_TYPE)) {
+        res.statusCode = 200;
+        res.setHeader("Content-Type", WX_RADAR_BINARY_TYPE);
+        res.end(radarBinary);
+        return;
+      }
+
+      if (radarPayload !== null) {
+        writeJson(res, 200, radarPayload);
         return;
       }
 